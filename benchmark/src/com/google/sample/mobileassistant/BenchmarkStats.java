@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the durations measured for each phase over the iterations of a benchmark and computes
+ * their median and 90th percentile.
+ */
+class BenchmarkStats {
+  private final String name;
+  private final Map<String, List<Long>> samples = new LinkedHashMap<String, List<Long>>();
+
+  /**
+   * @constructor
+   *
+   * @param name the name of the benchmark, used as prefix of the reported phases
+   */
+  BenchmarkStats(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Records a duration measured for the phase.
+   */
+  void record(String phase, long milliseconds) {
+    List<Long> phaseSamples = samples.get(phase);
+    if (phaseSamples == null) {
+      phaseSamples = new ArrayList<Long>();
+      samples.put(phase, phaseSamples);
+    }
+    phaseSamples.add(milliseconds);
+  }
+
+  /**
+   * Records the end of each phase of the startup that has ended.
+   */
+  void recordAll(Map<String, Long> phaseEnds) {
+    for (Map.Entry<String, Long> phase : phaseEnds.entrySet()) {
+      if (phase.getValue() >= 0) {
+        record(phase.getKey(), phase.getValue());
+      }
+    }
+  }
+
+  /**
+   * Returns the value below which the percentage of the samples of the phase fall, or -1 if
+   * nothing has been recorded for the phase.
+   */
+  long getPercentile(String phase, int percentage) {
+    List<Long> phaseSamples = samples.get(phase);
+    if (phaseSamples == null || phaseSamples.isEmpty()) {
+      return -1;
+    }
+
+    List<Long> sorted = new ArrayList<Long>(phaseSamples);
+    Collections.sort(sorted);
+    // nearest-rank percentile
+    int rank = (int) Math.ceil(percentage / 100.0 * sorted.size());
+    return sorted.get(Math.max(rank - 1, 0));
+  }
+
+  /**
+   * Returns the median, 90th percentile and number of samples of each phase as
+   * "name.phase.median", "name.phase.p90" and "name.phase.n" entries, e.g., to be sent as
+   * instrumentation status.
+   */
+  Bundle toBundle() {
+    Bundle results = new Bundle();
+    for (Map.Entry<String, List<Long>> phase : samples.entrySet()) {
+      String prefix = name + "." + phase.getKey();
+      results.putLong(prefix + ".median", getPercentile(phase.getKey(), 50));
+      results.putLong(prefix + ".p90", getPercentile(phase.getKey(), 90));
+      results.putInt(prefix + ".n", phase.getValue().size());
+    }
+    return results;
+  }
+
+  /**
+   * Returns a line per phase with its median and 90th percentile.
+   */
+  @Override
+  public String toString() {
+    StringBuilder report = new StringBuilder(name).append(':');
+    for (Map.Entry<String, List<Long>> phase : samples.entrySet()) {
+      report.append("\n  ").append(phase.getKey())
+          .append(" median=").append(getPercentile(phase.getKey(), 50))
+          .append("ms p90=").append(getPercentile(phase.getKey(), 90))
+          .append("ms n=").append(phase.getValue().size());
+    }
+    return report.toString();
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.widget.ListView;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.util.logging.Logger;
+
+/**
+ * Measures how long it takes for SignInActivity, MainActivity and PlaceDetailsActivity to display
+ * their content, against the StandInEndpointServer of the tools folder with scripted latency and
+ * payload sizes. The server runs on the development machine, started with the behavior the
+ * benchmarks expect:
+ *
+ *   tools/run.sh StandInEndpointServer --latency 150 --items 20 --image-size 96
+ *
+ * and is reached from the emulator at {@link #ROOT_URL}. Every benchmark runs a few warm-up
+ * iterations and then reports the median and 90th percentile of each phase over many iterations,
+ * both to the log and as instrumentation status:
+ *
+ *   adb shell am instrument -w -e class com.google.sample.mobileassistant.ScreenLoadBenchmark \
+ *       com.google.sample.mobileassistant.benchmark/android.test.InstrumentationTestRunner
+ *
+ * Cold iterations clear the retrieved lists and the caches of the application process before
+ * launching the activity; warm iterations reuse them.
+ */
+public class ScreenLoadBenchmark extends InstrumentationTestCase {
+  private static final Logger log = Logger.getLogger(ScreenLoadBenchmark.class.getName());
+
+  private static final int WARM_UP_ITERATIONS = 3;
+  private static final int ITERATIONS = 20;
+  private static final long TIMEOUT_IN_MILLISECONDS = 30 * 1000;
+
+  // the stand-in server on the development machine, as seen from the emulator
+  private static final String ROOT_URL = "http://10.0.2.2:8888/_ah/api/";
+  private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 2000;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    assertServerIsRunning();
+    CloudEndpointBuilderHelper.setRootUrl(ROOT_URL);
+  }
+
+  /**
+   * Fails right away, instead of timing out in every iteration, if the stand-in server can't be
+   * reached.
+   */
+  private static void assertServerIsRunning() {
+    URL url;
+    try {
+      url = new URL(ROOT_URL);
+    } catch (MalformedURLException e) {
+      throw new AssertionError(e.toString());
+    }
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(url.getHost(), url.getPort()),
+          CONNECT_TIMEOUT_IN_MILLISECONDS);
+    } catch (IOException e) {
+      fail("The stand-in server isn't running at " + ROOT_URL + "; start it with: tools/run.sh "
+          + "StandInEndpointServer --latency 150 --items 20 --image-size 96");
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    CloudEndpointBuilderHelper.setRootUrl(null);
+    clearRepository();
+    super.tearDown();
+  }
+
+  public void testMainActivityCold() {
+    benchmarkMainActivity("mainActivityCold", true);
+  }
+
+  public void testMainActivityWarm() {
+    benchmarkMainActivity("mainActivityWarm", false);
+  }
+
+  public void testPlaceDetailsActivityCold() {
+    benchmarkPlaceDetailsActivity("placeDetailsActivityCold", true);
+  }
+
+  public void testPlaceDetailsActivityWarm() {
+    benchmarkPlaceDetailsActivity("placeDetailsActivityWarm", false);
+  }
+
+  /**
+   * Measures the whole path from SignInActivity to the first places displayed by MainActivity,
+   * including the phases recorded by {@link StartupTimings}. Requires an account to have been
+   * selected in the application before, otherwise the account picker would be displayed.
+   */
+  public void testSignInToMainActivity() {
+    String accountName = getInstrumentation().getTargetContext()
+        .getSharedPreferences("MobileAssistant", 0).getString("accountName", null);
+    if (SignInActivity.SIGN_IN_REQUIRED && (accountName == null || accountName.length() == 0)) {
+      log.warning("Skipping the sign in benchmark because no account has been selected");
+      return;
+    }
+
+    BenchmarkStats stats = new BenchmarkStats("signInToMainActivity");
+    for (int i = 0; i < WARM_UP_ITERATIONS + ITERATIONS; i++) {
+      clearRepository();
+      Instrumentation.ActivityMonitor monitor =
+          getInstrumentation().addMonitor(MainActivity.class.getName(), null, false);
+
+      long start = SystemClock.elapsedRealtime();
+      Activity signInActivity = launch(SignInActivity.class);
+      long signInLaunched = SystemClock.elapsedRealtime();
+      Activity mainActivity =
+          getInstrumentation().waitForMonitorWithTimeout(monitor, TIMEOUT_IN_MILLISECONDS);
+      getInstrumentation().removeMonitor(monitor);
+      assertNotNull("MainActivity has not been started", mainActivity);
+      waitForRows(mainActivity, R.id.PlacesList);
+      long content = SystemClock.elapsedRealtime();
+
+      if (i >= WARM_UP_ITERATIONS) {
+        stats.record("signInLaunch", signInLaunched - start);
+        stats.record("content", content - start);
+        stats.recordAll(StartupTimings.getPhaseEnds());
+      }
+      finish(mainActivity);
+      finish(signInActivity);
+    }
+    report(stats);
+  }
+
+  private void benchmarkMainActivity(String name, boolean cold) {
+    BenchmarkStats stats = new BenchmarkStats(name);
+    for (int i = 0; i < WARM_UP_ITERATIONS + ITERATIONS; i++) {
+      if (cold) {
+        clearRepository();
+      }
+      StartupTimings.start();
+
+      long start = SystemClock.elapsedRealtime();
+      Activity activity = launch(MainActivity.class);
+      long launched = SystemClock.elapsedRealtime();
+      waitForRows(activity, R.id.PlacesList);
+      long content = SystemClock.elapsedRealtime();
+
+      if (i >= WARM_UP_ITERATIONS) {
+        stats.record("launch", launched - start);
+        stats.record("content", content - start);
+      }
+      finish(activity);
+    }
+    report(stats);
+  }
+
+  private void benchmarkPlaceDetailsActivity(String name, boolean cold) {
+    PlaceDetailsActivity.currentPlace = new PlaceInfo().setPlaceId("0").setName("Place 0");
+
+    BenchmarkStats stats = new BenchmarkStats(name);
+    for (int i = 0; i < WARM_UP_ITERATIONS + ITERATIONS; i++) {
+      if (cold) {
+        clearRepository();
+      }
+
+      long start = SystemClock.elapsedRealtime();
+      Activity activity = launch(PlaceDetailsActivity.class);
+      long launched = SystemClock.elapsedRealtime();
+      waitForRows(activity, R.id.OffersList);
+      long offers = SystemClock.elapsedRealtime();
+      waitForRows(activity, R.id.RecommendationsList);
+      long recommendations = SystemClock.elapsedRealtime();
+
+      if (i >= WARM_UP_ITERATIONS) {
+        stats.record("launch", launched - start);
+        stats.record("offers", offers - start);
+        stats.record("recommendations", recommendations - start);
+        stats.record("content", Math.max(offers, recommendations) - start);
+      }
+      finish(activity);
+    }
+    report(stats);
+  }
+
+  /**
+   * Starts the activity in a new task and waits until it is idle, i.e., its first frame has been
+   * drawn.
+   */
+  private Activity launch(Class<? extends Activity> activityClass) {
+    Intent intent = new Intent(Intent.ACTION_MAIN);
+    intent.setClassName(getInstrumentation().getTargetContext(), activityClass.getName());
+    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+    return getInstrumentation().startActivitySync(intent);
+  }
+
+  private void finish(Activity activity) {
+    activity.finish();
+    getInstrumentation().waitForIdleSync();
+  }
+
+  /**
+   * Waits until the ListView of the activity displays at least one row.
+   */
+  private void waitForRows(final Activity activity, final int listViewId) {
+    final int[] childCount = new int[1];
+    long deadline = SystemClock.elapsedRealtime() + TIMEOUT_IN_MILLISECONDS;
+
+    while (SystemClock.elapsedRealtime() < deadline) {
+      getInstrumentation().runOnMainSync(new Runnable() {
+        @Override
+        public void run() {
+          childCount[0] = ((ListView) activity.findViewById(listViewId)).getChildCount();
+        }
+      });
+      if (childCount[0] > 0) {
+        return;
+      }
+      SystemClock.sleep(5);
+    }
+    fail("The list has not been displayed within " + TIMEOUT_IN_MILLISECONDS + "ms");
+  }
+
+  private void clearRepository() {
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        DataRepository.clear();
+      }
+    });
+  }
+
+  private void report(BenchmarkStats stats) {
+    log.info(stats.toString());
+    getInstrumentation().sendStatus(0, stats.toBundle());
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+/**
+ * Estimates the quality of the network link from the throughput of recent downloads, smoothed
+ * with an exponentially weighted moving average. Until enough downloads have been observed on the
+ * current network, the quality is derived from the type of the network (e.g., EDGE is poor).
+ * Can be called on any thread.
+ */
+final class BandwidthEstimator {
+  /**
+   * Quality of the network link.
+   */
+  enum Quality {
+    POOR, MODERATE, GOOD
+  }
+
+  // links slower than this are poor and links at least this fast are good
+  private static final double POOR_MAX_KILOBITS_PER_SECOND = 150;
+  private static final double GOOD_MIN_KILOBITS_PER_SECOND = 1000;
+
+  // smaller samples, e.g., tiny icons, are too short to time reliably; list thumbnails are larger
+  private static final long MIN_SAMPLE_BYTES = 1024;
+  private static final int MIN_SAMPLES = 3;
+  private static final double SMOOTHING_FACTOR = 0.3;
+
+  // the type of the network is read at most this often, as images are bound on the main thread
+  private static final long NETWORK_CHECK_INTERVAL_IN_MILLISECONDS = 5 * 1000;
+
+  private static Context applicationContext;
+
+  private static double kilobitsPerSecond = 0;
+  private static int samples = 0;
+
+  // type and subtype of the active network, the quality typical for them and when they were read
+  private static int network = -1;
+  private static Quality networkTypeQuality = Quality.GOOD;
+  private static long networkCheckedAt = 0;
+
+  private BandwidthEstimator() {}
+
+  /**
+   * Initializes the estimator with the context used to read the type of the network.
+   */
+  static synchronized void initialize(Context context) {
+    applicationContext = context.getApplicationContext();
+  }
+
+  /**
+   * Records a completed download.
+   *
+   * @param bytes the number of bytes of the body
+   * @param milliseconds the time from the receipt of the headers to the end of the body
+   */
+  static synchronized void onDownloaded(long bytes, long milliseconds) {
+    if (bytes < MIN_SAMPLE_BYTES || milliseconds <= 0) {
+      return;
+    }
+
+    checkNetwork();
+    double sample = bytes * 8.0 / milliseconds;
+    kilobitsPerSecond = samples == 0 ? sample
+        : SMOOTHING_FACTOR * sample + (1 - SMOOTHING_FACTOR) * kilobitsPerSecond;
+    samples++;
+  }
+
+  /**
+   * Returns the estimated throughput in kilobits per second or -1 if not enough downloads have
+   * been observed on the current network.
+   */
+  static synchronized double getKilobitsPerSecond() {
+    checkNetwork();
+    return samples >= MIN_SAMPLES ? kilobitsPerSecond : -1;
+  }
+
+  /**
+   * Returns the estimated quality of the network link.
+   */
+  static synchronized Quality getQuality() {
+    double estimate = getKilobitsPerSecond();
+    if (estimate < 0) {
+      return networkTypeQuality;
+    } else if (estimate < POOR_MAX_KILOBITS_PER_SECOND) {
+      return Quality.POOR;
+    } else if (estimate < GOOD_MIN_KILOBITS_PER_SECOND) {
+      return Quality.MODERATE;
+    }
+    return Quality.GOOD;
+  }
+
+  /**
+   * Reads the type of the active network, unless it has been read recently, and forgets the
+   * samples observed on another network, e.g., after switching from Wi-Fi to mobile.
+   */
+  private static void checkNetwork() {
+    long now = System.currentTimeMillis();
+    if (applicationContext == null
+        || now - networkCheckedAt < NETWORK_CHECK_INTERVAL_IN_MILLISECONDS) {
+      return;
+    }
+    networkCheckedAt = now;
+
+    ConnectivityManager connectivityManager =
+        (ConnectivityManager) applicationContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
+    int currentNetwork =
+        activeNetwork == null ? -1 : activeNetwork.getType() * 100 + activeNetwork.getSubtype();
+    if (currentNetwork != network) {
+      network = currentNetwork;
+      networkTypeQuality = getNetworkTypeQuality(activeNetwork);
+      samples = 0;
+    }
+  }
+
+  /**
+   * Returns the typical quality of the type of the network.
+   */
+  private static Quality getNetworkTypeQuality(NetworkInfo network) {
+    if (network == null || network.getType() != ConnectivityManager.TYPE_MOBILE) {
+      // Wi-Fi, Ethernet or WiMAX
+      return Quality.GOOD;
+    }
+
+    switch (network.getSubtype()) {
+      case TelephonyManager.NETWORK_TYPE_GPRS:
+      case TelephonyManager.NETWORK_TYPE_EDGE:
+      case TelephonyManager.NETWORK_TYPE_CDMA:
+      case TelephonyManager.NETWORK_TYPE_1xRTT:
+      case TelephonyManager.NETWORK_TYPE_IDEN:
+        return Quality.POOR;
+      case TelephonyManager.NETWORK_TYPE_LTE:
+        return Quality.GOOD;
+      default:
+        return Quality.MODERATE;
+    }
+  }
+}
@@ -18,6 +18,11 @@ import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
 import com.google.api.client.googleapis.services.GoogleClientRequestInitializer;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+
+import java.io.IOException;
 
 /**
  * Allows configuring Cloud Endpoint builders to support authenticated calls, as well as calls to
@@ -27,46 +32,115 @@ class CloudEndpointBuilderHelper {
   private static final boolean LOCAL_ANDROID_RUN = false;
   private static final String LOCAL_APP_ENGINE_SERVER_URL = "http://10.0.2.2:8888";
 
+  /**
+   * The JSON libraries bundled with the application that can parse and serialize the Cloud
+   * Endpoint payloads.
+   */
+  enum JsonLibrary {
+    JACKSON, JACKSON2, GSON
+  }
+
+  // JSON library used by all Cloud Endpoint clients; compare them with the JSON parsing benchmark
+  // in tools before changing it
+  private static final JsonLibrary JSON_LIBRARY = JsonLibrary.JACKSON2;
+
+  private static JsonFactory jsonFactory;
+
+  // root url that overrides the configured server, e.g., a stand-in server used by benchmarks
+  private static volatile String rootUrlOverride = null;
+
+  /**
+   * Connects all Cloud Endpoint builders updated from now on to the server at the root url, e.g.,
+   * to a local stand-in server.
+   *
+   * @param rootUrl the root url of the server, ending with "/", or null to connect to the
+   *        configured server again.
+   */
+  static void setRootUrl(String rootUrl) {
+    rootUrlOverride = rootUrl;
+  }
+
+  /**
+   * Returns the root url of the stand-in or local development server the Cloud Endpoint builders
+   * connect to, or null if they connect to the production server.
+   */
+  static String getStandInRootUrl() {
+    String rootUrl = rootUrlOverride;
+    if (rootUrl != null) {
+      return rootUrl;
+    }
+    return LOCAL_ANDROID_RUN ? LOCAL_APP_ENGINE_SERVER_URL + "/_ah/api/" : null;
+  }
+
   /**
    * Updates the Google client builder to connect the appropriate server based on whether
-   * LOCAL_ANDROID_RUN is true or false.
+   * LOCAL_ANDROID_RUN is true or false, and to compress the requests of each Cloud Endpoint and
+   * their responses as chosen by the {@link CompressionPolicy}.
    *
    * @param builder Google client builder
    * @return same Google client builder
    */
   public static <B extends AbstractGoogleClient.Builder> B updateBuilder(B builder) {
-    if (LOCAL_ANDROID_RUN) {
-      builder.setRootUrl(LOCAL_APP_ENGINE_SERVER_URL + "/_ah/api/");
+    String rootUrl = getStandInRootUrl();
+    if (rootUrl != null) {
+      builder.setRootUrl(rootUrl);
     }
 
-    // only enable GZip when connecting to remote server
-    final boolean enableGZip = builder.getRootUrl().startsWith("https:");
+    // requests are only compressed when connecting to remote server
+    final boolean secure = builder.getRootUrl().startsWith("https:");
 
     builder.setGoogleClientRequestInitializer(new GoogleClientRequestInitializer() {
       @Override
       public void initialize(AbstractGoogleClientRequest<?> request) {
-        if (!enableGZip) {
-          request.setDisableGZipContent(true);
-        }
+        CompressionPolicy.apply(request, secure);
       }
     });
 
     return builder;
   }
 
+  /**
+   * Returns the JSON factory to build Cloud Endpoint clients with. The factory is thread-safe and
+   * shared by all clients, and measures the payloads for the {@link CompressionPolicy}.
+   */
+  static synchronized JsonFactory getJsonFactory() {
+    if (jsonFactory == null) {
+      jsonFactory = CompressionPolicy.meter(newJsonFactory(JSON_LIBRARY));
+    }
+    return jsonFactory;
+  }
+
+  /**
+   * Creates a JSON factory backed by the JSON library.
+   */
+  static JsonFactory newJsonFactory(JsonLibrary library) {
+    switch (library) {
+      case JACKSON:
+        return new JacksonFactory();
+      case GSON:
+        return new GsonFactory();
+      default:
+        return new com.google.api.client.json.jackson2.JacksonFactory();
+    }
+  }
+
   /**
    * Returns appropriate HttpRequestInitializer depending whether the application is configured to
-   * require users to be signed in or not.
+   * require users to be signed in or not. Responses larger than the {@link CompressionPolicy}
+   * allows are rejected.
    */
   static HttpRequestInitializer getRequestInitializer() {
-    if (SignInActivity.SIGN_IN_REQUIRED) {
-      return SignInActivity.credential;
-    } else {
-      HttpRequestInitializer httpRequestInitializer = new HttpRequestInitializer() {
-        @Override
-        public void initialize(HttpRequest arg0) {}
-      };
-      return httpRequestInitializer;
-    }
+    final HttpRequestInitializer credential =
+        SignInActivity.SIGN_IN_REQUIRED ? SignInActivity.credential : null;
+    HttpRequestInitializer httpRequestInitializer = new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        if (credential != null) {
+          credential.initialize(request);
+        }
+        request.setResponseInterceptor(CompressionPolicy.getResponseInterceptor());
+      }
+    };
+    return httpRequestInitializer;
   }
 }
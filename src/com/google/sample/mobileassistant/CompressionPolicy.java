@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.JsonParser;
+
+import android.os.Debug;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Chooses, for every Cloud Endpoint, whether its requests and responses are gzip-compressed, from
+ * the payload sizes and decoding costs measured on the device, and protects the application from
+ * oversized responses.
+ *
+ * Responses are compressed unless the measurements show that it doesn't pay: if they are
+ * smaller than {@link #MIN_COMPRESSED_RESPONSE_BYTES} on average, or if the CPU time spent
+ * inflating them exceeds the transfer time the compression saves at the throughput estimated by
+ * the {@link BandwidthEstimator}. Every {@link #PROBE_INTERVAL}th request of an endpoint uses the
+ * other choice, so the costs of both keep being measured. The CPU time is measured in nanoseconds,
+ * as decoding a small response takes less than a millisecond. Request bodies are compressed when
+ * the server is reached over https (the local development server doesn't accept compressed
+ * requests), until {@link #MIN_SAMPLES} of them have been measured, and then only if they are at
+ * least {@link #MIN_COMPRESSED_REQUEST_BYTES} on average.
+ *
+ * Responses larger than {@link #MAX_RESPONSE_BYTES} are rejected: by their Content-Length before
+ * the body is read or, for compressed and chunked responses, while the body is being parsed.
+ *
+ * The statistics of each endpoint are added to the {@link Telemetry} counters and summarized by
+ * {@link #toSummary()}. Can be called on any thread.
+ */
+final class CompressionPolicy {
+  private static final Logger log = Logger.getLogger(CompressionPolicy.class.getName());
+
+  // counters, prefixed with the name of the endpoint
+  static final String RESPONSES = "compression.responses";
+  static final String COMPRESSED_RESPONSES = "compression.compressedResponses";
+  static final String WIRE_BYTES = "compression.wireBytes";
+  static final String DECODED_BYTES = "compression.decodedBytes";
+  static final String DECODE_CPU_MICROSECONDS = "compression.decodeCpuUs";
+  static final String REQUEST_BYTES = "compression.requestBytes";
+  static final String OVERSIZED_RESPONSES = "compression.oversizedResponses";
+
+  private static final int MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+  private static final int MIN_COMPRESSED_RESPONSE_BYTES = 1024;
+  private static final int MIN_COMPRESSED_REQUEST_BYTES = 1024;
+  private static final int MIN_SAMPLES = 4;
+  private static final int PROBE_INTERVAL = 16;
+
+  private static final Map<Class<?>, Stats> stats = new HashMap<Class<?>, Stats>();
+
+  // the endpoint of the request executed by the calling thread
+  private static final ThreadLocal<Class<?>> currentEndpoint = new ThreadLocal<Class<?>>();
+
+  // the response received by the calling thread, until its body is parsed
+  private static final ThreadLocal<Response> currentResponse = new ThreadLocal<Response>();
+
+  private static final HttpResponseInterceptor responseInterceptor =
+      new HttpResponseInterceptor() {
+        @Override
+        public void interceptResponse(HttpResponse response) throws IOException {
+          Class<?> endpoint = currentEndpoint.get();
+          Long contentLength = response.getHeaders().getContentLength();
+          if (contentLength != null && contentLength > MAX_RESPONSE_BYTES) {
+            // the body is not read
+            response.disconnect();
+            rejectOversized(endpoint, response.getRequest(), contentLength);
+          }
+
+          if (endpoint != null && response.isSuccessStatusCode()) {
+            String encoding = response.getContentEncoding();
+            currentResponse.set(new Response(getStats(endpoint),
+                encoding != null && encoding.contains("gzip"),
+                contentLength != null ? contentLength : -1));
+          }
+        }
+      };
+
+  private CompressionPolicy() {}
+
+  /**
+   * Sets the compression of the request and of its response, e.g., when the request is
+   * initialized by its client.
+   *
+   * @param request the Cloud Endpoint request
+   * @param secure true if the server is reached over https
+   */
+  static void apply(AbstractGoogleClientRequest<?> request, boolean secure) {
+    boolean compressResponse;
+    boolean compressRequest;
+    Stats endpoint = getStats(request.getClass());
+    synchronized (CompressionPolicy.class) {
+      compressResponse = endpoint.compressResponses;
+      if (++endpoint.requestsSinceProbe >= PROBE_INTERVAL) {
+        endpoint.requestsSinceProbe = 0;
+        compressResponse = !compressResponse;
+      }
+      // the request bodies are compressed, as by default, until enough of them are measured
+      compressRequest = secure && (endpoint.requestBodies < MIN_SAMPLES
+          || endpoint.requestBytes / endpoint.requestBodies >= MIN_COMPRESSED_REQUEST_BYTES);
+    }
+
+    request.getRequestHeaders().setAcceptEncoding(compressResponse ? "gzip" : "identity");
+    request.setDisableGZipContent(!compressRequest);
+  }
+
+  /**
+   * Sets the endpoint of the requests executed by the calling thread from now on, so their
+   * payloads are measured for it. Also forgets a response of an earlier request that hasn't been
+   * parsed.
+   *
+   * @param endpoint the class of the Cloud Endpoint request, or null
+   * @return the endpoint set before, to be restored once the request completed
+   */
+  static Class<?> setCurrentEndpoint(Class<?> endpoint) {
+    Class<?> previous = currentEndpoint.get();
+    currentEndpoint.set(endpoint);
+    currentResponse.remove();
+    return previous;
+  }
+
+  /**
+   * Returns a response interceptor that rejects oversized responses and prepares the
+   * measurement of the response of Cloud Endpoint requests.
+   */
+  static HttpResponseInterceptor getResponseInterceptor() {
+    return responseInterceptor;
+  }
+
+  private static void rejectOversized(Class<?> endpoint, HttpRequest request, long bytes)
+      throws IOException {
+    if (endpoint != null) {
+      Telemetry.add(getCounterName(endpoint, OVERSIZED_RESPONSES), 1);
+    }
+    String url = request != null ? request.getUrl().build() : Telemetry.getName(endpoint);
+    throw new IOException("Response of " + bytes + " bytes from " + url + " exceeds "
+        + MAX_RESPONSE_BYTES + " bytes");
+  }
+
+  /**
+   * Returns a JSON factory that measures the payloads the other factory parses and serializes for
+   * Cloud Endpoint requests, and aborts the parsing of oversized responses.
+   */
+  static JsonFactory meter(JsonFactory jsonFactory) {
+    return new MeteredJsonFactory(jsonFactory);
+  }
+
+  private static synchronized Stats getStats(Class<?> endpoint) {
+    Stats endpointStats = stats.get(endpoint);
+    if (endpointStats == null) {
+      endpointStats = new Stats(endpoint);
+      stats.put(endpoint, endpointStats);
+    }
+    return endpointStats;
+  }
+
+  private static String getCounterName(Class<?> endpoint, String counter) {
+    return Telemetry.getName(endpoint) + "." + counter;
+  }
+
+  /**
+   * Records a parsed response and chooses again whether responses of its endpoint are compressed.
+   */
+  private static void recordResponse(Response response, long decodedBytes, long cpuNanoseconds) {
+    Stats endpoint = response.stats;
+    boolean compressResponses;
+    boolean changed;
+    synchronized (CompressionPolicy.class) {
+      endpoint.responses++;
+      endpoint.decodedBytes += decodedBytes;
+      if (response.compressed) {
+        endpoint.compressedResponses++;
+        endpoint.compressedDecodedBytes += decodedBytes;
+        endpoint.compressedCpuNanoseconds += cpuNanoseconds;
+        if (response.wireBytes >= 0) {
+          endpoint.ratioWireBytes += response.wireBytes;
+          endpoint.ratioDecodedBytes += decodedBytes;
+        }
+      } else {
+        endpoint.identityDecodedBytes += decodedBytes;
+        endpoint.identityCpuNanoseconds += cpuNanoseconds;
+      }
+
+      compressResponses = shouldCompressResponses(endpoint);
+      changed = compressResponses != endpoint.compressResponses;
+      endpoint.compressResponses = compressResponses;
+    }
+
+    Class<?> key = endpoint.endpoint;
+    Telemetry.add(getCounterName(key, RESPONSES), 1);
+    Telemetry.add(getCounterName(key, DECODED_BYTES), decodedBytes);
+    Telemetry.add(getCounterName(key, DECODE_CPU_MICROSECONDS), cpuNanoseconds / 1000);
+    Telemetry.add(getCounterName(key, WIRE_BYTES),
+        response.wireBytes >= 0 ? response.wireBytes : decodedBytes);
+    if (response.compressed) {
+      Telemetry.add(getCounterName(key, COMPRESSED_RESPONSES), 1);
+    }
+    if (changed) {
+      log.info((compressResponses ? "Compressing" : "Not compressing") + " responses of "
+          + Telemetry.getName(key) + ": " + toSummary());
+    }
+  }
+
+  /**
+   * Returns true if compressing the responses of the endpoint saves more transfer time than
+   * inflating them costs, or if that is not known yet.
+   */
+  private static boolean shouldCompressResponses(Stats endpoint) {
+    if (endpoint.responses < MIN_SAMPLES) {
+      return true;
+    }
+    long averageBytes = endpoint.decodedBytes / endpoint.responses;
+    if (averageBytes < MIN_COMPRESSED_RESPONSE_BYTES) {
+      return false;
+    }
+
+    double kilobitsPerSecond = BandwidthEstimator.getKilobitsPerSecond();
+    if (endpoint.ratioDecodedBytes == 0 || endpoint.identityDecodedBytes == 0
+        || endpoint.compressedDecodedBytes == 0 || kilobitsPerSecond <= 0) {
+      return true;
+    }
+
+    double ratio = (double) endpoint.ratioWireBytes / endpoint.ratioDecodedBytes;
+    // kilobits per second are bits per millisecond
+    double savedMilliseconds = averageBytes * (1 - ratio) * 8 / kilobitsPerSecond;
+    double inflateNanosecondsPerByte =
+        (double) endpoint.compressedCpuNanoseconds / endpoint.compressedDecodedBytes
+            - (double) endpoint.identityCpuNanoseconds / endpoint.identityDecodedBytes;
+    return savedMilliseconds * 1000000 > averageBytes * inflateNanosecondsPerByte;
+  }
+
+  /**
+   * Returns the CPU time of the calling thread in nanoseconds, or the elapsed time on devices that
+   * don't measure it, which overestimates the decoding costs.
+   */
+  private static long getThreadCpuTime() {
+    long cpuTime = Debug.threadCpuTimeNanos();
+    return cpuTime >= 0 ? cpuTime : System.nanoTime();
+  }
+
+  private static synchronized void recordRequestBody(Class<?> endpoint) {
+    getStats(endpoint).requestBodies++;
+  }
+
+  private static synchronized void recordRequestBytes(Class<?> endpoint, int bytes) {
+    getStats(endpoint).requestBytes += bytes;
+    Telemetry.add(getCounterName(endpoint, REQUEST_BYTES), bytes);
+  }
+
+  /**
+   * Returns the average sizes of the requests and responses of every endpoint, the compression
+   * ratio and whether its responses are compressed.
+   */
+  static synchronized String toSummary() {
+    StringBuilder summary = new StringBuilder();
+    for (Stats endpoint : stats.values()) {
+      if (summary.length() > 0) {
+        summary.append(' ');
+      }
+      summary.append(Telemetry.getName(endpoint.endpoint)).append("=[");
+      if (endpoint.requestBodies > 0) {
+        summary.append("request=").append(endpoint.requestBytes / endpoint.requestBodies)
+            .append("B ");
+      }
+      if (endpoint.responses > 0) {
+        summary.append("response=").append(endpoint.decodedBytes / endpoint.responses)
+            .append("B ");
+      }
+      if (endpoint.ratioDecodedBytes > 0) {
+        summary.append("ratio=")
+            .append(endpoint.ratioWireBytes * 100 / endpoint.ratioDecodedBytes).append("% ");
+      }
+      summary.append(endpoint.compressResponses ? "gzip" : "identity").append(']');
+    }
+    return summary.toString();
+  }
+
+  /**
+   * The payloads measured for an endpoint and the current choice for its responses. Guarded by
+   * the CompressionPolicy class.
+   */
+  private static class Stats {
+    final Class<?> endpoint;
+    boolean compressResponses = true;
+    int requestsSinceProbe;
+
+    long requestBodies;
+    long requestBytes;
+
+    long responses;
+    long decodedBytes;
+    long compressedResponses;
+    long compressedDecodedBytes;
+    long compressedCpuNanoseconds;
+    long identityDecodedBytes;
+    long identityCpuNanoseconds;
+    // compressed responses with a known Content-Length
+    long ratioWireBytes;
+    long ratioDecodedBytes;
+
+    Stats(Class<?> endpoint) {
+      this.endpoint = endpoint;
+    }
+  }
+
+  /**
+   * A response received for a Cloud Endpoint request, whose body hasn't been parsed yet.
+   */
+  private static class Response {
+    final Stats stats;
+    final boolean compressed;
+    final long wireBytes;
+
+    Response(Stats stats, boolean compressed, long wireBytes) {
+      this.stats = stats;
+      this.compressed = compressed;
+      this.wireBytes = wireBytes;
+    }
+  }
+
+  /**
+   * Stream over the decoded body of a response that counts its bytes and the CPU time of the
+   * calling thread until the end of the body, and fails once the body exceeds
+   * {@link #MAX_RESPONSE_BYTES}.
+   */
+  private static class MeteredInputStream extends FilterInputStream {
+    private final Response response;
+    private final long startCpuTime = getThreadCpuTime();
+    private long bytes;
+    private boolean recorded;
+
+    MeteredInputStream(InputStream in, Response response) {
+      super(in);
+      this.response = response;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      count(b == -1 ? -1 : 1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      count(read);
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      record();
+      super.close();
+    }
+
+    private void count(int read) throws IOException {
+      if (read == -1) {
+        record();
+        return;
+      }
+      bytes += read;
+      if (bytes > MAX_RESPONSE_BYTES) {
+        recorded = true;
+        rejectOversized(response.stats.endpoint, null, bytes);
+      }
+    }
+
+    private void record() {
+      if (!recorded) {
+        recorded = true;
+        recordResponse(response, bytes, getThreadCpuTime() - startCpuTime);
+      }
+    }
+  }
+
+  /**
+   * Stream under the serialized body of a request that counts its bytes.
+   */
+  private static class MeteredOutputStream extends FilterOutputStream {
+    private final Class<?> endpoint;
+
+    MeteredOutputStream(OutputStream out, Class<?> endpoint) {
+      super(out);
+      this.endpoint = endpoint;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      recordRequestBytes(endpoint, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      out.write(buffer, offset, length);
+      recordRequestBytes(endpoint, length);
+    }
+  }
+
+  /**
+   * JSON factory that meters the streams of the Cloud Endpoint payloads it parses and serializes
+   * on the thread executing the request, and delegates everything else.
+   */
+  private static class MeteredJsonFactory extends JsonFactory {
+    private final JsonFactory delegate;
+
+    MeteredJsonFactory(JsonFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public JsonParser createJsonParser(InputStream in) throws IOException {
+      return delegate.createJsonParser(meter(in));
+    }
+
+    @Override
+    public JsonParser createJsonParser(InputStream in, Charset charset) throws IOException {
+      return delegate.createJsonParser(meter(in), charset);
+    }
+
+    @Override
+    public JsonParser createJsonParser(String value) throws IOException {
+      return delegate.createJsonParser(value);
+    }
+
+    @Override
+    public JsonParser createJsonParser(Reader reader) throws IOException {
+      return delegate.createJsonParser(reader);
+    }
+
+    @Override
+    public JsonGenerator createJsonGenerator(OutputStream out, Charset encoding)
+        throws IOException {
+      Class<?> endpoint = currentEndpoint.get();
+      if (endpoint == null) {
+        return delegate.createJsonGenerator(out, encoding);
+      }
+      recordRequestBody(endpoint);
+      return delegate.createJsonGenerator(new MeteredOutputStream(out, endpoint), encoding);
+    }
+
+    @Override
+    public JsonGenerator createJsonGenerator(Writer writer) throws IOException {
+      return delegate.createJsonGenerator(writer);
+    }
+
+    private static InputStream meter(InputStream in) {
+      Response response = currentResponse.get();
+      if (response == null) {
+        return in;
+      }
+      currentResponse.remove();
+      return new MeteredInputStream(in, response);
+    }
+  }
+}
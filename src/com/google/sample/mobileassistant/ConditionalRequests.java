@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.GenericData;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Remembers the validators (ETag and Last-Modified) of responses together with their bodies, so a
+ * response that expired from the caches of the application can be revalidated instead of being
+ * downloaded again: the validators are sent with the next request for the same url and, if the
+ * server answers "304 Not Modified" without a body, the remembered body is reused.
+ *
+ * Used for Cloud Endpoint responses through {@link #execute(AbstractGoogleClientRequest)} and for
+ * encoded images by {@link ImageCache#download(String)}. Can be called on any thread.
+ */
+final class ConditionalRequests {
+  static final SizedCache<String, Entry> entries = new SizedCache<String, Entry>() {
+    @Override
+    int sizeOf(Entry entry) {
+      return entry.sizeInBytes;
+    }
+  };
+
+  // the last request executed by each thread, if it was answered "304 Not Modified"
+  private static final ThreadLocal<AbstractGoogleClientRequest<?>> lastNotModified =
+      new ThreadLocal<AbstractGoogleClientRequest<?>>();
+
+  private static long revalidations = 0;
+  private static long notModified = 0;
+  private static long bytesSaved = 0;
+
+  /**
+   * Validators of a response together with its body.
+   */
+  static class Entry {
+    final String eTag;
+    final String lastModified;
+    final Object body;
+    final int sizeInBytes;
+
+    Entry(String eTag, String lastModified, Object body, int sizeInBytes) {
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+      this.body = body;
+      this.sizeInBytes = sizeInBytes;
+    }
+  }
+
+  private ConditionalRequests() {}
+
+  /**
+   * Forgets all remembered responses.
+   */
+  static void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the remembered response for the url or null if there is none.
+   */
+  static Entry get(String url) {
+    return entries.get(url);
+  }
+
+  /**
+   * Remembers the response for the url, unless it carries no validators.
+   *
+   * @param url the url of the request
+   * @param eTag the value of the ETag header of the response or null
+   * @param lastModified the value of the Last-Modified header of the response or null
+   * @param body the body, e.g., the parsed JSON object or the encoded image
+   * @param sizeInBytes the size of the body on the wire, i.e., the bytes a revalidation saves
+   */
+  static void put(String url, String eTag, String lastModified, Object body, int sizeInBytes) {
+    if (eTag == null && lastModified == null) {
+      entries.remove(url);
+      return;
+    }
+    entries.put(url, new Entry(eTag, lastModified, body, sizeInBytes));
+  }
+
+  /**
+   * Sets the request headers that make the request conditional on the remembered response.
+   */
+  static void setValidators(Entry entry, HttpURLConnection connection) {
+    if (entry.eTag != null) {
+      connection.setRequestProperty("If-None-Match", entry.eTag);
+    }
+    if (entry.lastModified != null) {
+      connection.setRequestProperty("If-Modified-Since", entry.lastModified);
+    }
+  }
+
+  /**
+   * Executes the Cloud Endpoint request, conditionally if a response has been remembered for its
+   * url.
+   *
+   * @return the parsed response, or a copy of the remembered one if the server answered "304 Not
+   *         Modified"
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T execute(AbstractGoogleClientRequest<T> request) throws IOException {
+    String url = request.buildHttpRequestUrl().build();
+    Entry entry = entries.get(url);
+    if (entry != null) {
+      request.getRequestHeaders()
+          .setIfNoneMatch(entry.eTag)
+          .setIfModifiedSince(entry.lastModified);
+    }
+
+    lastNotModified.remove();
+    T response;
+    try {
+      response = NetworkDispatcher.execute(request);
+    } catch (HttpResponseException e) {
+      if (entry != null && e.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        lastNotModified.set(request);
+        recordRevalidation(url, true, entry.sizeInBytes);
+        return (T) copy(entry.body);
+      }
+      throw e;
+    }
+
+    if (entry != null) {
+      recordRevalidation(url, false, 0);
+    }
+    HttpHeaders headers = request.getLastResponseHeaders();
+    Long length = headers.getContentLength();
+    put(url, headers.getETag(), headers.getLastModified(), copy(response),
+        length != null ? length.intValue() : MemoryGovernor.estimateSize(response));
+    return response;
+  }
+
+  /**
+   * Returns true if the request, the last one executed by the calling thread through
+   * {@link #execute(AbstractGoogleClientRequest)}, was answered "304 Not Modified". The client
+   * library reports a 304 as an exception, before the status code and headers of the request are
+   * set.
+   */
+  static boolean wasNotModified(AbstractGoogleClientRequest<?> request) {
+    return lastNotModified.get() == request;
+  }
+
+  /**
+   * Returns a deep copy of a parsed response, so the remembered one isn't changed by its callers,
+   * e.g., when following pages are appended to it or a delta is applied to it.
+   */
+  private static Object copy(Object body) {
+    return body instanceof GenericData ? ((GenericData) body).clone() : body;
+  }
+
+  /**
+   * Records the outcome of a conditional request.
+   *
+   * @param url the url of the request
+   * @param wasNotModified true if the server answered "304 Not Modified"
+   * @param savedBytes the size of the body that didn't have to be downloaded
+   */
+  static void recordRevalidation(String url, boolean wasNotModified, int savedBytes) {
+    synchronized (ConditionalRequests.class) {
+      revalidations++;
+      if (wasNotModified) {
+        notModified++;
+        bytesSaved += savedBytes;
+      }
+    }
+    Telemetry.add(Telemetry.REVALIDATIONS, 1);
+    if (wasNotModified) {
+      Telemetry.add(Telemetry.NOT_MODIFIED, 1);
+      Telemetry.add(Telemetry.BYTES_SAVED, savedBytes);
+    }
+    Tracer.record(wasNotModified ? Tracer.NOT_MODIFIED : Tracer.MODIFIED, url, null, 0,
+        wasNotModified ? savedBytes : -1, null);
+  }
+
+  /**
+   * Returns the number of conditional requests sent.
+   */
+  static synchronized long getRevalidations() {
+    return revalidations;
+  }
+
+  /**
+   * Returns the number of conditional requests answered with "304 Not Modified".
+   */
+  static synchronized long getNotModified() {
+    return notModified;
+  }
+
+  /**
+   * Returns the body bytes that didn't have to be downloaded thanks to revalidation.
+   */
+  static synchronized long getBytesSaved() {
+    return bytesSaved;
+  }
+
+  /**
+   * Returns the revalidation counters.
+   */
+  static synchronized String toSummary() {
+    return "revalidations=" + revalidations + " notModified=" + notModified + " bytesSaved="
+        + bytesSaved;
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.Builder;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.OfferEndpoint;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.PlaceEndpoint;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.RecommendationEndpoint;
+import com.google.sample.mobileassistant.shoppingassistant.model.Offer;
+import com.google.sample.mobileassistant.shoppingassistant.model.OfferCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfoCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.Recommendation;
+import com.google.sample.mobileassistant.shoppingassistant.model.RecommendationCollection;
+
+import android.content.Context;
+import android.location.Location;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Holds the lists of nearby places, offers and recommendations outside of the activities that
+ * display them, so that in-flight and completed requests survive configuration changes and are
+ * reused by new activity instances. All methods must be called on the main thread.
+ */
+final class DataRepository {
+  // number of places retrieved per page and the radius of the nearby places search
+  static final int PLACES_PAGE_SIZE = 10;
+  static final long PLACES_DISTANCE_IN_KM = 50;
+
+  // number of offers retrieved per page
+  static final int OFFERS_PAGE_SIZE = 10;
+
+  private static Context applicationContext;
+
+  private DataRepository() {}
+
+  /**
+   * Initializes the repository with the application context used by background work.
+   *
+   * @param context any context of the application.
+   */
+  static void initialize(Context context) {
+    if (applicationContext == null) {
+      applicationContext = context.getApplicationContext();
+    }
+  }
+
+  /**
+   * Forgets all retrieved lists, cached place data and images, the responses remembered for
+   * revalidation, the local copies kept for delta sync, the search index and the snapshot of the
+   * lists, e.g., to measure loading the screens from scratch.
+   */
+  static void clear() {
+    places.clear();
+    offers.clear();
+    recommendations.clear();
+    PlaceDataCache.clear();
+    ImageCache.clear();
+    ConditionalRequests.clear();
+    DeltaSync.clear();
+    SearchIndex.clear();
+    Snapshot.clear();
+  }
+
+  /**
+   * The list of places near a location. A null location is sent as a default location.
+   */
+  static final RetainedList<Location, PlaceInfoCollection, PlaceInfo> places =
+      new RetainedList<Location, PlaceInfoCollection, PlaceInfo>("places") {
+        @Override
+        String getKey(Location location) {
+          if (location == null) {
+            return "?";
+          }
+          return (float) location.getLatitude() + "," + (float) location.getLongitude();
+        }
+
+        @Override
+        PlaceInfoCollection fetch(Location location, String pageToken) throws IOException {
+          return ConditionalRequests.execute(newPlacesRequest(location, pageToken));
+        }
+
+        @Override
+        List<PlaceInfo> getItems(PlaceInfoCollection page) {
+          return page.getItems();
+        }
+
+        @Override
+        PlaceInfoCollection getStale(Location location) {
+          // the places of the last session, wherever they were retrieved, until the ones near the
+          // current location arrive; a refresh keeps displaying the current places instead
+          return isRetrievedOrLoading() ? null : Snapshot.getPlaces();
+        }
+
+        @Override
+        void onFirstPageRetrieved(Location location, PlaceInfoCollection page) {
+          Snapshot.putPlaces(page);
+
+          // most likely the user is going to select one of the closest places
+          if (applicationContext != null) {
+            PlaceDataPrefetcher.prefetch(applicationContext, page.getItems());
+          }
+        }
+      };
+
+  /**
+   * The list of offers for a place.
+   */
+  static final RetainedList<PlaceInfo, OfferCollection, Offer> offers =
+      new RetainedList<PlaceInfo, OfferCollection, Offer>("offers") {
+        @Override
+        String getKey(PlaceInfo place) {
+          return place.getPlaceId();
+        }
+
+        @Override
+        OfferCollection fetch(PlaceInfo place, String pageToken) throws IOException {
+          OfferEndpoint.List request = newOffersRequest(place.getPlaceId(), pageToken);
+          if (pageToken == null) {
+            return offerDeltas.fetch(place.getPlaceId(), request);
+          }
+          return ConditionalRequests.execute(request);
+        }
+
+        @Override
+        List<Offer> getItems(OfferCollection page) {
+          return page.getItems();
+        }
+
+        @Override
+        OfferCollection getCached(PlaceInfo place) {
+          // offers for nearby places are usually prefetched
+          return PlaceDataCache.getOffers(place.getPlaceId());
+        }
+
+        @Override
+        OfferCollection getStale(PlaceInfo place) {
+          return Snapshot.getOffers(place.getPlaceId());
+        }
+
+        @Override
+        void onFirstPageRetrieved(PlaceInfo place, OfferCollection page) {
+          PlaceDataCache.putOffers(place.getPlaceId(), page);
+          Snapshot.putOffers(place.getPlaceId(), page);
+          SearchIndex.putOffers(place, page.getItems(), true);
+        }
+
+        @Override
+        void onNextPageRetrieved(PlaceInfo place, OfferCollection page) {
+          offerDeltas.onNextPageRetrieved(place.getPlaceId(), page, getItems());
+          SearchIndex.putOffers(place, page.getItems(), false);
+        }
+      };
+
+  /**
+   * The list of recommendations for a place.
+   */
+  static final RetainedList<PlaceInfo, RecommendationCollection, Recommendation> recommendations =
+      new RetainedList<PlaceInfo, RecommendationCollection, Recommendation>("recommendations") {
+        @Override
+        String getKey(PlaceInfo place) {
+          return place.getPlaceId();
+        }
+
+        @Override
+        RecommendationCollection fetch(PlaceInfo place, String pageToken) throws IOException {
+          return recommendationDeltas.fetch(
+              place.getPlaceId(), newRecommendationsRequest(place.getPlaceId()));
+        }
+
+        @Override
+        List<Recommendation> getItems(RecommendationCollection page) {
+          return page.getItems();
+        }
+
+        @Override
+        RecommendationCollection getCached(PlaceInfo place) {
+          // recommendations for nearby places are usually prefetched
+          return PlaceDataCache.getRecommendations(place.getPlaceId());
+        }
+
+        @Override
+        RecommendationCollection getStale(PlaceInfo place) {
+          return Snapshot.getRecommendations(place.getPlaceId());
+        }
+
+        @Override
+        void onFirstPageRetrieved(PlaceInfo place, RecommendationCollection page) {
+          PlaceDataCache.putRecommendations(place.getPlaceId(), page);
+          Snapshot.putRecommendations(place.getPlaceId(), page);
+          SearchIndex.putRecommendations(place, page.getItems());
+        }
+      };
+
+  /**
+   * The local copies of the offers of places, refreshed with the changes since their version.
+   */
+  static final DeltaSync<OfferCollection, Offer> offerDeltas =
+      new DeltaSync<OfferCollection, Offer>("offers") {
+        @Override
+        List<Offer> getItems(OfferCollection collection) {
+          return collection.getItems();
+        }
+
+        @Override
+        OfferCollection newCollection(List<Offer> items) {
+          return new OfferCollection().setItems(items);
+        }
+
+        @Override
+        String getId(Offer offer) {
+          return offer.getOfferId();
+        }
+      };
+
+  /**
+   * The local copies of the recommendations of places, refreshed with the changes since their
+   * version. Recommendations are identified by their title.
+   */
+  static final DeltaSync<RecommendationCollection, Recommendation> recommendationDeltas =
+      new DeltaSync<RecommendationCollection, Recommendation>("recommendations") {
+        @Override
+        List<Recommendation> getItems(RecommendationCollection collection) {
+          return collection.getItems();
+        }
+
+        @Override
+        RecommendationCollection newCollection(List<Recommendation> items) {
+          return new RecommendationCollection().setItems(items);
+        }
+
+        @Override
+        String getId(Recommendation recommendation) {
+          return recommendation.getTitle();
+        }
+      };
+
+  /**
+   * Creates the request for a page of up to PLACES_PAGE_SIZE places within PLACES_DISTANCE_IN_KM
+   * kms of the location. Can be called on any thread.
+   *
+   * @param location the location or null for a default location
+   * @param pageToken the token of the page or null for the first page
+   */
+  static PlaceEndpoint.List newPlacesRequest(Location location, String pageToken)
+      throws IOException {
+    float longitude;
+    float latitude;
+
+    if (location == null) {
+      // TODO(user): Remove this temporary code and just return null
+      longitude = (float) -122.12151;
+      latitude = (float) 47.67399;
+    } else {
+      latitude = (float) location.getLatitude();
+      longitude = (float) location.getLongitude();
+    }
+
+    PlaceEndpoint placeEndpoint = newEndpoint().placeEndpoint();
+
+    PlaceEndpoint.List request = placeEndpoint.list(PLACES_PAGE_SIZE, PLACES_DISTANCE_IN_KM,
+        Float.toString(latitude), Float.toString(longitude));
+    if (pageToken != null) {
+      request.set(ListPager.PAGE_TOKEN_PARAMETER, pageToken);
+    }
+    return request;
+  }
+
+  /**
+   * Creates the request for a page of up to OFFERS_PAGE_SIZE offers of the place. Can be called on
+   * any thread.
+   *
+   * @param placeId the id of the place
+   * @param pageToken the token of the page or null for the first page
+   */
+  static OfferEndpoint.List newOffersRequest(String placeId, String pageToken)
+      throws IOException {
+    OfferEndpoint offerEndpoint = newEndpoint().offerEndpoint();
+
+    OfferEndpoint.List request = offerEndpoint.list(placeId);
+    request.set(ListPager.PAGE_SIZE_PARAMETER, OFFERS_PAGE_SIZE);
+    if (pageToken != null) {
+      request.set(ListPager.PAGE_TOKEN_PARAMETER, pageToken);
+    }
+    return request;
+  }
+
+  /**
+   * Creates the request for the recommendations of the place. Can be called on any thread.
+   */
+  static RecommendationEndpoint.List newRecommendationsRequest(String placeId)
+      throws IOException {
+    return newEndpoint().recommendationEndpoint().list(placeId);
+  }
+
+  /**
+   * Creates the Mobile Assistant API client.
+   */
+  static Shoppingassistant newEndpoint() {
+    Builder endpointBuilder = new Shoppingassistant.Builder(
+        AndroidHttp.newCompatibleTransport(), CloudEndpointBuilderHelper.getJsonFactory(),
+        CloudEndpointBuilderHelper.getRequestInitializer());
+
+    return CloudEndpointBuilderHelper.updateBuilder(endpointBuilder).build();
+  }
+}
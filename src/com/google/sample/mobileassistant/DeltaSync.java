@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.GenericJson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a local copy of the list of a place, e.g., its offers, together with the version of the
+ * list on the server, and retrieves only the changes since that version when the list is
+ * requested again, so refreshes download in proportion to what changed rather than to the size
+ * of the list.
+ *
+ * The version is read from the {@link #VERSION_FIELD} field of the responses and sent back as
+ * the {@link #SINCE_VERSION_PARAMETER} query parameter. A response to such a request that has
+ * the {@link #DELTA_FIELD} field set holds only the inserted and updated items, and the ids of
+ * the deleted items in the {@link #DELETED_IDS_FIELD} field; it is applied to the local copy,
+ * and the complete list is returned as a single page. Backends that don't support versions
+ * simply return the complete list, which replaces the local copy.
+ *
+ * Only complete lists are kept: a paged list once its last page has been retrieved, with the
+ * version of its first page. Can be called on any thread.
+ *
+ * @param <C> type of the collection returned by the Cloud Endpoint
+ * @param <T> type of the items in the list
+ */
+abstract class DeltaSync<C extends GenericJson, T> {
+  static final String SINCE_VERSION_PARAMETER = "sinceVersion";
+  static final String VERSION_FIELD = "version";
+  static final String DELTA_FIELD = "delta";
+  static final String DELETED_IDS_FIELD = "deletedIds";
+
+  // "name/place id" -> local copy, shared by all lists
+  static final SizedCache<String, Copy> copies = new SizedCache<String, Copy>() {
+    @Override
+    int sizeOf(Copy copy) {
+      return copy.sizeInBytes;
+    }
+  };
+
+  private final String name;
+
+  /**
+   * Local copy of a list.
+   */
+  private static class Copy {
+    final String version;
+    final List<?> items;
+    final boolean complete;
+    final int sizeInBytes;
+
+    Copy(String version, List<?> items, boolean complete) {
+      this.version = version;
+      this.items = items;
+      this.complete = complete;
+      this.sizeInBytes = MemoryGovernor.estimateSize(items);
+    }
+  }
+
+  /**
+   * @constructor
+   *
+   * @param name the name of the list, e.g., "offers"
+   */
+  DeltaSync(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the items of a retrieved collection.
+   */
+  abstract List<T> getItems(C collection);
+
+  /**
+   * Returns a new collection holding the items.
+   */
+  abstract C newCollection(List<T> items);
+
+  /**
+   * Returns the id that identifies the item across versions.
+   */
+  abstract String getId(T item);
+
+  /**
+   * Forgets all local copies, so the lists are retrieved completely the next time.
+   */
+  static void clear() {
+    copies.clear();
+  }
+
+  /**
+   * Executes the request for the first page of the list of the place. If the list has been
+   * retrieved completely before, only the changes since then are requested; if the server
+   * rejects that request with a client error (4xx), the local copy is forgotten and the complete
+   * list is requested once. Other failures, e.g., timeouts, keep the local copy.
+   *
+   * @param placeId the id of the place
+   * @param request the request for the first page of the list
+   * @return the complete list, or its first page if the backend returned the list again
+   */
+  C fetch(String placeId, AbstractGoogleClientRequest<C> request) throws IOException {
+    String key = name + "/" + placeId;
+    Copy copy = copies.get(key);
+
+    C response;
+    if (copy != null && copy.complete) {
+      // a conditional request would never match, since the url carries the version
+      request.set(SINCE_VERSION_PARAMETER, copy.version);
+      try {
+        response = NetworkDispatcher.execute(request);
+      } catch (HttpResponseException e) {
+        if (e.getStatusCode() < 400 || e.getStatusCode() >= 500) {
+          // e.g., a server error; the copy is kept for the next delta request
+          throw e;
+        }
+        // the server rejected the version, e.g., it no longer knows it; the complete list is
+        // requested instead
+        copies.remove(key);
+        request.remove(SINCE_VERSION_PARAMETER);
+        return fetch(placeId, request);
+      }
+      if (Boolean.TRUE.equals(response.get(DELTA_FIELD))) {
+        return applyDelta(key, copy, response);
+      }
+    } else {
+      response = ConditionalRequests.execute(request);
+    }
+
+    String version = getVersion(response);
+    List<T> items = getItems(response);
+    if (version == null || items == null) {
+      copies.remove(key);
+    } else {
+      copies.put(key, new Copy(version, items, ListPager.getNextPageToken(response) == null));
+    }
+    return response;
+  }
+
+  /**
+   * Completes the local copy of the list of the place once its last page has been retrieved.
+   *
+   * @param placeId the id of the place
+   * @param page the retrieved page
+   * @param items all the items retrieved so far, including the page
+   */
+  void onNextPageRetrieved(String placeId, C page, List<T> items) {
+    String key = name + "/" + placeId;
+    Copy copy = copies.get(key);
+    if (copy != null && !copy.complete && ListPager.getNextPageToken(page) == null) {
+      copies.put(key, new Copy(copy.version, new ArrayList<T>(items), true));
+    }
+  }
+
+  /**
+   * Applies the inserted, updated and deleted items of the delta to the local copy. Updated items
+   * stay in place and inserted items are appended.
+   */
+  @SuppressWarnings("unchecked")
+  private C applyDelta(String key, Copy copy, C delta) {
+    Map<String, T> changedItems = new LinkedHashMap<String, T>();
+    List<T> deltaItems = getItems(delta);
+    if (deltaItems != null) {
+      for (T item : deltaItems) {
+        changedItems.put(getId(item), item);
+      }
+    }
+    Set<String> deletedIds = new HashSet<String>();
+    Object deleted = delta.get(DELETED_IDS_FIELD);
+    if (deleted instanceof Collection) {
+      for (Object id : (Collection<?>) deleted) {
+        deletedIds.add(String.valueOf(id));
+      }
+    }
+
+    List<T> items = new ArrayList<T>(copy.items.size() + changedItems.size());
+    for (Object item : copy.items) {
+      String id = getId((T) item);
+      T changedItem = changedItems.remove(id);
+      if (changedItem != null) {
+        items.add(changedItem);
+      } else if (!deletedIds.contains(id)) {
+        items.add((T) item);
+      }
+    }
+    items.addAll(changedItems.values());
+
+    String version = getVersion(delta);
+    copies.put(key, new Copy(version != null ? version : copy.version, items, true));
+    Tracer.record(Tracer.DELTA_APPLIED, name, key, 0, -1, null);
+
+    C collection = newCollection(Collections.unmodifiableList(items));
+    collection.set(VERSION_FIELD, version);
+    return collection;
+  }
+
+  private static String getVersion(GenericJson response) {
+    Object version = response.get(VERSION_FIELD);
+    return version != null ? version.toString() : null;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ListAdapter that is updated in place by diffing a new list of items against the current one by
+ * item key. Items that did not change keep their instances and their stable ids, so rows that are
+ * already bound to them are not rebound (and their images are not reloaded) when the list is
+ * refreshed. The ListView keeps its scroll position because the adapter is never replaced.
+ *
+ * @param <T> type of the items in the list
+ */
+abstract class DiffingListAdapter<T> extends BaseAdapter {
+  private final LayoutInflater inflater;
+  private final int itemLayoutResId;
+  private final String metricsName = getClass().getSimpleName();
+
+  private List<T> items = new ArrayList<T>();
+  private List<Long> itemIds = new ArrayList<Long>();
+  private Map<String, Long> stableIds = new HashMap<String, Long>();
+  private long nextStableId = 0;
+
+  /**
+   * @constructor
+   *
+   * @param context context used to inflate the row views
+   * @param itemLayoutResId the resource id of the layout used for each row
+   */
+  DiffingListAdapter(Context context, int itemLayoutResId) {
+    this.inflater = LayoutInflater.from(context);
+    this.itemLayoutResId = itemLayoutResId;
+  }
+
+  /**
+   * Returns the key that identifies the item across refreshes (e.g., the place id).
+   */
+  abstract String getItemKey(T item);
+
+  /**
+   * Binds the content of the item to the row view.
+   */
+  abstract void bindView(View view, T item);
+
+  /**
+   * Replaces the content of the adapter with a new list of items. Items are matched to the
+   * current ones by key and only inserts, removes and changes are applied; the ListView is only
+   * notified if at least one of them happened.
+   *
+   * @param newItems the new list of items; null is treated as an empty list.
+   * @return the number of inserted, removed, changed or moved items.
+   */
+  int update(List<T> newItems) {
+    if (newItems == null) {
+      newItems = new ArrayList<T>();
+    }
+
+    Map<String, Integer> oldPositions = new HashMap<String, Integer>();
+    for (int i = 0; i < items.size(); i++) {
+      oldPositions.put(getKey(items.get(i), i), i);
+    }
+
+    List<T> updatedItems = new ArrayList<T>(newItems.size());
+    List<Long> updatedIds = new ArrayList<Long>(newItems.size());
+    Map<String, Long> updatedStableIds = new HashMap<String, Long>();
+    int changes = 0;
+
+    for (int i = 0; i < newItems.size(); i++) {
+      T newItem = newItems.get(i);
+      String key = getKey(newItem, i);
+      if (updatedStableIds.containsKey(key)) {
+        // the backend returned the item twice, e.g., on two pages
+        continue;
+      }
+      Integer oldPosition = oldPositions.remove(key);
+      int position = updatedItems.size();
+
+      Long id;
+      if (oldPosition == null) {
+        // inserted
+        id = nextStableId++;
+        updatedItems.add(newItem);
+        changes++;
+      } else {
+        id = stableIds.get(key);
+        T oldItem = items.get(oldPosition);
+        if (oldItem.equals(newItem)) {
+          // unchanged, keep the instance so bound rows can be recognized in getView
+          updatedItems.add(oldItem);
+        } else {
+          updatedItems.add(newItem);
+          changes++;
+        }
+        if (oldPosition != position) {
+          changes++;
+        }
+      }
+      updatedIds.add(id);
+      updatedStableIds.put(key, id);
+    }
+
+    // whatever is left was removed
+    changes += oldPositions.size();
+
+    items = updatedItems;
+    itemIds = updatedIds;
+    stableIds = updatedStableIds;
+
+    if (changes > 0) {
+      notifyDataSetChanged();
+    }
+    return changes;
+  }
+
+  /**
+   * Returns the name the {@link FrameMetrics} of the list are reported under.
+   */
+  String getMetricsName() {
+    return metricsName;
+  }
+
+  /**
+   * Returns the current list of items.
+   */
+  List<T> getItems() {
+    return items;
+  }
+
+  private String getKey(T item, int position) {
+    String key = getItemKey(item);
+    // items without a key can't be matched, so they are always treated as changed
+    return key != null ? key : "#" + position + "#" + System.identityHashCode(item);
+  }
+
+  @Override
+  public int getCount() {
+    return items.size();
+  }
+
+  @Override
+  public T getItem(int position) {
+    return items.get(position);
+  }
+
+  @Override
+  public long getItemId(int position) {
+    return itemIds.get(position);
+  }
+
+  @Override
+  public boolean hasStableIds() {
+    return true;
+  }
+
+  /**
+   * Returns the row view for the item, skipping the binding if the recycled view is already bound
+   * to the very same item instance. The binding time is recorded in {@link FrameMetrics}.
+   */
+  @Override
+  public View getView(int position, View convertView, ViewGroup parent) {
+    T item = items.get(position);
+    View view = convertView;
+
+    if (view == null) {
+      view = inflater.inflate(itemLayoutResId, parent, false);
+    } else if (view.getTag() == item) {
+      return view;
+    }
+
+    if (FrameMetrics.isEnabled()) {
+      long start = System.nanoTime();
+      bindView(view, item);
+      FrameMetrics.recordBind(metricsName, System.nanoTime() - start);
+    } else {
+      bindView(view, item);
+    }
+    view.setTag(item);
+    return view;
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.ListView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Collects frame metrics while lists are scrolled: the duration of each frame drawn while a list
+ * moves, the frames dropped because a frame took longer than the display refresh interval, and the
+ * time spent on the main thread binding rows. Collection is off by default and is switched on and
+ * off at runtime, e.g., from the options menu; when switched off the results are exported.
+ *
+ * All methods must be called on the main thread.
+ */
+final class FrameMetrics {
+  private static final Logger log = Logger.getLogger(FrameMetrics.class.getName());
+
+  private static final String EXPORT_FILE_NAME = "frame-metrics.csv";
+
+  // refresh interval of a 60 Hz display
+  private static final long FRAME_INTERVAL_IN_NANOSECONDS = 1000000000L / 60;
+
+  // frame durations are counted in 1 ms buckets up to this value
+  private static final int MAX_FRAME_DURATION_IN_MILLISECONDS = 250;
+
+  private static boolean enabled = false;
+
+  private static final Map<String, ListMetrics> metrics = new LinkedHashMap<String, ListMetrics>();
+
+  /**
+   * Metrics of a list.
+   */
+  private static class ListMetrics {
+    final int[] frameDurations = new int[MAX_FRAME_DURATION_IN_MILLISECONDS + 1];
+    int frames = 0;
+    int droppedFrames = 0;
+    int jankyFrames = 0;
+    long binds = 0;
+    long bindNanoseconds = 0;
+    long maxBindNanoseconds = 0;
+
+    void recordFrame(long nanoseconds) {
+      frames++;
+      long milliseconds = Math.min(nanoseconds / 1000000, MAX_FRAME_DURATION_IN_MILLISECONDS);
+      frameDurations[(int) milliseconds]++;
+
+      // a frame that is late by more than half an interval missed at least one refresh
+      long intervals = (nanoseconds + FRAME_INTERVAL_IN_NANOSECONDS / 2)
+          / FRAME_INTERVAL_IN_NANOSECONDS;
+      long missed = intervals - 1;
+      if (missed > 0) {
+        jankyFrames++;
+        droppedFrames += missed;
+      }
+    }
+
+    void recordBind(long nanoseconds) {
+      binds++;
+      bindNanoseconds += nanoseconds;
+      maxBindNanoseconds = Math.max(maxBindNanoseconds, nanoseconds);
+    }
+
+    /**
+     * Returns the frame duration in milliseconds below which the percentage of the frames fall.
+     */
+    int getFramePercentile(int percentage) {
+      long rank = (long) Math.ceil(percentage / 100.0 * frames);
+      long count = 0;
+      for (int milliseconds = 0; milliseconds < frameDurations.length; milliseconds++) {
+        count += frameDurations[milliseconds];
+        if (count >= rank && count > 0) {
+          return milliseconds;
+        }
+      }
+      return 0;
+    }
+
+    long getMeanBindMicroseconds() {
+      return binds == 0 ? 0 : bindNanoseconds / binds / 1000;
+    }
+  }
+
+  private FrameMetrics() {}
+
+  /**
+   * Returns true while frame metrics are being collected.
+   */
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Switches the collection of frame metrics on, discarding earlier results, or off.
+   */
+  static void setEnabled(boolean enabled) {
+    if (enabled && !FrameMetrics.enabled) {
+      metrics.clear();
+    }
+    FrameMetrics.enabled = enabled;
+  }
+
+  /**
+   * Switches the collection of frame metrics on or off from the options menu of the activity.
+   * When switched off, the results are exported and the user is told where to find them.
+   */
+  static void toggle(Context context) {
+    setEnabled(!enabled);
+    if (!enabled) {
+      File file = export(context);
+      if (file != null) {
+        Toast.makeText(context,
+            context.getString(R.string.frameMetricsExported, file.getAbsolutePath()),
+            Toast.LENGTH_LONG).show();
+      }
+    }
+  }
+
+  /**
+   * Starts recording the frames drawn while the list moves. A frame is attributed to the list if
+   * the list has scrolled since the previous frame.
+   *
+   * @param list the list to track
+   * @param name the name the metrics of the list are reported under
+   */
+  static void track(final ListView list, final String name) {
+    list.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+      private int lastPosition = -1;
+      private int lastTop = 0;
+      private long lastFrameTime = 0;
+      private boolean moving = false;
+
+      @Override
+      public boolean onPreDraw() {
+        if (!enabled) {
+          moving = false;
+          return true;
+        }
+
+        long now = System.nanoTime();
+        int position = list.getFirstVisiblePosition();
+        View firstChild = list.getChildAt(0);
+        int top = firstChild != null ? firstChild.getTop() : 0;
+
+        if (position != lastPosition || top != lastTop) {
+          // the first frame of a scroll follows an idle period, so it has no meaningful duration
+          if (moving) {
+            getMetrics(name).recordFrame(now - lastFrameTime);
+          }
+          moving = true;
+        } else {
+          moving = false;
+        }
+
+        lastPosition = position;
+        lastTop = top;
+        lastFrameTime = now;
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Records the time spent binding a row of the list.
+   */
+  static void recordBind(String name, long nanoseconds) {
+    if (enabled) {
+      getMetrics(name).recordBind(nanoseconds);
+    }
+  }
+
+  private static ListMetrics getMetrics(String name) {
+    ListMetrics listMetrics = metrics.get(name);
+    if (listMetrics == null) {
+      listMetrics = new ListMetrics();
+      metrics.put(name, listMetrics);
+    }
+    return listMetrics;
+  }
+
+  /**
+   * Returns the metrics of all lists, a line per list.
+   */
+  static String toSummary() {
+    StringBuilder summary = new StringBuilder();
+    for (Map.Entry<String, ListMetrics> entry : metrics.entrySet()) {
+      ListMetrics listMetrics = entry.getValue();
+      summary.append(entry.getKey())
+          .append(": frames=").append(listMetrics.frames)
+          .append(" janky=").append(listMetrics.jankyFrames)
+          .append(" dropped=").append(listMetrics.droppedFrames)
+          .append(" p50=").append(listMetrics.getFramePercentile(50))
+          .append("ms p90=").append(listMetrics.getFramePercentile(90))
+          .append("ms p99=").append(listMetrics.getFramePercentile(99))
+          .append("ms binds=").append(listMetrics.binds)
+          .append(" meanBind=").append(listMetrics.getMeanBindMicroseconds())
+          .append("us maxBind=").append(listMetrics.maxBindNanoseconds / 1000)
+          .append("us\n");
+    }
+    return summary.toString();
+  }
+
+  /**
+   * Logs the metrics and writes them as CSV to the files of the application, from where they can
+   * be read with "adb shell run-as com.google.sample.mobileassistant cat files/frame-metrics.csv".
+   *
+   * @return the file the metrics have been written to or null if writing failed
+   */
+  static File export(Context context) {
+    log.info("Frame metrics:\n" + toSummary());
+
+    File file = new File(context.getFilesDir(), EXPORT_FILE_NAME);
+
+    try {
+      FileWriter writer = new FileWriter(file);
+      try {
+        writer.write("list,frames,jankyFrames,droppedFrames,p50FrameMs,p90FrameMs,p99FrameMs,"
+            + "binds,meanBindUs,maxBindUs\n");
+        for (Map.Entry<String, ListMetrics> entry : metrics.entrySet()) {
+          ListMetrics listMetrics = entry.getValue();
+          writer.write(entry.getKey() + "," + listMetrics.frames + "," + listMetrics.jankyFrames
+              + "," + listMetrics.droppedFrames + "," + listMetrics.getFramePercentile(50) + ","
+              + listMetrics.getFramePercentile(90) + "," + listMetrics.getFramePercentile(99) + ","
+              + listMetrics.binds + "," + listMetrics.getMeanBindMicroseconds() + ","
+              + listMetrics.maxBindNanoseconds / 1000 + "\n");
+        }
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      log.warning("Failed to export frame metrics: " + e.getMessage());
+      return null;
+    }
+    return file;
+  }
+}
@@ -16,19 +16,21 @@ package com.google.sample.mobileassistant;
 import com.google.android.gcm.GCMBaseIntentService;
 import com.google.android.gcm.GCMRegistrar;
 import com.google.api.client.extensions.android.http.AndroidHttp;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant;
 import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.Builder;
 import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.DeviceInfoEndpoint;
 import com.google.sample.mobileassistant.shoppingassistant.model.DeviceInfo;
 
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.os.Handler;
-import android.os.Looper;
-import android.widget.Toast;
+import android.support.v4.app.NotificationCompat;
 
 import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * IntentService responsible for handling communication with Google Cloud Messaging service.
@@ -36,6 +38,8 @@ import java.io.IOException;
 public class GCMIntentService extends GCMBaseIntentService {
 private static final String GCM_PROJECT_ID = "!!! ENTER YOUR GCM PROJECT ID HERE !!!";
 
+  private static final int PRICE_DROP_NOTIFICATION_ID = 1;
+
   /**
    * Register the device for GCM.
    *
@@ -63,8 +67,10 @@ private static final String GCM_PROJECT_ID = "!!! ENTER YOUR GCM PROJECT ID HERE
   /**
    * Called when a cloud message has been received. The implementation looks for 'NotificationKind'
    * key in the payload and handles the message appropriately. Currently PriceCheckLowerPrices1 is
-   * the only implemented NotificationKind and is handled by displaying a toast with information
-   * about lower priced products.
+   * the only implemented NotificationKind and is handled by displaying a notification with
+   * information about lower priced products, once the product has been resolved to the offers and
+   * recommendations of the nearby places (see {@link PriceDropResolver}). The notification opens
+   * the search for the product, which displays them without a request.
    *
    * @param context application's context
    * @param intent intent containing the message payload as extras.
@@ -72,17 +78,52 @@ private static final String GCM_PROJECT_ID = "!!! ENTER YOUR GCM PROJECT ID HERE
   @Override
   public void onMessage(Context context, Intent intent) {
     if (intent.getStringExtra("NotificationKind").equals("PriceCheckLowerPrices1")) {
-      final String message = getUserMessageForPriceCheckLowerPricesNotification(intent);
-
-      Handler h = new Handler(Looper.getMainLooper());
-      h.post(new Runnable() {
-        @Override
-        public void run() {
-          Toast toast = Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG);
-          toast.show();
+      String message = getUserMessageForPriceCheckLowerPricesNotification(intent);
+      String productName = intent.getStringExtra("ProductName");
+
+      NotificationCompat.Builder notification = new NotificationCompat.Builder(context)
+          .setSmallIcon(R.drawable.ic_launcher)
+          .setContentTitle(getString(R.string.app_name))
+          .setContentText(message)
+          .setTicker(message)
+          .setStyle(new NotificationCompat.BigTextStyle().bigText(message))
+          .setAutoCancel(true);
+
+      if (productName != null) {
+        // runs on the thread of the service, which holds a wake lock
+        List<SearchIndex.Item> items =
+            PriceDropResolver.resolve(productName, NetworkDispatcher.Priority.PREFETCH);
+        Set<String> placeNames = new LinkedHashSet<String>();
+        for (SearchIndex.Item item : items) {
+          placeNames.add(item.place.getName());
+        }
+        if (!placeNames.isEmpty()) {
+          notification.setSubText(getString(R.string.notification_PriceCheckLowerPrices1_details,
+              join(placeNames)));
         }
-      });
+
+        Intent searchIntent = new Intent(context, SearchActivity.class)
+            .putExtra(SearchActivity.EXTRA_QUERY, productName)
+            .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        notification.setContentIntent(PendingIntent.getActivity(
+            context, 0, searchIntent, PendingIntent.FLAG_UPDATE_CURRENT));
+      }
+
+      NotificationManager notificationManager =
+          (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+      notificationManager.notify(PRICE_DROP_NOTIFICATION_ID, notification.getNotification());
+    }
+  }
+
+  private static String join(Set<String> values) {
+    StringBuilder joined = new StringBuilder();
+    for (String value : values) {
+      if (joined.length() > 0) {
+        joined.append(", ");
+      }
+      joined.append(value);
     }
+    return joined.toString();
   }
 
   /**
@@ -130,16 +171,21 @@ private static final String GCM_PROJECT_ID = "!!! ENTER YOUR GCM PROJECT ID HERE
    */
   @Override
   public void onRegistered(Context context, String registration) {
+    NetworkDispatcher.Priority priority =
+        NetworkDispatcher.setThreadPriority(NetworkDispatcher.Priority.TELEMETRY);
     try {
       Builder endpointBuilder = new Shoppingassistant.Builder(
-          AndroidHttp.newCompatibleTransport(), new JacksonFactory(),
+          AndroidHttp.newCompatibleTransport(), CloudEndpointBuilderHelper.getJsonFactory(),
           CloudEndpointBuilderHelper.getRequestInitializer());
 
       DeviceInfoEndpoint deviceInfoEndpoint =
           CloudEndpointBuilderHelper.updateBuilder(endpointBuilder).build().deviceInfoEndpoint();
-      deviceInfoEndpoint.insert(new DeviceInfo().setDeviceRegistrationID(registration)).execute();
+      NetworkDispatcher.execute(
+          deviceInfoEndpoint.insert(new DeviceInfo().setDeviceRegistrationID(registration)));
     } catch (IOException e) {
       e.printStackTrace();
+    } finally {
+      NetworkDispatcher.setThreadPriority(priority);
     }
   }
 
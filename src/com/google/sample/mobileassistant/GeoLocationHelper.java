@@ -19,7 +19,6 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
 
-import java.util.logging.Logger;
 
 /**
  * Helper class for retrieving location from multiple providers and determining the current
@@ -28,7 +27,6 @@ import java.util.logging.Logger;
 class GeoLocationHelper {
   private static final int TWO_MINUTES_IN_MILLISECONDS = 1000 * 60 * 2;
 
-  private Logger log = Logger.getLogger(GeoLocationHelper.class.getName());
   private Location currentBestLocation = null;
   private LocationManager locationManager;
 
@@ -119,6 +117,21 @@ class GeoLocationHelper {
     // Acquire a reference to the system Location Manager
     locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
 
+    retrieveLastKnownLocation();
+
+    // Register the listener with the Location Manager
+    // to receive location updates as often as every 5 seconds and every 100
+    // meters
+    locationManager.requestLocationUpdates(
+        LocationManager.GPS_PROVIDER, 5000, 100, locationListener);
+    locationManager.requestLocationUpdates(
+        LocationManager.NETWORK_PROVIDER, 5000, 100, locationListener);
+  }
+
+  /**
+   * Sets the current location to the best last known location of the network and GPS providers.
+   */
+  private void retrieveLastKnownLocation() {
     try {
       currentBestLocation = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
 
@@ -127,19 +140,24 @@ class GeoLocationHelper {
         currentBestLocation = gpsLocation;
       }
     } catch (SecurityException e) {
-      log.warning("SecurityException when retrieving the last known location: " + e.getMessage());
+      Tracer.record(Tracer.LOCATION_FAILED, "lastKnownLocation", null, 0, -1, e);
     } catch (IllegalArgumentException e) {
-      log.warning(
-          "IllegalArgumentException when retrieving the last known location: " + e.getMessage());
+      Tracer.record(Tracer.LOCATION_FAILED, "lastKnownLocation", null, 0, -1, e);
     }
+  }
 
-    // Register the listener with the Location Manager
-    // to receive location updates as often as every 5 seconds and every 100
-    // meters
-    locationManager.requestLocationUpdates(
-        LocationManager.GPS_PROVIDER, 5000, 100, locationListener);
-    locationManager.requestLocationUpdates(
-        LocationManager.NETWORK_PROVIDER, 5000, 100, locationListener);
+  /**
+   * Returns the best last known location without starting location updates, e.g., to warm up
+   * the location while the application is starting. Can be called on any thread.
+   *
+   * @param context application context
+   * @return the best last known location or null if no location is known
+   */
+  static Location getLastKnownLocation(Context context) {
+    GeoLocationHelper helper = new GeoLocationHelper();
+    helper.locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+    helper.retrieveLastKnownLocation();
+    return helper.currentBestLocation;
   }
 
   /**
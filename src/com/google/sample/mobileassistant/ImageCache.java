@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * In-memory store of the images displayed by the lists, decoded at the size of the views that
+ * display them. Shared by all lists and by the prefetching of place data, so an image that is shown
+ * in several lists, e.g., as an offer and as a recommendation, or at several places is downloaded
+ * and decoded once.
+ *
+ * Images are keyed by their normalized url and the size they are decoded at (see
+ * {@link #getKey(String, int)}). Concurrent loads of the same image share one download and
+ * decode. Views hold a reference to the image they display ({@link #acquire(String)}); referenced
+ * images are never evicted, the others are kept in a least recently used cache.
+ */
+final class ImageCache {
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final char SIZE_SEPARATOR = '@';
+
+  static final SizedCache<String, Bitmap> bitmaps = new SizedCache<String, Bitmap>() {
+    @Override
+    int sizeOf(Bitmap bitmap) {
+      return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+  };
+
+  // images referenced by views, guarded by the class
+  private static final Map<String, Reference> references = new HashMap<String, Reference>();
+
+  private static final ConcurrentMap<String, FutureTask<Bitmap>> loads =
+      new ConcurrentHashMap<String, FutureTask<Bitmap>>();
+
+  private ImageCache() {}
+
+  /**
+   * Returns the number of images referenced by views.
+   */
+  static synchronized int getReferencedCount() {
+    return references.size();
+  }
+
+  /**
+   * Returns the key of an image: its url, with the scheme and host in lower case, without default
+   * port and fragment and with the query parameters sorted, and the size it is decoded at.
+   *
+   * @param url the original url of the image
+   * @param targetSizeInPixels the size of the view displaying the image, or 0 for the full size
+   * @return the key or null if the url is null
+   */
+  static String getKey(String url, int targetSizeInPixels) {
+    if (url == null) {
+      return null;
+    }
+    return normalize(url) + SIZE_SEPARATOR + targetSizeInPixels;
+  }
+
+  private static String normalize(String url) {
+    URI uri;
+    try {
+      uri = new URI(url).normalize();
+    } catch (URISyntaxException e) {
+      return url;
+    }
+    if (uri.getScheme() == null || uri.getHost() == null) {
+      return url;
+    }
+
+    String scheme = uri.getScheme().toLowerCase(Locale.US);
+    StringBuilder normalized = new StringBuilder(scheme).append("://")
+        .append(uri.getHost().toLowerCase(Locale.US));
+    int port = uri.getPort();
+    if (port != -1 && !(port == 80 && scheme.equals("http"))
+        && !(port == 443 && scheme.equals("https"))) {
+      normalized.append(':').append(port);
+    }
+    if (uri.getRawPath() != null) {
+      normalized.append(uri.getRawPath());
+    }
+
+    String query = uri.getRawQuery();
+    if (query != null && query.length() > 0) {
+      String[] parameters = query.split("&");
+      Arrays.sort(parameters);
+      normalized.append('?');
+      for (int i = 0; i < parameters.length; i++) {
+        normalized.append(i > 0 ? "&" : "").append(parameters[i]);
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * Returns the image stored for the key or null if it hasn't been loaded yet.
+   */
+  static synchronized Bitmap get(String key) {
+    if (key == null) {
+      return null;
+    }
+    Reference reference = references.get(key);
+    Bitmap bitmap = reference != null && reference.bitmap != null ? reference.bitmap
+        : bitmaps.get(key);
+    Telemetry.add(bitmap != null ? Telemetry.IMAGE_CACHE_HITS : Telemetry.IMAGE_CACHE_MISSES, 1);
+    return bitmap;
+  }
+
+  /**
+   * Stores the loaded image.
+   */
+  private static synchronized void put(String key, Bitmap bitmap) {
+    if (bitmap == null) {
+      return;
+    }
+    bitmaps.put(key, bitmap);
+    Reference reference = references.get(key);
+    if (reference != null) {
+      reference.bitmap = bitmap;
+    }
+  }
+
+  /**
+   * Adds a reference to the image, which keeps it in memory until every reference is released.
+   * The image doesn't need to have been loaded yet. Called by the views displaying the image.
+   */
+  static synchronized void acquire(String key) {
+    Reference reference = references.get(key);
+    if (reference == null) {
+      reference = new Reference();
+      reference.bitmap = bitmaps.get(key);
+      references.put(key, reference);
+    }
+    reference.count++;
+  }
+
+  /**
+   * Releases a reference acquired by {@link #acquire(String)}. Once no view references the image
+   * any more, it is kept as the most recently used image of the cache.
+   */
+  static synchronized void release(String key) {
+    Reference reference = references.get(key);
+    if (reference == null || --reference.count > 0) {
+      return;
+    }
+    references.remove(key);
+    if (reference.bitmap != null) {
+      bitmaps.put(key, reference.bitmap);
+    }
+  }
+
+  /**
+   * Removes all cached images. Images referenced by views stay in memory.
+   */
+  static void clear() {
+    bitmaps.clear();
+  }
+
+  /**
+   * Returns the image, downloading the variant fitting the current network link and decoding it at
+   * the target size unless it is stored already. If the image is being loaded by another thread,
+   * waits for that load. Must be called on a background thread.
+   *
+   * @param url the original url of the image
+   * @param targetSizeInPixels the size of the view displaying the image, or 0 for the full size
+   * @return the image or null if it couldn't be decoded
+   */
+  static Bitmap load(String url, int targetSizeInPixels) throws IOException {
+    String key = getKey(url, targetSizeInPixels);
+    Bitmap bitmap = get(key);
+    if (bitmap != null) {
+      return bitmap;
+    }
+
+    FutureTask<Bitmap> load = new FutureTask<Bitmap>(new Load(key, url, targetSizeInPixels));
+    FutureTask<Bitmap> pendingLoad = loads.putIfAbsent(key, load);
+    if (pendingLoad == null) {
+      try {
+        load.run();
+      } finally {
+        loads.remove(key);
+      }
+    } else {
+      load = pendingLoad;
+    }
+    return getResult(load);
+  }
+
+  /**
+   * Loads the image unless it is stored or being loaded already.
+   *
+   * @param url the original url of the image
+   * @param targetSizeInPixels the size of the views that will display the image
+   * @return the bytes downloaded
+   */
+  static int prefetch(String url, int targetSizeInPixels) throws IOException {
+    String key = getKey(url, targetSizeInPixels);
+    if (key == null || get(key) != null) {
+      return 0;
+    }
+
+    Load prefetch = new Load(key, url, targetSizeInPixels);
+    FutureTask<Bitmap> load = new FutureTask<Bitmap>(prefetch);
+    if (loads.putIfAbsent(key, load) != null) {
+      return 0;
+    }
+    try {
+      load.run();
+    } finally {
+      loads.remove(key);
+    }
+    getResult(load);
+    return prefetch.downloadedBytes;
+  }
+
+  private static Bitmap getResult(FutureTask<Bitmap> load) throws IOException {
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while loading an image");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Downloads the encoded image from the url and reports the observed throughput to the
+   * {@link BandwidthEstimator}. If the image has been downloaded before, e.g., before its decoded
+   * bitmap was evicted, it is revalidated instead through {@link ConditionalRequests}. The download
+   * goes through the {@link NetworkDispatcher}.
+   *
+   * @param url the url of the image
+   * @return the encoded image
+   */
+  static byte[] download(final String url) throws IOException {
+    long start = System.currentTimeMillis();
+    try {
+      byte[] data = NetworkDispatcher.execute(new URL(url).getHost(),
+          new NetworkDispatcher.Call<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+              return downloadNow(url);
+            }
+          });
+      Telemetry.recordRequest(null, System.currentTimeMillis() - start, data.length, false);
+      return data;
+    } catch (IOException e) {
+      Telemetry.recordRequest(null, System.currentTimeMillis() - start, -1, true);
+      throw e;
+    }
+  }
+
+  private static byte[] downloadNow(String url) throws IOException {
+    ConditionalRequests.Entry entry = ConditionalRequests.get(url);
+
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      if (entry != null) {
+        ConditionalRequests.setValidators(entry, connection);
+      }
+
+      int status = connection.getResponseCode();
+      // the throughput is measured once the headers have been received, so the time to connect
+      // and to receive the first byte, which depends on the latency rather than the throughput of
+      // the link, isn't counted
+      long headersReceivedAt = System.currentTimeMillis();
+      if (entry != null) {
+        boolean notModified = status == HttpURLConnection.HTTP_NOT_MODIFIED;
+        ConditionalRequests.recordRevalidation(url, notModified, entry.sizeInBytes);
+        if (notModified) {
+          return (byte[]) entry.body;
+        }
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Unexpected response " + status + " for " + url);
+      }
+
+      InputStream in = connection.getInputStream();
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+        BandwidthEstimator.onDownloaded(out.size(), System.currentTimeMillis() - headersReceivedAt);
+
+        byte[] data = out.toByteArray();
+        ConditionalRequests.put(url, connection.getHeaderField("ETag"),
+            connection.getHeaderField("Last-Modified"), data, data.length);
+        return data;
+      } finally {
+        in.close();
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Decodes the image, subsampled by the largest power of two that keeps it at least as large as
+   * the target size in both dimensions.
+   *
+   * @param data the encoded image
+   * @param targetSizeInPixels the size of the view displaying the image, or 0 for the full size
+   * @return the decoded image or null if the image couldn't be decoded
+   */
+  private static Bitmap decode(byte[] data, int targetSizeInPixels) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    if (targetSizeInPixels > 0) {
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeByteArray(data, 0, data.length, options);
+      int sampleSize = 1;
+      while (options.outWidth / (sampleSize * 2) >= targetSizeInPixels
+          && options.outHeight / (sampleSize * 2) >= targetSizeInPixels) {
+        sampleSize *= 2;
+      }
+      options = new BitmapFactory.Options();
+      options.inSampleSize = sampleSize;
+    }
+    return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+  }
+
+  /**
+   * Downloads and decodes an image and stores it.
+   */
+  private static class Load implements Callable<Bitmap> {
+    private final String key;
+    private final String url;
+    private final int targetSizeInPixels;
+    int downloadedBytes;
+
+    Load(String key, String url, int targetSizeInPixels) {
+      this.key = key;
+      this.url = url;
+      this.targetSizeInPixels = targetSizeInPixels;
+    }
+
+    @Override
+    public Bitmap call() throws IOException {
+      byte[] data = download(ImageVariantPolicy.getVariantUrl(url, targetSizeInPixels));
+      downloadedBytes = data.length;
+      Bitmap bitmap = decode(data, targetSizeInPixels);
+      put(key, bitmap);
+      return bitmap;
+    }
+  }
+
+  /**
+   * The references of the views to an image, and the image once it has been loaded.
+   */
+  private static class Reference {
+    int count;
+    Bitmap bitmap;
+  }
+}
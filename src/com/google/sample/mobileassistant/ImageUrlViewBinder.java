@@ -14,24 +14,30 @@
 package com.google.sample.mobileassistant;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.SimpleAdapter;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.logging.Logger;
 
 /**
- * Helper class for displaying images retrieved asynchronously from Internet locations.
+ * Helper class for displaying images retrieved asynchronously from Internet locations. Images are
+ * loaded through the {@link ImageCache} at the size of the views, and each view holds a reference
+ * to the image it displays until it is rebound or {@link #releaseAll()} is called. One binder can
+ * serve several lists of an activity.
  */
 class ImageUrlViewBinder implements SimpleAdapter.ViewBinder {
   Set<Integer> imageViewIds;
 
+  // the key of the image each view displays, only accessed on the main thread
+  private final Map<ImageView, String> boundKeys = new HashMap<ImageView, String>();
+
   /**
    * @constructor
    *
@@ -64,12 +70,62 @@ class ImageUrlViewBinder implements SimpleAdapter.ViewBinder {
       return false;
     }
 
-    // TODO(user): Implement local caching on the device
     String uri = (String) data;
     ImageView imageView = (ImageView) view;
-    new DownloadImageAsyncTask(imageView, R.drawable.ic_launcher).execute(uri);
+    int targetSize = getTargetSize(imageView);
+    String key = ImageCache.getKey(uri, targetSize);
+    if (key != null && key.equals(imageView.getTag())) {
+      // the view already displays (or is downloading) this image
+      return true;
+    }
+
+    String previousKey = boundKeys.remove(imageView);
+    if (previousKey != null) {
+      ImageCache.release(previousKey);
+    }
+    // remember which image the view is expected to show, as recycled views may be rebound before
+    // an earlier download completes
+    imageView.setTag(key);
+    if (key == null) {
+      imageView.setImageResource(R.drawable.ic_launcher);
+      return true;
+    }
+    ImageCache.acquire(key);
+    boundKeys.put(imageView, key);
+
+    Bitmap cachedBitmap = ImageCache.get(key);
+    if (cachedBitmap != null) {
+      imageView.setImageBitmap(cachedBitmap);
+      return true;
+    }
+
+    imageView.setImageResource(R.drawable.ic_launcher);
+    new DownloadImageAsyncTask(imageView, R.drawable.ic_launcher, targetSize).execute(uri);
     return true;
   }
+
+  /**
+   * Releases the images of all views bound so far, e.g., when the activity is destroyed.
+   */
+  void releaseAll() {
+    for (Map.Entry<ImageView, String> entry : boundKeys.entrySet()) {
+      entry.getKey().setTag(null);
+      ImageCache.release(entry.getValue());
+    }
+    boundKeys.clear();
+  }
+
+  /**
+   * Returns the size the view is laid out at, or 0 if it adapts to its content.
+   */
+  private static int getTargetSize(ImageView imageView) {
+    ViewGroup.LayoutParams layoutParams = imageView.getLayoutParams();
+    if (layoutParams == null) {
+      return 0;
+    }
+    int size = Math.max(layoutParams.width, layoutParams.height);
+    return size > 0 ? size : 0;
+  }
 }
 
 
@@ -78,9 +134,10 @@ class ImageUrlViewBinder implements SimpleAdapter.ViewBinder {
  * specified ImageView
  */
 class DownloadImageAsyncTask extends AsyncTask<String, Void, Bitmap> {
-  private Logger log = Logger.getLogger(MainActivity.class.getName());
   ImageView imageView;
   int fallbackResId;
+  int targetSizeInPixels;
+  String url;
 
   /**
    * @constructor
@@ -88,35 +145,42 @@ class DownloadImageAsyncTask extends AsyncTask<String, Void, Bitmap> {
    * @param imageView imageView that will have the downloaded image set to
    * @param fallbackResId a bitmap resource id to be used when downloading the image from the url
    *        fails
+   * @param targetSizeInPixels the size of the imageView, or 0 to decode the image at full size
    */
-  public DownloadImageAsyncTask(ImageView imageView, int fallbackResId) {
+  public DownloadImageAsyncTask(ImageView imageView, int fallbackResId, int targetSizeInPixels) {
     this.imageView = imageView;
     this.fallbackResId = fallbackResId;
+    this.targetSizeInPixels = targetSizeInPixels;
   }
 
   /**
-   * Downloads the image from Url and creates a bitmap out of it
+   * Loads the image from Url through the {@link ImageCache}, which downloads the variant fitting
+   * the current network link and decodes it at the size of the view unless another list has
+   * loaded it already
    */
   @Override
   protected Bitmap doInBackground(String... urls) {
-    String url = urls[0];
+    url = urls[0];
     Bitmap bitmap = null;
     try {
-      InputStream in = new java.net.URL(url).openStream();
-      bitmap = BitmapFactory.decodeStream(in);
+      bitmap = ImageCache.load(url, targetSizeInPixels);
     } catch (IOException e) {
-      log.warning("Downloading image failed: " + e.getMessage());
+      Tracer.record(Tracer.IMAGE_FAILED, url, null, 0, -1, e);
     }
     return bitmap;
   }
 
   /**
    * If the download succeeded, it binds the downloaded bitmap to the view. Otherwise it binds a
-   * static bitmap passed as fallbackResId to the constructor
-   *
+   * static bitmap passed as fallbackResId to the constructor. Nothing is bound if the view has
+   * been rebound to a different url or released in the meantime.
    */
   @Override
   protected void onPostExecute(Bitmap result) {
+    if (!ImageCache.getKey(url, targetSizeInPixels).equals(imageView.getTag())) {
+      return;
+    }
+
     if (result == null) {
       imageView.setImageResource(fallbackResId);
     } else {
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * Rewrites the urls of offer and recommendation images to request a variant that fits the quality
+ * of the network link estimated by {@link BandwidthEstimator}: on good links the original image is
+ * requested, on moderate and poor links a thumbnail sized from the view that displays it, in WebP
+ * on devices that can decode it. Images served by the App Engine Images service are resized with
+ * its "=s" url option, and images served by the stand-in server (see
+ * {@link CloudEndpointBuilderHelper#getStandInRootUrl}) receive the {@link #SIZE_PARAMETER} and
+ * {@link #FORMAT_PARAMETER} query parameters. The urls of other servers are never rewritten: they
+ * may not honor the parameters, and changing a signed url would invalidate its signature.
+ */
+final class ImageVariantPolicy {
+  static final String SIZE_PARAMETER = "imageSize";
+  static final String FORMAT_PARAMETER = "imageFormat";
+  static final String WEBP_FORMAT = "webp";
+
+  // on moderate links the thumbnails are requested at this multiple of the displayed size, so
+  // they stay sharp if the view is enlarged
+  private static final int MODERATE_LINK_SIZE_FACTOR = 2;
+
+  // BitmapFactory decodes WebP since Ice Cream Sandwich
+  private static final boolean WEBP_SUPPORTED = Build.VERSION.SDK_INT >= 14;
+
+  private static int listImageSize = 0;
+
+  private ImageVariantPolicy() {}
+
+  /**
+   * Initializes the policy with the size of the images of the lists.
+   */
+  static void initialize(Context context) {
+    listImageSize = context.getResources().getDimensionPixelSize(R.dimen.listImageSize);
+  }
+
+  /**
+   * Returns the size of the images of the offers and recommendations lists in pixels, which they
+   * are decoded at, or 0 before the policy has been initialized.
+   */
+  static int getListImageSize() {
+    return listImageSize;
+  }
+
+  /**
+   * Returns the url of the variant of the image to download for the current network link.
+   *
+   * @param url the original url of the image
+   * @param targetSizeInPixels the size of the view displaying the image, e.g.,
+   *        {@link #getListImageSize()}, or 0 for the full size
+   * @return the url of the variant or null if the url is null
+   */
+  static String getVariantUrl(String url, int targetSizeInPixels) {
+    if (url == null) {
+      return null;
+    }
+
+    BandwidthEstimator.Quality quality = BandwidthEstimator.getQuality();
+    if (quality == BandwidthEstimator.Quality.GOOD || targetSizeInPixels <= 0) {
+      return url;
+    }
+
+    // on poor links the image is requested at the size it is displayed at
+    int size = quality == BandwidthEstimator.Quality.POOR
+        ? targetSizeInPixels : targetSizeInPixels * MODERATE_LINK_SIZE_FACTOR;
+
+    if (isImagesServiceUrl(url)) {
+      return url + "=s" + size + (WEBP_SUPPORTED ? "-rw" : "");
+    }
+    if (!isStandInServerUrl(url)) {
+      return url;
+    }
+
+    // the parameters go at the end of the query, before the fragment if there is one
+    int fragmentStart = url.indexOf('#');
+    String withoutFragment = fragmentStart < 0 ? url : url.substring(0, fragmentStart);
+    StringBuilder variantUrl = new StringBuilder(withoutFragment)
+        .append(withoutFragment.indexOf('?') < 0 ? '?' : '&')
+        .append(SIZE_PARAMETER).append('=').append(size);
+    if (WEBP_SUPPORTED) {
+      variantUrl.append('&').append(FORMAT_PARAMETER).append('=').append(WEBP_FORMAT);
+    }
+    if (fragmentStart >= 0) {
+      variantUrl.append(url.substring(fragmentStart));
+    }
+    return variantUrl.toString();
+  }
+
+  /**
+   * Returns true if the url is a serving url of the App Engine Images service without options.
+   */
+  private static boolean isImagesServiceUrl(String url) {
+    String host = getAuthority(url);
+    if (host == null) {
+      return false;
+    }
+    int pathStart = url.indexOf(host) + host.length();
+    return (host.endsWith("googleusercontent.com") || host.endsWith("ggpht.com"))
+        && url.indexOf('=', pathStart) < 0 && url.indexOf('?') < 0 && url.indexOf('#') < 0;
+  }
+
+  /**
+   * Returns true if the url is served by the stand-in server the application is connected to,
+   * which honors the {@link #SIZE_PARAMETER} and {@link #FORMAT_PARAMETER} query parameters.
+   */
+  private static boolean isStandInServerUrl(String url) {
+    String rootUrl = CloudEndpointBuilderHelper.getStandInRootUrl();
+    String host = getAuthority(url);
+    return rootUrl != null && host != null && host.equalsIgnoreCase(getAuthority(rootUrl));
+  }
+
+  /**
+   * Returns the host and port of the url, or null if the url has no path.
+   */
+  private static String getAuthority(String url) {
+    int hostStart = url.indexOf("://");
+    int pathStart = url.indexOf('/', hostStart + 3);
+    if (hostStart < 0 || pathStart < 0) {
+      return null;
+    }
+    return url.substring(hostStart + 3, pathStart);
+  }
+}
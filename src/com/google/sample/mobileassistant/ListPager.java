@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.json.GenericJson;
+
+import android.widget.AbsListView;
+
+/**
+ * Keeps track of the page token of a paged list retrieved through a Cloud Endpoint and requests
+ * the next page when the user scrolls near the end of the ListView, so the next page is usually
+ * retrieved before the user reaches it.
+ *
+ * The page token is sent as the {@link #PAGE_TOKEN_PARAMETER} query parameter and read from the
+ * {@link #NEXT_PAGE_TOKEN_FIELD} field of the response. A response without the field is the last
+ * page, so backends that don't support paging simply return a single page.
+ */
+class ListPager implements AbsListView.OnScrollListener {
+  static final String PAGE_TOKEN_PARAMETER = "pageToken";
+  static final String PAGE_SIZE_PARAMETER = "limit";
+  static final String NEXT_PAGE_TOKEN_FIELD = "nextPageToken";
+
+  // start retrieving the next page when there are fewer rows than this below the last visible row
+  private static final int PREFETCH_DISTANCE = 5;
+
+  /**
+   * Callback invoked when the next page should be retrieved.
+   */
+  interface NextPageLoader {
+    /**
+     * Starts retrieving the page identified by the page token. When the page is retrieved, or
+     * retrieval fails, {@link ListPager#onPageLoaded} must be called.
+     */
+    void loadNextPage(String pageToken);
+  }
+
+  private final NextPageLoader loader;
+  private String nextPageToken = null;
+  private boolean loading = false;
+
+  /**
+   * @constructor
+   *
+   * @param loader callback that retrieves the next page
+   */
+  ListPager(NextPageLoader loader) {
+    this.loader = loader;
+  }
+
+  /**
+   * Forgets the page token, e.g., when the list is retrieved again from the first page.
+   */
+  void reset() {
+    nextPageToken = null;
+    loading = false;
+  }
+
+  /**
+   * Records the token of the page following the page that has just been retrieved. If retrieving
+   * it failed, the token is kept, so the page is requested again on the next scroll.
+   *
+   * @param response the retrieved page or null if retrieving it failed.
+   */
+  void onPageLoaded(GenericJson response) {
+    loading = false;
+    if (response != null) {
+      nextPageToken = getNextPageToken(response);
+    }
+  }
+
+  /**
+   * Returns true while a next page is being retrieved.
+   */
+  boolean isLoading() {
+    return loading;
+  }
+
+  /**
+   * Returns true if there are more pages to retrieve.
+   */
+  boolean hasMorePages() {
+    return nextPageToken != null;
+  }
+
+  @Override
+  public void onScroll(
+      AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+    if (loading || nextPageToken == null || totalItemCount == 0) {
+      return;
+    }
+
+    if (firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_DISTANCE) {
+      loading = true;
+      loader.loadNextPage(nextPageToken);
+    }
+  }
+
+  @Override
+  public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+  /**
+   * Returns the token of the next page from the response or null if this is the last page.
+   */
+  static String getNextPageToken(GenericJson response) {
+    if (response == null) {
+      return null;
+    }
+
+    Object token = response.get(NEXT_PAGE_TOKEN_FIELD);
+    if (token == null || token.toString().length() == 0) {
+      return null;
+    }
+    return token.toString();
+  }
+}
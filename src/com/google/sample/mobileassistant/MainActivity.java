@@ -14,37 +14,30 @@
 package com.google.sample.mobileassistant;
 
 import com.google.api.client.extensions.android.http.AndroidHttp;
-import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant;
 import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.Builder;
 import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.CheckInEndpoint;
-import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.PlaceEndpoint;
 import com.google.sample.mobileassistant.shoppingassistant.model.CheckIn;
 import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
-import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfoCollection;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
-import android.location.Location;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ListAdapter;
+import android.widget.ImageView;
 import android.widget.ListView;
-import android.widget.SimpleAdapter;
 import android.widget.TextView;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.logging.Logger;
 
 /**
  * Mobile Shopping Assistant Main Activity. Launched after the application starts. Allows retrieving
@@ -53,19 +46,26 @@ import java.util.logging.Logger;
  * Accounts for OAuth2 authentication.
  */
 public class MainActivity extends Activity {
-  private Logger log = Logger.getLogger(MainActivity.class.getName());
 
   private ListView placesList;
   private TextView placesListLabel;
 
-  private List<PlaceInfo> places = null;
+  private PlacesListAdapter placesListAdapter;
 
   private GeoLocationHelper geoLocationHelper = new GeoLocationHelper();
 
+  private RetainedList.Observer placesObserver = new RetainedList.Observer() {
+    @Override
+    public void onListChanged() {
+      showPlaces();
+    }
+  };
+
   /**
    * Initializes the activity content, binds relevant widgets, sets up geo-location retrieval,
    * registers with Google Cloud Messaging (GCM) and starts asynchronously retrieving the list of
-   * nearby places.
+   * nearby places. When the activity is recreated, e.g., after the device has been rotated, the
+   * list of nearby places that has been retrieved, or is being retrieved, is reused.
    */
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -80,12 +80,63 @@ public class MainActivity extends Activity {
     placesListLabel = (TextView) findViewById(R.id.PlacesListLabel);
     placesList.setOnItemClickListener(placesListClickListener);
 
+    placesListAdapter = new PlacesListAdapter();
+    placesList.setAdapter(placesListAdapter);
+    placesList.setOnScrollListener(DataRepository.places.getPager());
+    FrameMetrics.track(placesList, placesListAdapter.getMetricsName());
+
+    DataRepository.initialize(this);
+    DataRepository.places.addObserver(placesObserver);
+
     geoLocationHelper.startRetrievingLocation(this);
 
-    GCMIntentService.register(MainActivity.this);
+    if (savedInstanceState == null) {
+      registerWhenIdle();
+    }
+
+    // usually the places are retrieved by the startup graph of SignInActivity, with the location
+    // it has warmed up, possibly after this activity has been created; a recreated activity
+    // displays the retained list, otherwise a failed or old list is retrieved again
+    RetainedList<?, ?, PlaceInfo> places = DataRepository.places;
+    boolean reuse = places.isLoading() || SignInActivity.isLoadingStartupPlaces()
+        || (savedInstanceState != null ? places.isRetrievedOrLoading() : places.isUpToDate());
+    if (!reuse) {
+      // start retrieving the list of nearby places
+      retrievePlaces();
+    }
+    showPlaces();
+  }
+
+  /**
+   * Registers with GCM once the main thread is idle, i.e., after the first frame has been drawn,
+   * so the registration doesn't delay displaying the list of nearby places.
+   */
+  private void registerWhenIdle() {
+    final Context context = getApplicationContext();
+
+    Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+      @Override
+      public boolean queueIdle() {
+        StartupTimings.mark("mainFirstIdle");
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            GCMIntentService.register(context);
+          }
+        }).start();
+        return false;
+      }
+    });
+  }
 
-    // start retrieving the list of nearby places
-    new ListOfPlacesAsyncRetriever().execute(geoLocationHelper.getCurrentLocation());
+  /**
+   * Stops observing the list of nearby places, so the destroyed activity can be garbage collected
+   * while the list is still being retrieved.
+   */
+  @Override
+  protected void onDestroy() {
+    DataRepository.places.removeObserver(placesObserver);
+    super.onDestroy();
   }
 
   /**
@@ -97,7 +148,47 @@ public class MainActivity extends Activity {
       // enable GPS/Network Location
       // or prompt for address
     }
-    new ListOfPlacesAsyncRetriever().execute(geoLocationHelper.getCurrentLocation());
+    retrievePlaces();
+  }
+
+  /**
+   * Retrieves the first page of nearby places for the current location asynchronously and updates
+   * relevant widgets. Next pages are retrieved as the user scrolls through the list.
+   */
+  void retrievePlaces() {
+    DataRepository.places.load(geoLocationHelper.getCurrentLocation());
+  }
+
+  /**
+   * Updates the list of nearby places and its label to show the places retrieved so far, that
+   * they are being retrieved or that retrieving them failed.
+   */
+  void showPlaces() {
+    RetainedList<?, ?, PlaceInfo> places = DataRepository.places;
+
+    setProgressBarIndeterminateVisibility(places.isLoading() || places.isLoadingNextPage());
+
+    if (places.isLoading()) {
+      placesListLabel.setText(R.string.retrievingPlaces);
+    } else if (places.hasFailed()) {
+      placesListLabel.setText(R.string.failedToRetrievePlaces);
+    } else if (places.getItems().isEmpty()) {
+      placesListLabel.setText(R.string.noPlacesNearby);
+    } else {
+      placesListLabel.setText(R.string.nearbyPlaces);
+    }
+
+    // while the first page is being retrieved the previous list stays in place, or the places of
+    // the last session are displayed
+    if (!places.isLoading()) {
+      placesListAdapter.update(places.getItems());
+      if (!places.getItems().isEmpty()) {
+        StartupTimings.reportFirstPlaces();
+      }
+    } else if (places.isStale() && placesListAdapter.getCount() == 0) {
+      placesListAdapter.update(places.getItems());
+      StartupTimings.mark("snapshotPlaces");
+    }
   }
 
   /**
@@ -108,7 +199,7 @@ public class MainActivity extends Activity {
   private OnItemClickListener placesListClickListener = new OnItemClickListener() {
     @Override
     public void onItemClick(AdapterView<?> arg0, View arg1, int arg2, long arg3) {
-      PlaceInfo selectedPlace = places.get((int) arg3);
+      PlaceInfo selectedPlace = placesListAdapter.getItem(arg2);
 
       new CheckInTask().execute(selectedPlace);
 
@@ -125,12 +216,27 @@ public class MainActivity extends Activity {
     return true;
   }
 
+  @Override
+  public boolean onPrepareOptionsMenu(Menu menu) {
+    menu.findItem(R.id.menu_frameMetrics).setChecked(FrameMetrics.isEnabled());
+    return super.onPrepareOptionsMenu(menu);
+  }
+
   @Override
   public boolean onOptionsItemSelected(MenuItem item) {
     int itemId = item.getItemId();
-    if (itemId == R.id.menu_signOut) {
+    if (itemId == R.id.menu_search) {
+      startActivity(new Intent(this, SearchActivity.class));
+      return true;
+    } else if (itemId == R.id.menu_signOut) {
       SignInActivity.onSignOut(this);
       return true;
+    } else if (itemId == R.id.menu_frameMetrics) {
+      FrameMetrics.toggle(this);
+      return true;
+    } else if (itemId == R.id.menu_dumpTrace) {
+      Tracer.dumpFromMenu(this);
+      return true;
     } else {
       return super.onOptionsItemSelected(item);
     }
@@ -155,127 +261,29 @@ public class MainActivity extends Activity {
   }
 
   /**
-   * AsyncTask for retrieving the list of nearby places (e.g., stores) and updating the
-   * corresponding ListView and label.
+   * Adapter for the list of nearby places. Places are matched across refreshes by their place id.
    */
-  private class ListOfPlacesAsyncRetriever extends AsyncTask<Location, Void, PlaceInfoCollection> {
+  private class PlacesListAdapter extends DiffingListAdapter<PlaceInfo> {
+    private static final double KILOMETERS_IN_A_MILE = 1.60934;
 
-    /**
-     * Updates UI to indicate that the list of nearby places is being retrieved.
-     */
-    @Override
-    protected void onPreExecute() {
-      placesListLabel.setText(R.string.retrievingPlaces);
-      MainActivity.this.setProgressBarIndeterminateVisibility(true);
+    PlacesListAdapter() {
+      super(MainActivity.this, R.layout.place_item);
     }
 
-    /**
-     * Updates UI to indicate that retrieval of the list of nearby places completed successfully or
-     * failed.
-     */
     @Override
-    protected void onPostExecute(PlaceInfoCollection result) {
-      MainActivity.this.setProgressBarIndeterminateVisibility(false);
-
-      if (result == null || result.getItems() == null || result.getItems().size() < 1) {
-        if (result == null) {
-          placesListLabel.setText(R.string.failedToRetrievePlaces);
-        } else {
-          placesListLabel.setText(R.string.noPlacesNearby);
-        }
-
-        placesList.setAdapter(null);
-        return;
-      }
-
-      placesListLabel.setText(R.string.nearbyPlaces);
-
-      ListAdapter placesListAdapter = createPlaceListAdapter(result.getItems());
-      placesList.setAdapter(placesListAdapter);
-
-      places = result.getItems();
-    }
-
-    /**
-     * Creates ListAdapter populated with the list of nearby places.
-     *
-     * @param places the list of nearby places used to populate the adapter.
-     * @return an adapter populated with the list of nearby places.
-     */
-    private ListAdapter createPlaceListAdapter(List<PlaceInfo> places) {
-      final double kilometersInAMile = 1.60934;
-      List<Map<String, Object>> data = new ArrayList<Map<String, Object>>();
-      for (PlaceInfo place : places) {
-        Map<String, Object> map = new HashMap<String, Object>();
-        map.put("placeIcon", R.drawable.ic_launcher);
-        map.put("placeName", place.getName());
-        map.put("placeAddress", place.getAddress());
-        String distance = String.format(
-            getString(R.string.distance), place.getDistanceInKilometers(),
-            place.getDistanceInKilometers() / kilometersInAMile);
-        map.put("placeDistance", distance);
-        data.add(map);
-      }
-
-      SimpleAdapter adapter = new SimpleAdapter(MainActivity.this, data, R.layout.place_item,
-          new String[] {"placeIcon", "placeName", "placeAddress", "placeDistance"},
-          new int[] {R.id.place_Icon, R.id.place_name, R.id.place_address, R.id.place_distance});
-
-      return adapter;
+    String getItemKey(PlaceInfo place) {
+      return place.getPlaceId();
     }
 
-
-    /**
-     * Retrieves the list of nearby places through appropriate CloudEndpoint.
-     *
-     * @param params the current geolocation for which to retrieve the list of nearby places.
-     * @return the collection of retrieved nearby places.
-     */
     @Override
-    protected PlaceInfoCollection doInBackground(Location... params) {
-      Location checkInLocation = params[0];
-
-      float longitude;
-      float latitude;
-
-      if (checkInLocation == null) {
-        // return null;
-        // TODO(user): Remove this temporary code and just return null
-
-        longitude = (float) -122.12151;
-        latitude = (float) 47.67399;
-      } else {
-        latitude = (float) checkInLocation.getLatitude();
-        longitude = (float) checkInLocation.getLongitude();
-      }
-
-      Builder endpointBuilder = new Shoppingassistant.Builder(
-          AndroidHttp.newCompatibleTransport(), new JacksonFactory(),
-          CloudEndpointBuilderHelper.getRequestInitializer());
-
-      PlaceEndpoint placeEndpoint =
-          CloudEndpointBuilderHelper.updateBuilder(endpointBuilder).build().placeEndpoint();
-
-      PlaceInfoCollection result;
-
-      // Retrieve the list of up to 10 places within 50 kms
-      try {
-        long distanceInKm = 50;
-        int count = 10;
-
-        result = placeEndpoint.list(
-            count, distanceInKm, Float.toString(latitude), Float.toString(longitude)).execute();
-      } catch (IOException e) {
-        if (e != null) {
-          String message = e.getMessage();
-          if (message == null) {
-            message = e.toString();
-          }
-          log.severe("Exception=" + message);
-        }
-        result = null;
-      }
-      return result;
+    void bindView(View view, PlaceInfo place) {
+      ((ImageView) view.findViewById(R.id.place_Icon)).setImageResource(R.drawable.ic_launcher);
+      ((TextView) view.findViewById(R.id.place_name)).setText(place.getName());
+      ((TextView) view.findViewById(R.id.place_address)).setText(place.getAddress());
+      String distance = String.format(
+          getString(R.string.distance), place.getDistanceInKilometers(),
+          place.getDistanceInKilometers() / KILOMETERS_IN_A_MILE);
+      ((TextView) view.findViewById(R.id.place_distance)).setText(distance);
     }
   }
 
@@ -296,20 +304,16 @@ public class MainActivity extends Activity {
       checkin.setPlaceId(params[0].getPlaceId());
 
       Builder endpointBuilder = new Shoppingassistant.Builder(
-          AndroidHttp.newCompatibleTransport(), new JacksonFactory(),
+          AndroidHttp.newCompatibleTransport(), CloudEndpointBuilderHelper.getJsonFactory(),
           CloudEndpointBuilderHelper.getRequestInitializer());
 
       CheckInEndpoint checkinEndpoint =
           CloudEndpointBuilderHelper.updateBuilder(endpointBuilder).build().checkInEndpoint();
 
       try {
-        checkinEndpoint.insert(checkin).execute();
+        NetworkDispatcher.execute(checkinEndpoint.insert(checkin));
       } catch (IOException e) {
-        String message = e.getMessage();
-        if (message == null) {
-          message = e.toString();
-        }
-        log.warning("Exception when checking in =" + message);
+        // recorded by the NetworkDispatcher
       }
       return null;
     }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Sizes the in-memory caches of the application against a budget derived from the memory class
+ * of the device (the heap size available to the application) and sheds them when the system runs
+ * low on memory, from the cheapest to rebuild to the most expensive:
+ * <ol>
+ * <li>the least recently used half of the decoded images,</li>
+ * <li>all the decoded images, the prefetched offers and recommendations, the responses
+ * remembered for revalidation and the local copies kept for delta sync,</li>
+ * <li>the retained lists that are not displayed by any activity.</li>
+ * </ol>
+ * Must be called on the main thread.
+ */
+final class MemoryGovernor {
+  private static final Logger log = Logger.getLogger(MemoryGovernor.class.getName());
+
+  // fractions of the memory class used for decoded images, for cached offers and
+  // recommendations, for the responses remembered for revalidation and for the local copies kept
+  // for delta sync
+  private static final int IMAGE_BUDGET_DIVISOR = 8;
+  private static final int OFFERS_BUDGET_DIVISOR = 64;
+  private static final int RECOMMENDATIONS_BUDGET_DIVISOR = 64;
+  private static final int REVALIDATION_BUDGET_DIVISOR = 32;
+  private static final int DELTA_BUDGET_DIVISOR = 32;
+
+  // rough object overheads used to estimate the size of the retrieved data
+  private static final int OBJECT_OVERHEAD_IN_BYTES = 16;
+  private static final int STRING_OVERHEAD_IN_BYTES = 40;
+  private static final int ENTRY_OVERHEAD_IN_BYTES = 32;
+  private static final int REFERENCE_IN_BYTES = 4;
+
+  private static int memoryClassInBytes = 0;
+
+  private MemoryGovernor() {}
+
+  /**
+   * Sizes the caches for the device. Must be called when the application starts, before anything
+   * is cached.
+   */
+  static void initialize(Context context) {
+    ActivityManager activityManager =
+        (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    memoryClassInBytes = activityManager.getMemoryClass() * 1024 * 1024;
+
+    ImageCache.bitmaps.setMaxSize(memoryClassInBytes / IMAGE_BUDGET_DIVISOR);
+    PlaceDataCache.offers.setMaxSize(memoryClassInBytes / OFFERS_BUDGET_DIVISOR);
+    PlaceDataCache.recommendations.setMaxSize(memoryClassInBytes / RECOMMENDATIONS_BUDGET_DIVISOR);
+    ConditionalRequests.entries.setMaxSize(memoryClassInBytes / REVALIDATION_BUDGET_DIVISOR);
+    DeltaSync.copies.setMaxSize(memoryClassInBytes / DELTA_BUDGET_DIVISOR);
+    log.info("Memory budget: " + toSummary());
+  }
+
+  /**
+   * Sheds caches according to the level reported by
+   * {@link ComponentCallbacks2#onTrimMemory(int)}.
+   */
+  static void onTrimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+      shed(3);
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      shed(2);
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      shed(1);
+    }
+  }
+
+  /**
+   * Sheds all caches that can be shed, e.g., when the system reports low memory on devices that
+   * don't report trim levels.
+   */
+  static void onLowMemory() {
+    shed(3);
+  }
+
+  private static void shed(int priority) {
+    String before = toSummary();
+
+    if (priority >= 1) {
+      // images referenced by views stay in memory
+      ImageCache.bitmaps.trimToSize(ImageCache.bitmaps.getSize() / 2);
+    }
+    if (priority >= 2) {
+      ImageCache.clear();
+      PlaceDataCache.clear();
+      ConditionalRequests.clear();
+      DeltaSync.clear();
+    }
+    if (priority >= 3) {
+      clearIfNotDisplayed(DataRepository.places);
+      clearIfNotDisplayed(DataRepository.offers);
+      clearIfNotDisplayed(DataRepository.recommendations);
+    }
+
+    log.info("Shed caches (priority " + priority + ") from " + before + " to " + toSummary());
+  }
+
+  private static void clearIfNotDisplayed(RetainedList<?, ?, ?> list) {
+    if (!list.hasObservers()) {
+      list.clear();
+    }
+  }
+
+  /**
+   * Returns the bytes held by the caches and the retained lists against their budgets, and the
+   * heap in use against the memory class.
+   */
+  static String toSummary() {
+    Runtime runtime = Runtime.getRuntime();
+    long heapInUse = runtime.totalMemory() - runtime.freeMemory();
+    int retainedLists = estimateSize(DataRepository.places.getItems())
+        + estimateSize(DataRepository.offers.getItems())
+        + estimateSize(DataRepository.recommendations.getItems());
+
+    return "images=" + toSummary(ImageCache.bitmaps)
+        + " referencedImages=" + ImageCache.getReferencedCount()
+        + " offers=" + toSummary(PlaceDataCache.offers)
+        + " recommendations=" + toSummary(PlaceDataCache.recommendations)
+        + " revalidation=" + toSummary(ConditionalRequests.entries)
+        + " delta=" + toSummary(DeltaSync.copies)
+        + " retainedLists=" + kilobytes(retainedLists)
+        + " heap=" + kilobytes(heapInUse) + "/" + kilobytes(memoryClassInBytes);
+  }
+
+  private static String toSummary(SizedCache<?, ?> cache) {
+    return kilobytes(cache.getSize()) + "/" + kilobytes(cache.getMaxSize());
+  }
+
+  private static String kilobytes(long bytes) {
+    return (bytes / 1024) + "KB";
+  }
+
+  /**
+   * Estimates the bytes held by data retrieved through the Cloud Endpoints, i.e., by JSON objects
+   * (maps), arrays (collections), strings and numbers.
+   */
+  static int estimateSize(Object value) {
+    if (value == null) {
+      return 0;
+    } else if (value instanceof String) {
+      return STRING_OVERHEAD_IN_BYTES + 2 * ((String) value).length();
+    } else if (value instanceof Map) {
+      int size = OBJECT_OVERHEAD_IN_BYTES;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        size += ENTRY_OVERHEAD_IN_BYTES + estimateSize(entry.getKey())
+            + estimateSize(entry.getValue());
+      }
+      return size;
+    } else if (value instanceof Collection) {
+      int size = OBJECT_OVERHEAD_IN_BYTES;
+      for (Object element : (Collection<?>) value) {
+        size += REFERENCE_IN_BYTES + estimateSize(element);
+      }
+      return size;
+    }
+    return OBJECT_OVERHEAD_IN_BYTES;
+  }
+}
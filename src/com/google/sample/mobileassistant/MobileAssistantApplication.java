@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+
+/**
+ * Application that sizes the in-memory caches for the device when the process starts and sheds
+ * them when the system runs low on memory, including while no activity is running. It also
+ * initializes the selection of image variants for the network link and the snapshot of the lists
+ * displayed in the last session, schedules the background sync and saves the telemetry counters
+ * when the application is hidden.
+ */
+public class MobileAssistantApplication extends Application {
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    Tracer.initialize(this);
+    Telemetry.initialize(this);
+    Preconnector.initialize(this);
+    MemoryGovernor.initialize(this);
+    BandwidthEstimator.initialize(this);
+    ImageVariantPolicy.initialize(this);
+    Snapshot.initialize(this);
+    SyncService.schedule(this);
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    MemoryGovernor.onTrimMemory(level);
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      // the process may be killed from now on
+      Telemetry.save();
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    MemoryGovernor.onLowMemory();
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Admits every Cloud Endpoint call and image download of the application to the network, in the
+ * order of their priority classes, so background traffic doesn't slow down what the user is
+ * waiting for:
+ * <ul>
+ * <li>at most {@link #MAX_REQUESTS_PER_HOST} requests are in flight per host, and a waiting
+ * request is admitted before the waiting requests of lower priority for the same host;</li>
+ * <li>prefetch and telemetry requests are held back while a user-blocking request is waiting or
+ * in flight, and at most {@link #MAX_BACKGROUND_REQUESTS} of them are in flight at a time.</li>
+ * </ul>
+ * Requests run on the thread of their caller, which blocks until the request is admitted; the
+ * priority class is the one set for the calling thread, {@link Priority#VISIBLE} by default.
+ * Requests already in flight are never interrupted. Must not be called on the main thread.
+ *
+ * Every request, its duration, its failure and its wait to be admitted are recorded by the
+ * {@link Tracer}. A "304 Not Modified" answer is recorded as a successful request.
+ */
+final class NetworkDispatcher {
+  private static final int MAX_REQUESTS_PER_HOST = 4;
+  private static final int MAX_BACKGROUND_REQUESTS = 2;
+
+  /**
+   * Priority classes, from the highest to the lowest.
+   */
+  enum Priority {
+    /** Requests the user is waiting for, e.g., the first page of a displayed list. */
+    USER_BLOCKING,
+    /** Requests for content that is displayed, e.g., images or following pages. */
+    VISIBLE,
+    /** Requests for content that may be displayed later. */
+    PREFETCH,
+    /** Requests reporting on the application, e.g., device registration. */
+    TELEMETRY;
+
+    boolean isBackground() {
+      return compareTo(PREFETCH) >= 0;
+    }
+  }
+
+  /**
+   * A request to be executed once admitted.
+   *
+   * @param <T> type of the result of the request
+   */
+  interface Call<T> {
+    T call() throws IOException;
+  }
+
+  /**
+   * A request waiting to be admitted.
+   */
+  private static class Ticket implements Comparable<Ticket> {
+    final Priority priority;
+    final String host;
+    final long sequence;
+
+    Ticket(Priority priority, String host, long sequence) {
+      this.priority = priority;
+      this.host = host;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Ticket other) {
+      int comparison = priority.compareTo(other.priority);
+      if (comparison != 0) {
+        return comparison;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+
+  private static final ThreadLocal<Priority> threadPriority = new ThreadLocal<Priority>() {
+    @Override
+    protected Priority initialValue() {
+      return Priority.VISIBLE;
+    }
+  };
+
+  // guarded by the class
+  private static final TreeSet<Ticket> waiting = new TreeSet<Ticket>();
+  private static final Map<String, Integer> inFlightPerHost = new HashMap<String, Integer>();
+  private static int userBlockingRequests = 0;
+  private static int backgroundRequestsInFlight = 0;
+  private static long sequence = 0;
+
+  private NetworkDispatcher() {}
+
+  /**
+   * Sets the priority class of the requests made by the calling thread.
+   *
+   * @return the priority class set before, to be restored by threads that are reused, e.g., the
+   *         threads of a pool
+   */
+  static Priority setThreadPriority(Priority priority) {
+    Priority previous = threadPriority.get();
+    threadPriority.set(priority);
+    return previous;
+  }
+
+  /**
+   * Executes the Cloud Endpoint request once admitted.
+   */
+  static <T> T execute(final AbstractGoogleClientRequest<T> request) throws IOException {
+    return execute(request.buildHttpRequestUrl().getHost(), request, new Call<T>() {
+      @Override
+      public T call() throws IOException {
+        return request.execute();
+      }
+    });
+  }
+
+  /**
+   * Executes the request to the host once admitted.
+   *
+   * @param host the host the request is sent to
+   * @param call the request
+   * @return the result of the request
+   */
+  static <T> T execute(String host, Call<T> call) throws IOException {
+    return execute(host, null, call);
+  }
+
+  /**
+   * @param request the Cloud Endpoint request made by the call, or null if the call is not a
+   *        Cloud Endpoint request
+   */
+  private static <T> T execute(String host, AbstractGoogleClientRequest<?> request, Call<T> call)
+      throws IOException {
+    Object endpoint = request != null ? request.getClass() : host;
+    Object placeId = request != null ? request.get("placeId") : null;
+
+    Ticket ticket = admit(threadPriority.get(), host, endpoint, placeId);
+    Class<?> previousEndpoint =
+        CompressionPolicy.setCurrentEndpoint(request != null ? request.getClass() : null);
+    long start = System.currentTimeMillis();
+    try {
+      T result = call.call();
+      long duration = System.currentTimeMillis() - start;
+      long bytes = getBytes(request, result);
+      Tracer.record(Tracer.REQUEST, endpoint, placeId, duration, bytes, null);
+      if (request != null) {
+        Telemetry.recordRequest(request.getClass(), duration, bytes, false);
+      }
+      return result;
+    } catch (IOException e) {
+      long duration = System.currentTimeMillis() - start;
+      if (isNotModified(e)) {
+        // a successful revalidation without a body, which ConditionalRequests answers with the
+        // remembered response
+        Tracer.record(Tracer.REQUEST, endpoint, placeId, duration, 0, null);
+        if (request != null) {
+          Telemetry.recordRequest(request.getClass(), duration, 0, false);
+        }
+      } else {
+        Tracer.record(Tracer.REQUEST_FAILED, endpoint, placeId, duration, -1, e);
+        if (request != null) {
+          Telemetry.recordRequest(request.getClass(), duration, -1, true);
+        }
+      }
+      throw e;
+    } finally {
+      CompressionPolicy.setCurrentEndpoint(previousEndpoint);
+      release(ticket);
+      if (request != null) {
+        // the radio is up and the connection to the server open
+        Telemetry.onRequestCompleted(request.getAbstractGoogleClient());
+      }
+    }
+  }
+
+  /**
+   * Returns true if the exception is the "304 Not Modified" answer to a conditional request, which
+   * the client library reports as an exception.
+   */
+  private static boolean isNotModified(IOException e) {
+    return e instanceof HttpResponseException
+        && ((HttpResponseException) e).getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+  }
+
+  /**
+   * Returns the bytes of the response, or -1 if unknown, e.g., for a chunked response.
+   */
+  private static long getBytes(AbstractGoogleClientRequest<?> request, Object result) {
+    if (request != null) {
+      HttpHeaders headers = request.getLastResponseHeaders();
+      Long contentLength = headers != null ? headers.getContentLength() : null;
+      return contentLength != null ? contentLength : -1;
+    }
+    return result instanceof byte[] ? ((byte[]) result).length : -1;
+  }
+
+  private static synchronized Ticket admit(Priority priority, String host, Object endpoint,
+      Object placeId) throws InterruptedIOException {
+    Ticket ticket = new Ticket(priority, host, sequence++);
+    if (priority == Priority.USER_BLOCKING) {
+      userBlockingRequests++;
+    }
+
+    waiting.add(ticket);
+    long start = System.currentTimeMillis();
+    try {
+      while (!canStart(ticket)) {
+        NetworkDispatcher.class.wait();
+      }
+    } catch (InterruptedException e) {
+      waiting.remove(ticket);
+      if (priority == Priority.USER_BLOCKING) {
+        userBlockingRequests--;
+      }
+      NetworkDispatcher.class.notifyAll();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the network");
+    }
+    waiting.remove(ticket);
+
+    Integer inFlight = inFlightPerHost.get(host);
+    inFlightPerHost.put(host, inFlight != null ? inFlight + 1 : 1);
+    if (priority.isBackground()) {
+      backgroundRequestsInFlight++;
+    }
+
+    long waited = System.currentTimeMillis() - start;
+    if (waited > 0) {
+      Tracer.record(Tracer.REQUEST_WAITED, endpoint, placeId, waited, -1, null);
+    }
+    // other waiting requests may be admitted now, e.g., requests to other hosts
+    NetworkDispatcher.class.notifyAll();
+    return ticket;
+  }
+
+  private static boolean canStart(Ticket ticket) {
+    Integer inFlight = inFlightPerHost.get(ticket.host);
+    if (inFlight != null && inFlight >= MAX_REQUESTS_PER_HOST) {
+      return false;
+    }
+
+    // requests for the same host are admitted in order, the highest priority class first
+    for (Ticket other : waiting.headSet(ticket)) {
+      if (other.host.equals(ticket.host)) {
+        return false;
+      }
+    }
+
+    if (ticket.priority.isBackground()) {
+      return userBlockingRequests == 0 && backgroundRequestsInFlight < MAX_BACKGROUND_REQUESTS;
+    }
+    return true;
+  }
+
+  private static synchronized void release(Ticket ticket) {
+    int inFlight = inFlightPerHost.get(ticket.host) - 1;
+    if (inFlight == 0) {
+      inFlightPerHost.remove(ticket.host);
+    } else {
+      inFlightPerHost.put(ticket.host, inFlight);
+    }
+    if (ticket.priority == Priority.USER_BLOCKING) {
+      userBlockingRequests--;
+    }
+    if (ticket.priority.isBackground()) {
+      backgroundRequestsInFlight--;
+    }
+    NetworkDispatcher.class.notifyAll();
+  }
+}
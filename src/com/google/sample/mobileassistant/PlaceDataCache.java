@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.sample.mobileassistant.shoppingassistant.model.OfferCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.RecommendationCollection;
+
+/**
+ * In-memory cache of the offers and recommendations retrieved for places, keyed by place id.
+ * Entries older than {@link #MAX_AGE_IN_MILLISECONDS} are not returned. The size of the cache is
+ * the estimated number of bytes held by the cached entries, set by the {@link MemoryGovernor}
+ * separately for offers and for recommendations.
+ */
+final class PlaceDataCache {
+  static final long MAX_AGE_IN_MILLISECONDS = 1000 * 60 * 5;
+
+  static final SizedCache<String, Entry<OfferCollection>> offers = newCache();
+  static final SizedCache<String, Entry<RecommendationCollection>> recommendations = newCache();
+
+  /**
+   * Cached value together with the time it has been retrieved and its estimated size.
+   */
+  private static class Entry<T> {
+    final T value;
+    final long retrievedAt;
+    final int sizeInBytes;
+
+    Entry(T value) {
+      this.value = value;
+      this.retrievedAt = System.currentTimeMillis();
+      this.sizeInBytes = MemoryGovernor.estimateSize(value);
+    }
+
+    boolean isFresh() {
+      return System.currentTimeMillis() - retrievedAt < MAX_AGE_IN_MILLISECONDS;
+    }
+  }
+
+  private PlaceDataCache() {}
+
+  private static <T> SizedCache<String, Entry<T>> newCache() {
+    return new SizedCache<String, Entry<T>>() {
+      @Override
+      int sizeOf(Entry<T> entry) {
+        return entry.sizeInBytes;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached offers for the place or null if there are no fresh offers cached.
+   */
+  static OfferCollection getOffers(String placeId) {
+    return getFresh(offers, placeId);
+  }
+
+  /**
+   * Caches the offers retrieved for the place.
+   */
+  static void putOffers(String placeId, OfferCollection value) {
+    if (placeId != null && value != null) {
+      offers.put(placeId, new Entry<OfferCollection>(value));
+    }
+  }
+
+  /**
+   * Returns the cached recommendations for the place or null if there are no fresh
+   * recommendations cached.
+   */
+  static RecommendationCollection getRecommendations(String placeId) {
+    return getFresh(recommendations, placeId);
+  }
+
+  /**
+   * Caches the recommendations retrieved for the place.
+   */
+  static void putRecommendations(String placeId, RecommendationCollection value) {
+    if (placeId != null && value != null) {
+      recommendations.put(placeId, new Entry<RecommendationCollection>(value));
+    }
+  }
+
+  /**
+   * Removes all cached offers and recommendations.
+   */
+  static void clear() {
+    offers.clear();
+    recommendations.clear();
+  }
+
+  private static <T> T getFresh(SizedCache<String, Entry<T>> cache, String placeId) {
+    if (placeId == null) {
+      return null;
+    }
+
+    Entry<T> entry = cache.get(placeId);
+    if (entry == null || !entry.isFresh()) {
+      Telemetry.add(Telemetry.PLACE_DATA_CACHE_MISSES, 1);
+      return null;
+    }
+    Telemetry.add(Telemetry.PLACE_DATA_CACHE_HITS, 1);
+    return entry.value;
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.Builder;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.OfferEndpoint;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.RecommendationEndpoint;
+import com.google.sample.mobileassistant.shoppingassistant.model.Offer;
+import com.google.sample.mobileassistant.shoppingassistant.model.OfferCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
+import com.google.sample.mobileassistant.shoppingassistant.model.Recommendation;
+import com.google.sample.mobileassistant.shoppingassistant.model.RecommendationCollection;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Retrieves offers and recommendations, including their images, for the places closest to the
+ * user in the background, so that most of the time PlaceDetailsActivity can display them from
+ * {@link PlaceDataCache} and {@link ImageCache} without waiting for the network.
+ *
+ * Prefetching runs on a single low priority thread, stops once {@link #MAX_PREFETCH_BYTES} have
+ * been downloaded on the same day (also by earlier processes), doesn't run when the battery is low
+ * and not charging and doesn't download images over metered networks.
+ */
+final class PlaceDataPrefetcher {
+  private static final int TOP_PLACES_COUNT = 3;
+  private static final long MAX_PREFETCH_BYTES = 1024 * 1024;
+  private static final int MIN_BATTERY_PERCENT = 30;
+
+  // used for responses that don't specify their length (e.g., chunked or compressed responses)
+  private static final long ESTIMATED_RESPONSE_BYTES = 8 * 1024;
+
+  private static final String PREFERENCES_NAME = "Prefetch";
+  private static final String BUDGET_DAY = "budgetDay";
+  private static final String BUDGET_BYTES = "budgetBytes";
+
+  private static final Logger log = Logger.getLogger(PlaceDataPrefetcher.class.getName());
+
+  private static final ExecutorService executor =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+          return new Thread(new Runnable() {
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              NetworkDispatcher.setThreadPriority(NetworkDispatcher.Priority.PREFETCH);
+              runnable.run();
+            }
+          }, "PlaceDataPrefetcher");
+        }
+      });
+
+  // bytes prefetched on the budget day, accessed only from the prefetching thread
+  private static long budgetDay = -1;
+  private static long prefetchedBytes = 0;
+
+  // incremented for every new list of places, so prefetching for an older list stops
+  private static volatile int generation = 0;
+
+  private PlaceDataPrefetcher() {}
+
+  /**
+   * Starts prefetching offers and recommendations for the places closest to the user. Prefetching
+   * for a previous list of places that hasn't completed yet is abandoned.
+   *
+   * @param context the activity's context.
+   * @param places the list of nearby places.
+   */
+  static void prefetch(Context context, List<PlaceInfo> places) {
+    final int currentGeneration = ++generation;
+
+    if (places == null || places.isEmpty() || !isBatteryAllowingPrefetch(context)) {
+      return;
+    }
+
+    final boolean prefetchImages = !new ConnectivityManagerCompat().isActiveNetworkMetered(
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE));
+    final SharedPreferences preferences = context.getApplicationContext()
+        .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+    for (final PlaceInfo place : getClosestPlaces(places, TOP_PLACES_COUNT)) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (currentGeneration == generation) {
+            restoreBudget(preferences);
+            prefetchPlace(place, prefetchImages);
+            saveBudget(preferences);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Retrieves offers and recommendations for the place unless they are already cached.
+   */
+  private static void prefetchPlace(PlaceInfo place, boolean prefetchImages) {
+    String placeId = place.getPlaceId();
+
+    Builder endpointBuilder = new Shoppingassistant.Builder(
+        AndroidHttp.newCompatibleTransport(), CloudEndpointBuilderHelper.getJsonFactory(),
+        CloudEndpointBuilderHelper.getRequestInitializer());
+    Shoppingassistant endpoint = CloudEndpointBuilderHelper.updateBuilder(endpointBuilder).build();
+
+    try {
+      OfferCollection offers = PlaceDataCache.getOffers(placeId);
+      if (offers == null && hasBudget()) {
+        OfferEndpoint.List request = endpoint.offerEndpoint().list(placeId);
+        request.set(ListPager.PAGE_SIZE_PARAMETER, DataRepository.OFFERS_PAGE_SIZE);
+        offers = ConditionalRequests.execute(request);
+        countResponse(request);
+        PlaceDataCache.putOffers(placeId, offers);
+        SearchIndex.putOffers(place, offers.getItems(), true);
+      }
+
+      RecommendationCollection recommendations = PlaceDataCache.getRecommendations(placeId);
+      if (recommendations == null && hasBudget()) {
+        RecommendationEndpoint.List request = endpoint.recommendationEndpoint().list(placeId);
+        recommendations = ConditionalRequests.execute(request);
+        countResponse(request);
+        PlaceDataCache.putRecommendations(placeId, recommendations);
+        SearchIndex.putRecommendations(place, recommendations.getItems());
+      }
+
+      if (!prefetchImages) {
+        return;
+      }
+
+      if (offers != null && offers.getItems() != null) {
+        for (Offer offer : offers.getItems()) {
+          prefetchImage(offer.getImageUrl());
+        }
+      }
+      if (recommendations != null && recommendations.getItems() != null) {
+        for (Recommendation recommendation : recommendations.getItems()) {
+          prefetchImage(recommendation.getImageUrl());
+        }
+      }
+    } catch (IOException e) {
+      log.fine("Prefetching data for place " + placeId + " failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Loads the image into ImageCache, at the size of the images of the lists, unless it is already
+   * cached or being loaded.
+   */
+  private static void prefetchImage(String imageUrl) throws IOException {
+    if (imageUrl == null || !hasBudget()) {
+      return;
+    }
+    prefetchedBytes += ImageCache.prefetch(imageUrl, ImageVariantPolicy.getListImageSize());
+  }
+
+  private static boolean hasBudget() {
+    return prefetchedBytes < MAX_PREFETCH_BYTES;
+  }
+
+  /**
+   * Restores the bytes prefetched today, or starts the budget of a new day.
+   */
+  private static void restoreBudget(SharedPreferences preferences) {
+    long today = System.currentTimeMillis() / AlarmManager.INTERVAL_DAY;
+    if (today != budgetDay) {
+      budgetDay = today;
+      prefetchedBytes = preferences.getLong(BUDGET_DAY, -1) == today
+          ? preferences.getLong(BUDGET_BYTES, 0) : 0;
+    }
+  }
+
+  private static void saveBudget(SharedPreferences preferences) {
+    preferences.edit().putLong(BUDGET_DAY, budgetDay).putLong(BUDGET_BYTES, prefetchedBytes)
+        .commit();
+  }
+
+  private static void countResponse(AbstractGoogleClientRequest<?> request) {
+    prefetchedBytes += getResponseBytes(request);
+  }
+
+  /**
+   * Returns the bytes of the last response to the request, executed by the calling thread through
+   * {@link ConditionalRequests}, or an estimate if the response didn't specify its length. Also
+   * used by {@link SyncService}.
+   */
+  static long getResponseBytes(AbstractGoogleClientRequest<?> request) {
+    if (ConditionalRequests.wasNotModified(request)) {
+      // the response has been revalidated and carried no body
+      return 0;
+    }
+    HttpHeaders headers = request.getLastResponseHeaders();
+    Long length = headers != null ? headers.getContentLength() : null;
+    return length != null ? length : ESTIMATED_RESPONSE_BYTES;
+  }
+
+  /**
+   * Returns true if the battery is charging or has enough charge left to prefetch. Also used by
+   * {@link SyncService}.
+   */
+  static boolean isBatteryAllowingPrefetch(Context context) {
+    Intent battery = getBatteryStatus(context);
+    if (battery == null || isCharging(battery)) {
+      return true;
+    }
+
+    int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+    int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+    if (level < 0 || scale <= 0) {
+      return true;
+    }
+    return level * 100 / scale >= MIN_BATTERY_PERCENT;
+  }
+
+  /**
+   * Returns true if the device is plugged in and charging or fully charged.
+   */
+  static boolean isCharging(Context context) {
+    Intent battery = getBatteryStatus(context);
+    return battery != null && isCharging(battery);
+  }
+
+  private static boolean isCharging(Intent battery) {
+    int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+    return status == BatteryManager.BATTERY_STATUS_CHARGING
+        || status == BatteryManager.BATTERY_STATUS_FULL;
+  }
+
+  private static Intent getBatteryStatus(Context context) {
+    // a null receiver just returns the sticky battery status intent
+    return context.getApplicationContext().registerReceiver(
+        null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+  }
+
+  /**
+   * Returns up to count places closest to the user.
+   */
+  private static List<PlaceInfo> getClosestPlaces(List<PlaceInfo> places, int count) {
+    List<PlaceInfo> sortedPlaces = new ArrayList<PlaceInfo>(places);
+    Collections.sort(sortedPlaces, new Comparator<PlaceInfo>() {
+      @Override
+      public int compare(PlaceInfo place1, PlaceInfo place2) {
+        if (place1.getDistanceInKilometers() == null) {
+          return place2.getDistanceInKilometers() == null ? 0 : 1;
+        }
+        if (place2.getDistanceInKilometers() == null) {
+          return -1;
+        }
+        return place1.getDistanceInKilometers().compareTo(place2.getDistanceInKilometers());
+      }
+    });
+    return sortedPlaces.subList(0, Math.min(count, sortedPlaces.size()));
+  }
+}
@@ -13,42 +13,32 @@
  */
 package com.google.sample.mobileassistant;
 
-import com.google.api.client.extensions.android.http.AndroidHttp;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant;
-import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.Builder;
-import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.OfferEndpoint;
-import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.RecommendationEndpoint;
 import com.google.sample.mobileassistant.shoppingassistant.model.Offer;
-import com.google.sample.mobileassistant.shoppingassistant.model.OfferCollection;
 import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
 import com.google.sample.mobileassistant.shoppingassistant.model.Recommendation;
-import com.google.sample.mobileassistant.shoppingassistant.model.RecommendationCollection;
 
 import android.app.Activity;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
 import android.view.Window;
-import android.widget.ListAdapter;
 import android.widget.ListView;
-import android.widget.SimpleAdapter;
 import android.widget.TextView;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.logging.Logger;
-
 /**
  * Activity used when the user "selected" a place or checked into a place.
  */
 public class PlaceDetailsActivity extends Activity {
   protected static PlaceInfo currentPlace;
 
+  // the order the user selected for offers and recommendations, kept across places and rotations
+  static SortOrder sortOrder = SortOrder.SERVER;
+
+  // in orders other than the server one, offers and recommendations beyond this are displayed
+  // after the ranked ones, in the server order
+  private static final int MAX_RANKED_ITEMS = 100;
+
   ListView offersList;
   ListView recommendationsList;
 
@@ -56,9 +46,30 @@ public class PlaceDetailsActivity extends Activity {
   TextView offersListLabel;
   TextView recommendationsListLabel;
 
+  OffersListAdapter offersListAdapter;
+  RecommendationsListAdapter recommendationsListAdapter;
+
+  // shared by both lists, so an image that is both offered and recommended is loaded once
+  private final ImageUrlViewBinder imageBinder = new ImageUrlViewBinder(R.id.offer_Image);
+
+  // rank the items of the current place as they arrive, e.g., with the next page of offers
+  private final TopKRanking<Offer> offersRanking =
+      new TopKRanking<Offer>(MAX_RANKED_ITEMS, sortOrder.getOfferComparator());
+  private final TopKRanking<Recommendation> recommendationsRanking =
+      new TopKRanking<Recommendation>(MAX_RANKED_ITEMS, sortOrder.getRecommendationComparator());
+
+  private RetainedList.Observer listsObserver = new RetainedList.Observer() {
+    @Override
+    public void onListChanged() {
+      showOffers();
+      showRecommendations();
+    }
+  };
+
   /**
    * Initializes the activity content, binds relevant widgets and starts asynchronously retrieving
-   * offers and recommendations.
+   * offers and recommendations, unless they have been retrieved, or are being retrieved, for the
+   * current place already (e.g., before the device has been rotated or by prefetching).
    */
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -75,12 +86,47 @@ public class PlaceDetailsActivity extends Activity {
     offersListLabel = (TextView) findViewById(R.id.OffersListLabel);
     recommendationsListLabel = (TextView) findViewById(R.id.RecommendationListLabel);
 
+    offersListAdapter = new OffersListAdapter();
+    offersList.setAdapter(offersListAdapter);
+    offersList.setOnScrollListener(DataRepository.offers.getPager());
+    recommendationsListAdapter = new RecommendationsListAdapter();
+    recommendationsList.setAdapter(recommendationsListAdapter);
+    FrameMetrics.track(offersList, offersListAdapter.getMetricsName());
+    FrameMetrics.track(recommendationsList, recommendationsListAdapter.getMetricsName());
+
     placesNameLabel.setText(currentPlace.getName());
 
-    retrieveOffers();
-    retrieveRecommendations();
+    DataRepository.initialize(this);
+    DataRepository.offers.addObserver(listsObserver);
+    DataRepository.recommendations.addObserver(listsObserver);
+
+    if (savedInstanceState == null) {
+      // the places visited most often are synced in the background
+      SyncService.recordVisit(this, currentPlace.getPlaceId());
+    }
+
+    // a recreated activity displays the lists retained for it; otherwise failed or old lists are
+    // retrieved again
+    boolean recreated = savedInstanceState != null;
+    DataRepository.offers.loadIfNeeded(currentPlace, recreated);
+    DataRepository.recommendations.loadIfNeeded(currentPlace, recreated);
+
+    showOffers();
+    showRecommendations();
+  }
+
+  /**
+   * Stops observing offers and recommendations, so the destroyed activity can be garbage collected
+   * while they are still being retrieved, and releases the images of the lists.
+   */
+  @Override
+  protected void onDestroy() {
+    DataRepository.offers.removeObserver(listsObserver);
+    DataRepository.recommendations.removeObserver(listsObserver);
+    imageBinder.releaseAll();
+    super.onDestroy();
   }
-  
+
   @Override
   public boolean onCreateOptionsMenu(Menu menu) {
     // Inflate the menu; this adds items to the action bar if it is present.
@@ -88,6 +134,13 @@ public class PlaceDetailsActivity extends Activity {
     return true;
   }
 
+  @Override
+  public boolean onPrepareOptionsMenu(Menu menu) {
+    menu.findItem(R.id.menu_frameMetrics).setChecked(FrameMetrics.isEnabled());
+    menu.findItem(getSortOrderItemId(sortOrder)).setChecked(true);
+    return super.onPrepareOptionsMenu(menu);
+  }
+
   @Override
   public boolean onOptionsItemSelected(MenuItem item) {
     int itemId = item.getItemId();
@@ -95,223 +148,181 @@ public class PlaceDetailsActivity extends Activity {
       retrieveOffers();
       retrieveRecommendations();
       return true;
+    } else if (itemId == R.id.menu_frameMetrics) {
+      FrameMetrics.toggle(this);
+      return true;
+    } else if (getSortOrder(itemId) != null) {
+      setSortOrder(getSortOrder(itemId));
+      return true;
     } else {
       return super.onOptionsItemSelected(item);
     }
   }
 
   /**
-   * Retrieves offers asynchronously and updates relevant widgets
+   * Ranks the offers and recommendations in the order and displays them again.
+   */
+  void setSortOrder(SortOrder order) {
+    sortOrder = order;
+    offersRanking.setComparator(order.getOfferComparator());
+    recommendationsRanking.setComparator(order.getRecommendationComparator());
+    showOffers();
+    showRecommendations();
+  }
+
+  private static int getSortOrderItemId(SortOrder order) {
+    switch (order) {
+      case TITLE:
+        return R.id.menu_sortByTitle;
+      case DISCOUNT:
+        return R.id.menu_sortByDiscount;
+      case EXPIRATION:
+        return R.id.menu_sortByExpiration;
+      default:
+        return R.id.menu_sortByServerOrder;
+    }
+  }
+
+  private static SortOrder getSortOrder(int itemId) {
+    for (SortOrder order : SortOrder.values()) {
+      if (getSortOrderItemId(order) == itemId) {
+        return order;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Retrieves the first page of offers asynchronously and updates relevant widgets. Next pages are
+   * retrieved as the user scrolls through the list.
    */
   void retrieveOffers() {
-    new ListOfOffersAsyncRertriever().execute(currentPlace);
+    DataRepository.offers.load(currentPlace);
   }
 
   /**
    * Retrieves recommendations asynchronously and updates relevant widgets
    */
   void retrieveRecommendations() {
-    new ListOfRecommendationsAsyncRetriever().execute(currentPlace);
+    DataRepository.recommendations.load(currentPlace);
   }
 
   /**
-   * AsyncTask for retrieving the list of offers and updating the corresponding ListView and label.
+   * Shows the progress indicator while offers or recommendations are being retrieved.
    */
-  private class ListOfOffersAsyncRertriever extends AsyncTask<PlaceInfo, Void, OfferCollection> {
-    private Logger log = Logger.getLogger(ListOfOffersAsyncRertriever.class.getName());
+  private void updateProgressIndicator() {
+    setProgressBarIndeterminateVisibility(DataRepository.offers.isLoading()
+        || DataRepository.offers.isLoadingNextPage()
+        || DataRepository.recommendations.isLoading());
+  }
 
-    /**
-     * Updates UI to indicate that offers are being retrieved.
-     */
-    @Override
-    protected void onPreExecute() {
-      offersListLabel.setText(R.string.retrievingOffers);
-      PlaceDetailsActivity.this.setProgressBarIndeterminateVisibility(true);
+  /**
+   * Updates the list of offers and its label to show the offers retrieved so far, that they are
+   * being retrieved or that retrieving them failed.
+   */
+  void showOffers() {
+    RetainedList<PlaceInfo, ?, Offer> offers = DataRepository.offers;
+    updateProgressIndicator();
+
+    if (!offers.isRetrievedFor(currentPlace)) {
+      return;
     }
 
-    /**
-     * Updates UI to indicate that retrieval of the offers completed successfully or failed.
-     */
-    @Override
-    protected void onPostExecute(OfferCollection result) {
-      PlaceDetailsActivity.this.setProgressBarIndeterminateVisibility(false);
-
-      if (result == null || result.getItems() == null || result.getItems().size() < 1) {
-        if (result == null) {
-          offersListLabel.setText(R.string.failedToRetrieveOffers);
-        } else {
-          offersListLabel.setText(R.string.noOffers);
-        }
-        offersList.setAdapter(null);
-        return;
+    if (offers.isLoading()) {
+      offersListLabel.setText(R.string.retrievingOffers);
+      // the offers of the last visit, if any, until the current ones arrive
+      if (offers.isStale()) {
+        offersListAdapter.update(offersRanking.rank(offers.getItems()));
       }
+      return;
+    }
 
+    if (offers.hasFailed()) {
+      offersListLabel.setText(R.string.failedToRetrieveOffers);
+    } else if (offers.getItems().isEmpty()) {
+      offersListLabel.setText(R.string.noOffers);
+    } else {
       offersListLabel.setText(R.string.offers);
-
-      ListAdapter offersListAdapter = createOfferListAdapter(result.getItems());
-
-      offersList.setAdapter(offersListAdapter);
     }
+    offersListAdapter.update(offersRanking.rank(offers.getItems()));
+  }
 
-    /**
-     * Creates ListAdapter populated with offer information.
-     *
-     * @param offers the list of offers used to populate the adapter.
-     * @return an adapter populated with offer information.
-     */
-    private ListAdapter createOfferListAdapter(List<Offer> offers) {
-      List<Map<String, Object>> data = new ArrayList<Map<String, Object>>();
-      for (Offer offer : offers) {
-        Map<String, Object> map = new HashMap<String, Object>();
-        map.put("offerIcon", offer.getImageUrl());
-        map.put("offerTitle", offer.getTitle());
-        map.put("offerDetails", offer.getDescription());
-        data.add(map);
-      }
+  /**
+   * Updates the list of recommendations and its label to show the retrieved recommendations, that
+   * they are being retrieved or that retrieving them failed.
+   */
+  void showRecommendations() {
+    RetainedList<PlaceInfo, ?, Recommendation> recommendations = DataRepository.recommendations;
+    updateProgressIndicator();
 
-      SimpleAdapter adapter = new SimpleAdapter(PlaceDetailsActivity.this, data,
-          R.layout.offer_item, new String[] {"offerIcon", "offerTitle", "offerDetails"},
-          new int[] {R.id.offer_Image, R.id.offer_name, R.id.offer_description});
-      adapter.setViewBinder(new ImageUrlViewBinder(R.id.offer_Image));
-      return adapter;
+    if (!recommendations.isRetrievedFor(currentPlace)) {
+      return;
     }
 
-    /**
-     * Retrieves the list of offers through appropriate CloudEndpoint.
-     *
-     * @param params the place for which to retrieve offers.
-     * @return collection of retrieved offers.
-     */
-    @Override
-    protected OfferCollection doInBackground(PlaceInfo... params) {
-      PlaceInfo place = params[0];
-
-      if (place == null) {
-        return null;
+    if (recommendations.isLoading()) {
+      recommendationsListLabel.setText(R.string.retrievingRecommendations);
+      // the recommendations of the last visit, if any, until the current ones arrive
+      if (recommendations.isStale()) {
+        recommendationsListAdapter.update(
+            recommendationsRanking.rank(recommendations.getItems()));
       }
+      return;
+    }
 
-      Builder endpointBuilder = new Shoppingassistant.Builder(
-          AndroidHttp.newCompatibleTransport(), new JacksonFactory(),
-          CloudEndpointBuilderHelper.getRequestInitializer());
-
-      OfferEndpoint offerEndpoint =
-          CloudEndpointBuilderHelper.updateBuilder(endpointBuilder).build().offerEndpoint();
-
-      OfferCollection result;
-
-      try {
-        result = offerEndpoint.list(place.getPlaceId()).execute();
-      } catch (IOException e) {
-        String message = e.getMessage();
-        if (message == null) {
-          message = e.toString();
-        }
-        log.severe("Exception=" + message);
-        result = null;
-      }
-      return result;
+    if (recommendations.hasFailed()) {
+      recommendationsListLabel.setText(R.string.failedToRetrieveRecommendations);
+    } else if (recommendations.getItems().isEmpty()) {
+      recommendationsListLabel.setText(R.string.noRecommendations);
+    } else {
+      recommendationsListLabel.setText(R.string.recommendations);
     }
+    recommendationsListAdapter.update(
+        recommendationsRanking.rank(recommendations.getItems()));
   }
 
   /**
-   * AsyncTask for retrieving the list of recommendations and updating the corresponding ListView
-   * and label.
+   * Adapter for the list of offers. Offers are matched across refreshes by their offer id.
    */
-  private class ListOfRecommendationsAsyncRetriever
-      extends AsyncTask<PlaceInfo, Void, RecommendationCollection> {
-    private Logger log = Logger.getLogger(ListOfOffersAsyncRertriever.class.getName());
+  private class OffersListAdapter extends DiffingListAdapter<Offer> {
+    OffersListAdapter() {
+      super(PlaceDetailsActivity.this, R.layout.offer_item);
+    }
 
-    /**
-     * Updates UI to indicate that recommendations are being retrieved.
-     */
     @Override
-    protected void onPreExecute() {
-      recommendationsListLabel.setText(R.string.retrievingRecommendations);
-      PlaceDetailsActivity.this.setProgressBarIndeterminateVisibility(true);
+    String getItemKey(Offer offer) {
+      return offer.getOfferId();
     }
 
-    /**
-     * Updates UI to indicate that retrieval of the offers completed successfully or failed.
-     */
     @Override
-    protected void onPostExecute(RecommendationCollection result) {
-      PlaceDetailsActivity.this.setProgressBarIndeterminateVisibility(false);
-
-      if (result == null || result.getItems() == null || result.getItems().size() < 1) {
-        if (result == null) {
-          recommendationsListLabel.setText(R.string.failedToRetrieveRecommendations);
-        } else {
-          recommendationsListLabel.setText(R.string.noRecommendations);
-        }
-        recommendationsList.setAdapter(null);
-        return;
-      }
-
-      recommendationsListLabel.setText(R.string.recommendations);
-
-      ListAdapter recommendationsListAdapter = createRecommendationsListAdapter(result.getItems());
-      recommendationsList.setAdapter(recommendationsListAdapter);
+    void bindView(View view, Offer offer) {
+      imageBinder.setViewValue(
+          view.findViewById(R.id.offer_Image), offer.getImageUrl(), offer.getImageUrl());
+      ((TextView) view.findViewById(R.id.offer_name)).setText(offer.getTitle());
+      ((TextView) view.findViewById(R.id.offer_description)).setText(offer.getDescription());
     }
+  }
 
-    /**
-     * Creates ListAdapter populated with recommendation information.
-     *
-     * @param recommendations the list of recommendations used to populate the adapter.
-     * @return an adapter populated with recommendation information.
-     */
-    private ListAdapter createRecommendationsListAdapter(List<Recommendation> recommendations) {
-      List<Map<String, Object>> data = new ArrayList<Map<String, Object>>();
-      for (Recommendation recommendation : recommendations) {
-        Map<String, Object> map = new HashMap<String, Object>();
-        map.put("productImage", recommendation.getImageUrl());
-        map.put("recommendationTitle", recommendation.getTitle());
-        map.put("recommendationDetails", recommendation.getDescription());
-        data.add(map);
-      }
-
-      SimpleAdapter adapter = new SimpleAdapter(PlaceDetailsActivity.this, data,
-          R.layout.offer_item,
-          new String[] {"productImage", "recommendationTitle", "recommendationDetails"},
-          new int[] {R.id.offer_Image, R.id.offer_name, R.id.offer_description});
-      adapter.setViewBinder(new ImageUrlViewBinder(R.id.offer_Image));
-      return adapter;
+  /**
+   * Adapter for the list of recommendations. Recommendations are matched across refreshes by their
+   * title and image url.
+   */
+  private class RecommendationsListAdapter extends DiffingListAdapter<Recommendation> {
+    RecommendationsListAdapter() {
+      super(PlaceDetailsActivity.this, R.layout.offer_item);
     }
 
-    /**
-     * Retrieves the list of recommendations through appropriate CloudEndpoint.
-     *
-     * @param params the place for which to retrieve recommendations.
-     * @return collection of retrieved recommendations.
-     */
     @Override
-    protected RecommendationCollection doInBackground(PlaceInfo... params) {
-      PlaceInfo place = params[0];
-
-      if (place == null) {
-        return null;
-      }
+    String getItemKey(Recommendation recommendation) {
+      return recommendation.getTitle() + "|" + recommendation.getImageUrl();
+    }
 
-      Builder endpointBuilder = new Shoppingassistant.Builder(
-          AndroidHttp.newCompatibleTransport(), new JacksonFactory(),
-          CloudEndpointBuilderHelper.getRequestInitializer());
-
-      RecommendationEndpoint recommendationEndpoint =
-          CloudEndpointBuilderHelper.updateBuilder(endpointBuilder)
-              .build().recommendationEndpoint();
-
-      RecommendationCollection result;
-
-      try {
-        result = recommendationEndpoint.list(place.getPlaceId()).execute();
-      } catch (IOException e) {
-        String message = e.getMessage();
-        if (message == null) {
-          message = e.toString();
-        }
-        log.severe("Exception=" + message);
-        result = null;
-      }
-      return result;
+    @Override
+    void bindView(View view, Recommendation recommendation) {
+      imageBinder.setViewValue(view.findViewById(R.id.offer_Image),
+          recommendation.getImageUrl(), recommendation.getImageUrl());
+      ((TextView) view.findViewById(R.id.offer_name)).setText(recommendation.getTitle());
+      ((TextView) view.findViewById(R.id.offer_description))
+          .setText(recommendation.getDescription());
     }
   }
 }
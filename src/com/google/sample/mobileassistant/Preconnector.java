@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.Security;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Takes the DNS lookup, TCP connect and TLS handshake off the first Cloud Endpoint request:
+ * <ul>
+ * <li>TLS sessions of all HTTPS connections of the application are kept in an
+ * {@link SSLSessionCache} on disk, so handshakes are resumed, with one round trip less and
+ * without the key exchange, also after the process restarted;</li>
+ * <li>{@link #preconnect(String)} resolves the API host and opens a connection to it while the
+ * sign in is showing; the connection is kept alive in the connection pool and reused by the
+ * first request;</li>
+ * <li>DNS answers are kept for {@link #DNS_CACHE_TTL_IN_SECONDS} by the Java resolver on the
+ * platform versions that honor the "networkaddress.cache.ttl" property. Newer versions cache
+ * answers in the platform resolver for the TTL of the records, which the lookup of
+ * {@link #preconnect(String)} fills.</li>
+ * </ul>
+ * The duration of every TLS handshake is recorded by the {@link Tracer} and, separately for full
+ * and resumed handshakes, by the {@link Telemetry}, together with the duration of the DNS
+ * lookups and of the pre-connects.
+ */
+final class Preconnector {
+  // counters
+  static final String FULL_HANDSHAKES = "tls.fullHandshakes";
+  static final String FULL_HANDSHAKE_MILLISECONDS = "tls.fullHandshakes.totalMs";
+  static final String RESUMED_HANDSHAKES = "tls.resumedHandshakes";
+  static final String RESUMED_HANDSHAKE_MILLISECONDS = "tls.resumedHandshakes.totalMs";
+  static final String DNS_LOOKUPS = "dns.lookups";
+  static final String DNS_LOOKUP_MILLISECONDS = "dns.lookups.totalMs";
+  static final String PRECONNECTS = "preconnects";
+  static final String PRECONNECT_MILLISECONDS = "preconnects.totalMs";
+
+  private static final int DNS_CACHE_TTL_IN_SECONDS = 5 * 60;
+  private static final int HANDSHAKE_TIMEOUT_IN_MILLISECONDS = 15 * 1000;
+  private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 10 * 1000;
+
+  private Preconnector() {}
+
+  /**
+   * Makes all HTTPS connections opened from now on resume the TLS sessions saved on disk and
+   * record their handshakes. Must be called before the first connection is opened.
+   *
+   * @param context any context of the application
+   */
+  static void initialize(Context context) {
+    Security.setProperty("networkaddress.cache.ttl", Integer.toString(DNS_CACHE_TTL_IN_SECONDS));
+
+    SSLSocketFactory factory = (SSLSocketFactory) SSLCertificateSocketFactory.getDefault(
+        HANDSHAKE_TIMEOUT_IN_MILLISECONDS, new SSLSessionCache(context.getApplicationContext()));
+    HttpsURLConnection.setDefaultSSLSocketFactory(new HandshakeTimingSocketFactory(factory));
+  }
+
+  /**
+   * Resolves the host of the root url and opens a connection to it, which stays in the pool of
+   * idle connections. Runs on the calling thread, which must not be the main thread; failures are
+   * only recorded, since the first request will connect again.
+   *
+   * @param rootUrl the root url of the Cloud Endpoints
+   */
+  static void preconnect(String rootUrl) {
+    long start = SystemClock.elapsedRealtime();
+    URL url;
+    try {
+      url = new URL(rootUrl);
+      InetAddress.getAllByName(url.getHost());
+      long lookupDuration = SystemClock.elapsedRealtime() - start;
+      Telemetry.add(DNS_LOOKUPS, 1);
+      Telemetry.add(DNS_LOOKUP_MILLISECONDS, lookupDuration);
+      Tracer.record(Tracer.DNS_LOOKUP, url.getHost(), null, lookupDuration, -1, null);
+
+      connect(url);
+    } catch (IOException e) {
+      Tracer.record(Tracer.PRECONNECT_FAILED, rootUrl, null,
+          SystemClock.elapsedRealtime() - start, -1, e);
+      return;
+    }
+
+    long duration = SystemClock.elapsedRealtime() - start;
+    Telemetry.add(PRECONNECTS, 1);
+    Telemetry.add(PRECONNECT_MILLISECONDS, duration);
+    Tracer.record(Tracer.PRECONNECT, url.getHost(), null, duration, -1, null);
+  }
+
+  /**
+   * Sends a HEAD request to the url and reads the response completely, so the connection is
+   * returned to the pool rather than closed.
+   */
+  private static void connect(final URL url) throws IOException {
+    NetworkDispatcher.execute(url.getHost(), new NetworkDispatcher.Call<Void>() {
+      @Override
+      public Void call() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
+        connection.setRequestMethod("HEAD");
+        int status = connection.getResponseCode();
+        InputStream in =
+            status < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream()
+                : connection.getErrorStream();
+        if (in != null) {
+          in.close();
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Records a completed handshake. A session created before the socket has been resumed.
+   *
+   * @param session the session of the handshake
+   * @param socketCreationTime the time the socket was created, in milliseconds since the epoch
+   * @param durationInMilliseconds the time from the creation of the socket to the end of the
+   *        handshake
+   */
+  private static void recordHandshake(SSLSession session, long socketCreationTime,
+      long durationInMilliseconds) {
+    boolean resumed = session.getCreationTime() < socketCreationTime;
+    if (resumed) {
+      Telemetry.add(RESUMED_HANDSHAKES, 1);
+      Telemetry.add(RESUMED_HANDSHAKE_MILLISECONDS, durationInMilliseconds);
+    } else {
+      Telemetry.add(FULL_HANDSHAKES, 1);
+      Telemetry.add(FULL_HANDSHAKE_MILLISECONDS, durationInMilliseconds);
+    }
+    Tracer.record(resumed ? Tracer.HANDSHAKE_RESUMED : Tracer.HANDSHAKE, session.getPeerHost(),
+        null, durationInMilliseconds, -1, null);
+  }
+
+  /**
+   * Socket factory that times the TLS handshakes of the sockets created by another factory.
+   * HttpsURLConnection layers TLS over an already connected socket, so the time from the creation
+   * of such a socket to the end of its handshake is the duration of the handshake.
+   */
+  private static class HandshakeTimingSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+
+    HandshakeTimingSocketFactory(SSLSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return time(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+        throws IOException {
+      return time(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return time(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+        throws IOException {
+      return time(delegate.createSocket(host, port, localAddress, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port) throws IOException {
+      return time(delegate.createSocket(address, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+        int localPort) throws IOException {
+      return time(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private static Socket time(Socket socket) {
+      if (socket instanceof SSLSocket) {
+        final long creationTime = System.currentTimeMillis();
+        final long start = SystemClock.elapsedRealtime();
+        ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+          @Override
+          public void handshakeCompleted(HandshakeCompletedEvent event) {
+            recordHandshake(event.getSession(), creationTime,
+                SystemClock.elapsedRealtime() - start);
+          }
+        });
+      }
+      return socket;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.OfferEndpoint;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant.RecommendationEndpoint;
+import com.google.sample.mobileassistant.shoppingassistant.model.OfferCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfoCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.RecommendationCollection;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the product of a price drop notification to the offers and recommendations of the
+ * nearby places, so the screen the notification opens is complete without a request.
+ *
+ * The product is looked up in the {@link SearchIndex}, after indexing the lists of the nearby
+ * places that are cached on the device, in the {@link PlaceDataCache} or the {@link Snapshot}.
+ * Only if it is still not found are the lists missing on the device retrieved, for at most
+ * {@link #MAX_FETCHED_PLACES} places, in a single batch request.
+ *
+ * The lists are only kept in memory, so SearchActivity resolves the product again when it is
+ * opened in a new process. Must be called on a background thread, e.g., the thread of the
+ * GCMIntentService.
+ */
+final class PriceDropResolver {
+  private static final Logger log = Logger.getLogger(PriceDropResolver.class.getName());
+
+  private static final String BATCH_PATH = "batch";
+  private static final int MAX_FETCHED_PLACES = 5;
+  private static final long MAIN_THREAD_TIMEOUT_IN_MILLISECONDS = 5000;
+
+  private static final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+
+  private PriceDropResolver() {}
+
+  /**
+   * Returns the offers and recommendations titled with the product name, retrieving the lists of
+   * the nearby places missing on the device if none is found in the cached ones.
+   *
+   * @param productName the name of the product whose price dropped
+   * @param priority the priority class of the batch request, e.g.,
+   *        {@link NetworkDispatcher.Priority#PREFETCH} when the notification is prepared
+   * @return the items, in the order of the places, or an empty list if the product wasn't found
+   */
+  static List<SearchIndex.Item> resolve(
+      String productName, NetworkDispatcher.Priority priority) {
+    List<SearchIndex.Item> items = SearchIndex.findByTitle(productName);
+    if (!items.isEmpty()) {
+      return items;
+    }
+
+    List<PlaceInfo> missingPlaces = indexCachedLists();
+    items = SearchIndex.findByTitle(productName);
+    if (!items.isEmpty() || missingPlaces.isEmpty()) {
+      return items;
+    }
+
+    try {
+      fetch(missingPlaces.subList(0, Math.min(MAX_FETCHED_PLACES, missingPlaces.size())),
+          priority);
+    } catch (IOException e) {
+      log.fine("Retrieving the lists for a price drop failed: " + e.getMessage());
+    }
+    return SearchIndex.findByTitle(productName);
+  }
+
+  /**
+   * Indexes the offers and recommendations of the last nearby places that are cached on the
+   * device and not indexed yet. Runs on the main thread, which the {@link Snapshot} requires.
+   *
+   * @return the places whose offers or recommendations are not on the device, nearest first
+   */
+  private static List<PlaceInfo> indexCachedLists() {
+    FutureTask<List<PlaceInfo>> task = new FutureTask<List<PlaceInfo>>(
+        new Callable<List<PlaceInfo>>() {
+          @Override
+          public List<PlaceInfo> call() {
+            PlaceInfoCollection places = Snapshot.getPlaces();
+            if (places == null || places.getItems() == null) {
+              return Collections.emptyList();
+            }
+
+            Set<PlaceInfo> missingPlaces = new LinkedHashSet<PlaceInfo>();
+            for (PlaceInfo place : places.getItems()) {
+              String placeId = place.getPlaceId();
+              if (!SearchIndex.isIndexed(SearchIndex.OFFER, placeId)) {
+                OfferCollection offers = PlaceDataCache.getOffers(placeId);
+                if (offers == null) {
+                  offers = Snapshot.getOffers(placeId);
+                }
+                if (offers != null) {
+                  SearchIndex.putOffers(place, offers.getItems(), true);
+                } else {
+                  missingPlaces.add(place);
+                }
+              }
+
+              if (!SearchIndex.isIndexed(SearchIndex.RECOMMENDATION, placeId)) {
+                RecommendationCollection recommendations =
+                    PlaceDataCache.getRecommendations(placeId);
+                if (recommendations == null) {
+                  recommendations = Snapshot.getRecommendations(placeId);
+                }
+                if (recommendations != null) {
+                  SearchIndex.putRecommendations(place, recommendations.getItems());
+                } else {
+                  missingPlaces.add(place);
+                }
+              }
+            }
+            return new ArrayList<PlaceInfo>(missingPlaces);
+          }
+        });
+
+    mainThreadHandler.post(task);
+    try {
+      return task.get(MAIN_THREAD_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.warning("Indexing the cached lists failed: " + e.getCause());
+    } catch (TimeoutException e) {
+      log.fine("Indexing the cached lists timed out");
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Retrieves the offers and recommendations of the places in one batch request, at the priority,
+   * and caches and indexes them.
+   */
+  private static void fetch(List<PlaceInfo> places, NetworkDispatcher.Priority priority)
+      throws IOException {
+    Shoppingassistant client = DataRepository.newEndpoint();
+    final BatchRequest batch = client.batch();
+    final GenericUrl batchUrl = new GenericUrl(client.getRootUrl() + BATCH_PATH);
+    batch.setBatchUrl(batchUrl);
+
+    for (final PlaceInfo place : places) {
+      final String placeId = place.getPlaceId();
+      if (!SearchIndex.isIndexed(SearchIndex.OFFER, placeId)) {
+        OfferEndpoint.List request = DataRepository.newOffersRequest(placeId, null);
+        request.queue(batch, GoogleJsonErrorContainer.class,
+            new JsonBatchCallback<OfferCollection>() {
+              @Override
+              public void onSuccess(OfferCollection offers, HttpHeaders responseHeaders) {
+                PlaceDataCache.putOffers(placeId, offers);
+                SearchIndex.putOffers(place, offers.getItems(), true);
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                log.fine("Retrieving the offers of " + placeId + " failed: " + error.getMessage());
+              }
+            });
+      }
+      if (!SearchIndex.isIndexed(SearchIndex.RECOMMENDATION, placeId)) {
+        RecommendationEndpoint.List request = DataRepository.newRecommendationsRequest(placeId);
+        request.queue(batch, GoogleJsonErrorContainer.class,
+            new JsonBatchCallback<RecommendationCollection>() {
+              @Override
+              public void onSuccess(
+                  RecommendationCollection recommendations, HttpHeaders responseHeaders) {
+                PlaceDataCache.putRecommendations(placeId, recommendations);
+                SearchIndex.putRecommendations(place, recommendations.getItems());
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                log.fine("Retrieving the recommendations of " + placeId + " failed: "
+                    + error.getMessage());
+              }
+            });
+      }
+    }
+    if (batch.size() == 0) {
+      return;
+    }
+
+    NetworkDispatcher.Priority previousPriority = NetworkDispatcher.setThreadPriority(priority);
+    try {
+      NetworkDispatcher.execute(batchUrl.getHost(), new NetworkDispatcher.Call<Void>() {
+        @Override
+        public Void call() throws IOException {
+          batch.execute();
+          return null;
+        }
+      });
+    } finally {
+      NetworkDispatcher.setThreadPriority(previousPriority);
+    }
+  }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.json.GenericJson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A list retrieved through a Cloud Endpoint, page by page, whose state (the items retrieved so far
+ * and whether a request is in flight) is kept independently of the activities that display it.
+ * When an activity is recreated, e.g., after a configuration change, it observes the same list
+ * again and reuses the in-flight and completed requests instead of starting new ones.
+ *
+ * Observers are notified on the main thread and must be removed when their activity is destroyed.
+ *
+ * @param <P> type of the parameters of the request (e.g., the place whose offers are retrieved)
+ * @param <C> type of the collection returned by the endpoint
+ * @param <T> type of the items in the list
+ */
+abstract class RetainedList<P, C extends GenericJson, T> {
+
+  /**
+   * Observer notified whenever the state of the list changes.
+   */
+  interface Observer {
+    void onListChanged();
+  }
+
+  private static final String NEXT_PAGE_GROUP_SUFFIX = ".nextPage";
+
+  private final String name;
+  private final List<Observer> observers = new ArrayList<Observer>();
+
+  private final ListPager pager = new ListPager(new ListPager.NextPageLoader() {
+    @Override
+    public void loadNextPage(String pageToken) {
+      new FetchTask(pageToken).execute(params);
+      notifyObservers();
+    }
+  });
+
+  private P params = null;
+  private List<T> items = null;
+  private boolean loading = false;
+  private boolean failed = false;
+  private boolean stale = false;
+  // when the items have been retrieved, or 0 if they haven't
+  private long retrievedAt = 0;
+
+  // incremented when the list is cleared or its first page is requested again, so the results of
+  // earlier requests (e.g., a following page of the previous content) are dropped
+  private int generation = 0;
+
+  /**
+   * @constructor
+   *
+   * @param name the name of the list, also used as the group of the requests for its first page
+   *        and, with a suffix, of the requests for its following pages.
+   */
+  RetainedList(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the key that identifies the list retrieved for the parameters (e.g., the place id).
+   */
+  abstract String getKey(P params);
+
+  /**
+   * Retrieves a page of the list through the appropriate Cloud Endpoint. Runs on a background
+   * thread.
+   *
+   * @param params the parameters of the request
+   * @param pageToken the token of the page to retrieve or null to retrieve the first page
+   */
+  abstract C fetch(P params, String pageToken) throws IOException;
+
+  /**
+   * Returns the items of a retrieved page.
+   */
+  abstract List<T> getItems(C page);
+
+  /**
+   * Returns a cached first page for the parameters or null if there is none. The default
+   * implementation doesn't cache.
+   */
+  C getCached(P params) {
+    return null;
+  }
+
+  /**
+   * Returns a first page for the parameters that may be out of date, e.g., from the snapshot of
+   * an earlier session, to display while the list is being retrieved, or null if there is none.
+   * Only called when the list holds no items for the parameters. The default implementation
+   * returns null.
+   */
+  C getStale(P params) {
+    return null;
+  }
+
+  /**
+   * Called on the main thread when the first page has been retrieved successfully from the
+   * network. Not called for a page returned by {@link #getCached}.
+   */
+  void onFirstPageRetrieved(P params, C page) {}
+
+  /**
+   * Called on the main thread when a following page has been retrieved successfully.
+   */
+  void onNextPageRetrieved(P params, C page) {}
+
+  /**
+   * Starts retrieving the first page of the list for the parameters, replacing the current
+   * content when it arrives. Used when the user asks for a refresh.
+   */
+  void load(P params) {
+    if (items == null || this.params == null || !getKey(this.params).equals(getKey(params))) {
+      C stalePage = getStale(params);
+      if (stalePage != null && getItems(stalePage) != null) {
+        items = new ArrayList<T>(getItems(stalePage));
+        stale = true;
+      }
+    }
+
+    this.params = params;
+    loading = true;
+    generation++;
+    pager.reset();
+    new FetchTask(null).execute(params);
+    notifyObservers();
+  }
+
+  /**
+   * Starts retrieving the list for the parameters unless it is being retrieved for the same key,
+   * or has been retrieved for it and is either up to date or kept for a recreated activity. A
+   * fresh cached first page is used without a request.
+   *
+   * @param params the parameters of the request
+   * @param recreated true if the activity displaying the list is being recreated, e.g., after
+   *        the device has been rotated, in which case the retained list is displayed as it is,
+   *        even if retrieving it failed
+   * @return true if a request has been started.
+   */
+  boolean loadIfNeeded(P params, boolean recreated) {
+    if (isRetrievedFor(params) && (loading || recreated || isUpToDate())) {
+      return false;
+    }
+
+    C cached = getCached(params);
+    if (cached != null) {
+      this.params = params;
+      loading = false;
+      // a request in flight for other parameters must not replace the cached page
+      generation++;
+      pager.reset();
+      onFirstPage(cached, false);
+      return false;
+    }
+
+    load(params);
+    return true;
+  }
+
+  /**
+   * Forgets the retrieved items and drops the results of the requests in flight, so the next
+   * {@link #loadIfNeeded} starts from scratch.
+   */
+  void clear() {
+    generation++;
+    params = null;
+    items = null;
+    loading = false;
+    failed = false;
+    stale = false;
+    retrievedAt = 0;
+    pager.reset();
+    notifyObservers();
+  }
+
+  /**
+   * Returns true if the list has been retrieved, or is being retrieved, for the key of the
+   * parameters.
+   */
+  boolean isRetrievedFor(P params) {
+    return this.params != null && (items != null || loading)
+        && getKey(this.params).equals(getKey(params));
+  }
+
+  /**
+   * Returns true if the list has been retrieved, or is being retrieved, for any parameters.
+   */
+  boolean isRetrievedOrLoading() {
+    return items != null || loading;
+  }
+
+  /**
+   * Returns true if the first page has been retrieved successfully, and not longer than
+   * {@link PlaceDataCache#MAX_AGE_IN_MILLISECONDS} ago, for the current parameters. False while
+   * stale items are displayed or after retrieving the first page failed.
+   */
+  boolean isUpToDate() {
+    return items != null && !failed && !stale && retrievedAt > 0
+        && System.currentTimeMillis() - retrievedAt < PlaceDataCache.MAX_AGE_IN_MILLISECONDS;
+  }
+
+  /**
+   * Returns the parameters of the last request.
+   */
+  P getParams() {
+    return params;
+  }
+
+  /**
+   * Returns the items retrieved so far or an empty list.
+   */
+  List<T> getItems() {
+    return items != null ? items : Collections.<T>emptyList();
+  }
+
+  /**
+   * Returns true while the first page is being retrieved.
+   */
+  boolean isLoading() {
+    return loading;
+  }
+
+  /**
+   * Returns true while a next page is being retrieved.
+   */
+  boolean isLoadingNextPage() {
+    return pager.isLoading();
+  }
+
+  /**
+   * Returns true if the items are a stale first page displayed while the list is being retrieved
+   * or because retrieving it failed.
+   */
+  boolean isStale() {
+    return stale;
+  }
+
+  /**
+   * Returns true if retrieving the first page failed.
+   */
+  boolean hasFailed() {
+    return failed;
+  }
+
+  /**
+   * Returns the scroll listener that retrieves the next page when the user scrolls near the end
+   * of the ListView that displays the list.
+   */
+  ListPager getPager() {
+    return pager;
+  }
+
+  void addObserver(Observer observer) {
+    observers.add(observer);
+  }
+
+  void removeObserver(Observer observer) {
+    observers.remove(observer);
+  }
+
+  /**
+   * Returns true if the list is observed, i.e., displayed by an activity.
+   */
+  boolean hasObservers() {
+    return !observers.isEmpty();
+  }
+
+  private void notifyObservers() {
+    for (Observer observer : new ArrayList<Observer>(observers)) {
+      observer.onListChanged();
+    }
+  }
+
+  /**
+   * Displays the first page.
+   *
+   * @param result the page or null if retrieving it failed
+   * @param retrieved true if the page has been retrieved from the network rather than a cache
+   */
+  private void onFirstPage(C result, boolean retrieved) {
+    pager.onPageLoaded(result);
+
+    failed = result == null;
+    if (result != null) {
+      retrievedAt = System.currentTimeMillis();
+    }
+    // stale items stay in place if the list couldn't be retrieved
+    if (result != null || !stale) {
+      stale = false;
+      items = new ArrayList<T>();
+      if (result != null && getItems(result) != null) {
+        items.addAll(getItems(result));
+      }
+    }
+    notifyObservers();
+
+    if (result != null && retrieved) {
+      onFirstPageRetrieved(params, result);
+    }
+  }
+
+  private void onNextPage(C result) {
+    pager.onPageLoaded(result);
+
+    // a failed next page leaves the retrieved items in place
+    if (result != null && getItems(result) != null) {
+      List<T> moreItems = new ArrayList<T>(items);
+      moreItems.addAll(getItems(result));
+      items = moreItems;
+    }
+    notifyObservers();
+
+    if (result != null) {
+      onNextPageRetrieved(params, result);
+    }
+  }
+
+  /**
+   * Task retrieving a page of the list. It only references the list, not any activity, so it can
+   * complete after the activity that started it has been destroyed.
+   */
+  private class FetchTask extends SingleFlightTask<P, C> {
+    private final String pageToken;
+    private final int fetchGeneration = generation;
+
+    FetchTask(String pageToken) {
+      // a following page neither supersedes nor is superseded by a first page in flight
+      super(pageToken == null ? name : name + NEXT_PAGE_GROUP_SUFFIX);
+      this.pageToken = pageToken;
+    }
+
+    @Override
+    String getRequestKey(P... params) {
+      return getKey(params[0]) + "/" + pageToken;
+    }
+
+    @Override
+    protected C doInBackground(P... params) {
+      // the user waits for the first page, following pages are usually requested ahead of time
+      NetworkDispatcher.Priority priority = NetworkDispatcher.setThreadPriority(pageToken == null
+          ? NetworkDispatcher.Priority.USER_BLOCKING : NetworkDispatcher.Priority.VISIBLE);
+      long start = System.currentTimeMillis();
+      try {
+        C result = fetch(params[0], pageToken);
+        Tracer.record(Tracer.FETCH, name, getKey(params[0]), System.currentTimeMillis() - start,
+            -1, null);
+        return result;
+      } catch (IOException e) {
+        Tracer.record(Tracer.FETCH_FAILED, name, getKey(params[0]),
+            System.currentTimeMillis() - start, -1, e);
+        return null;
+      } finally {
+        NetworkDispatcher.setThreadPriority(priority);
+      }
+    }
+
+    @Override
+    protected void onPostExecute(C result) {
+      if (fetchGeneration != generation) {
+        // the list has been cleared or its first page requested again in the meantime
+        return;
+      }
+
+      if (pageToken == null) {
+        loading = false;
+        onFirstPage(result, true);
+      } else {
+        onNextPage(result);
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.List;
+
+/**
+ * Activity that searches the offers and recommendations of all the places retrieved on the device
+ * as the user types, through the {@link SearchIndex}, without requests. Selecting a result shows
+ * the details of its place.
+ */
+public class SearchActivity extends Activity {
+  /** Query to search for when the activity starts, e.g., the product of a notification. */
+  static final String EXTRA_QUERY = "Query";
+
+  // results beyond this are not displayed
+  private static final int MAX_RESULTS = 100;
+
+  private EditText searchQuery;
+  private TextView searchResultsLabel;
+  private ListView searchResults;
+
+  private SearchResultsAdapter searchResultsAdapter;
+
+  /**
+   * Initializes the activity content and searches again whenever the query changes.
+   */
+  @Override
+  protected void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+
+    setContentView(R.layout.activity_search);
+
+    searchQuery = (EditText) findViewById(R.id.SearchQuery);
+    searchResultsLabel = (TextView) findViewById(R.id.SearchResultsLabel);
+    searchResults = (ListView) findViewById(R.id.SearchResults);
+
+    searchResultsAdapter = new SearchResultsAdapter();
+    searchResults.setAdapter(searchResultsAdapter);
+    searchResults.setOnItemClickListener(searchResultsClickListener);
+    FrameMetrics.track(searchResults, searchResultsAdapter.getMetricsName());
+
+    searchQuery.addTextChangedListener(new TextWatcher() {
+      @Override
+      public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+      @Override
+      public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+      @Override
+      public void afterTextChanged(Editable s) {
+        search(s.toString());
+      }
+    });
+
+    String query = getIntent().getStringExtra(EXTRA_QUERY);
+    if (savedInstanceState == null && query != null) {
+      // searches through the text watcher
+      searchQuery.setText(query);
+      searchQuery.setSelection(query.length());
+    } else {
+      // e.g., after the device has been rotated
+      search(searchQuery.getText().toString());
+    }
+
+    if (query != null && SearchIndex.findByTitle(query).isEmpty()) {
+      // the lists resolved for the notification are only kept in memory, e.g., they are gone if
+      // the process has been killed since
+      new ResolveTask().execute(query);
+    }
+  }
+
+  /**
+   * Releases the images of the results.
+   */
+  @Override
+  protected void onDestroy() {
+    searchResultsAdapter.imageBinder.releaseAll();
+    super.onDestroy();
+  }
+
+  /**
+   * Displays the items matching the query.
+   */
+  void search(String query) {
+    long start = System.currentTimeMillis();
+    List<SearchIndex.Item> items = SearchIndex.search(query, MAX_RESULTS);
+    Tracer.record(Tracer.SEARCH, "searchIndex", null, System.currentTimeMillis() - start, -1, null);
+
+    if (items.isEmpty() && query.trim().length() > 0) {
+      searchResultsLabel.setText(R.string.noSearchResults);
+    } else {
+      searchResultsLabel.setText(R.string.searchResults);
+    }
+    searchResultsAdapter.update(items);
+  }
+
+  /**
+   * Resolves the product of the query to the offers and recommendations of the nearby places,
+   * and searches again once they have been indexed. The task of an activity destroyed meanwhile,
+   * e.g., after the device has been rotated, is attached to by the new one.
+   */
+  private class ResolveTask extends SingleFlightTask<String, List<SearchIndex.Item>> {
+    ResolveTask() {
+      super("priceDrop");
+    }
+
+    @Override
+    String getRequestKey(String... params) {
+      return params[0];
+    }
+
+    @Override
+    protected List<SearchIndex.Item> doInBackground(String... params) {
+      return PriceDropResolver.resolve(params[0], NetworkDispatcher.Priority.USER_BLOCKING);
+    }
+
+    @Override
+    protected void onPostExecute(List<SearchIndex.Item> items) {
+      if (!isFinishing()) {
+        search(searchQuery.getText().toString());
+      }
+    }
+  }
+
+  /**
+   * Event handler invoked when user clicks on a result. It navigates to the activity that presents
+   * the details of the place of the result.
+   */
+  private OnItemClickListener searchResultsClickListener = new OnItemClickListener() {
+    @Override
+    public void onItemClick(AdapterView<?> arg0, View arg1, int arg2, long arg3) {
+      PlaceDetailsActivity.currentPlace = searchResultsAdapter.getItem(arg2).place;
+      Intent i = new Intent(SearchActivity.this, PlaceDetailsActivity.class);
+      startActivity(i);
+    }
+  };
+
+  /**
+   * Adapter for the search results, with the place of each result before its description.
+   */
+  private class SearchResultsAdapter extends DiffingListAdapter<SearchIndex.Item> {
+    private final ImageUrlViewBinder imageBinder = new ImageUrlViewBinder(R.id.offer_Image);
+
+    SearchResultsAdapter() {
+      super(SearchActivity.this, R.layout.offer_item);
+    }
+
+    @Override
+    String getItemKey(SearchIndex.Item item) {
+      return item.kind + "/" + item.place.getPlaceId() + "/" + item.title + "|" + item.imageUrl;
+    }
+
+    @Override
+    void bindView(View view, SearchIndex.Item item) {
+      imageBinder.setViewValue(view.findViewById(R.id.offer_Image), item.imageUrl, item.imageUrl);
+      ((TextView) view.findViewById(R.id.offer_name)).setText(item.title);
+      ((TextView) view.findViewById(R.id.offer_description)).setText(getString(
+          R.string.searchResultDescription, item.place.getName(), item.description));
+    }
+  }
+}
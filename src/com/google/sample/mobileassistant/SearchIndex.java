@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.sample.mobileassistant.shoppingassistant.model.Offer;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
+import com.google.sample.mobileassistant.shoppingassistant.model.Recommendation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory inverted index over the titles and descriptions of all the offers and recommendations
+ * retrieved on the device, for every place, so they can be searched as the user types without a
+ * request.
+ *
+ * The index maps each word to the ids of the items containing it, in a sorted map, so the items
+ * matching a prefix are found by walking the words that start with it. The offers or
+ * recommendations of a place replace the ones indexed earlier for that place; replaced items are
+ * only marked as removed and the index is rebuilt once they outnumber the indexed ones.
+ *
+ * Can be called on any thread.
+ */
+final class SearchIndex {
+  // kinds of indexed items
+  static final int OFFER = 0;
+  static final int RECOMMENDATION = 1;
+
+  /**
+   * An indexed offer or recommendation.
+   */
+  static class Item {
+    final int kind;
+    final PlaceInfo place;
+    final String title;
+    final String description;
+    final String imageUrl;
+
+    Item(int kind, PlaceInfo place, String title, String description, String imageUrl) {
+      this.kind = kind;
+      this.place = place;
+      this.title = title;
+      this.description = description;
+      this.imageUrl = imageUrl;
+    }
+  }
+
+  // item id -> item, null for removed items
+  private static final List<Item> items = new ArrayList<Item>();
+  private static final BitSet removedItems = new BitSet();
+  private static int removedItemCount = 0;
+
+  // word -> ids of the items containing it, in increasing order
+  private static final TreeMap<String, IdList> postings = new TreeMap<String, IdList>();
+
+  // "kind/place id" -> ids of the items indexed for the place
+  private static final Map<String, IdList> itemsByPlace = new HashMap<String, IdList>();
+
+  /**
+   * Growable list of item ids.
+   */
+  private static class IdList {
+    int[] ids = new int[4];
+    int size = 0;
+
+    void add(int id) {
+      if (size > 0 && ids[size - 1] == id) {
+        // the word occurs more than once in the item
+        return;
+      }
+      if (size == ids.length) {
+        int[] moreIds = new int[size * 2];
+        System.arraycopy(ids, 0, moreIds, 0, size);
+        ids = moreIds;
+      }
+      ids[size++] = id;
+    }
+  }
+
+  private SearchIndex() {}
+
+  /**
+   * Indexes the offers retrieved for the place.
+   *
+   * @param place the place the offers are valid in
+   * @param offers the retrieved offers
+   * @param firstPage true if the offers are the first page, which replaces the offers indexed
+   *        earlier for the place, or false if they are a following page
+   */
+  static synchronized void putOffers(PlaceInfo place, List<Offer> offers, boolean firstPage) {
+    IdList placeItems = getPlaceItems(OFFER, place, firstPage);
+    if (offers == null) {
+      return;
+    }
+    for (Offer offer : offers) {
+      placeItems.add(add(new Item(
+          OFFER, place, offer.getTitle(), offer.getDescription(), offer.getImageUrl())));
+    }
+  }
+
+  /**
+   * Indexes the recommendations retrieved for the place, replacing the recommendations indexed
+   * earlier for the place.
+   */
+  static synchronized void putRecommendations(
+      PlaceInfo place, List<Recommendation> recommendations) {
+    IdList placeItems = getPlaceItems(RECOMMENDATION, place, true);
+    if (recommendations == null) {
+      return;
+    }
+    for (Recommendation recommendation : recommendations) {
+      placeItems.add(add(new Item(RECOMMENDATION, place, recommendation.getTitle(),
+          recommendation.getDescription(), recommendation.getImageUrl())));
+    }
+  }
+
+  /**
+   * Returns true if the offers or recommendations of the place have been indexed.
+   *
+   * @param kind {@link #OFFER} or {@link #RECOMMENDATION}
+   * @param placeId the id of the place
+   */
+  static synchronized boolean isIndexed(int kind, String placeId) {
+    return itemsByPlace.containsKey(kind + "/" + placeId);
+  }
+
+  /**
+   * Returns the ids of the items indexed for the place, after removing them if they are replaced.
+   */
+  private static IdList getPlaceItems(int kind, PlaceInfo place, boolean replace) {
+    String key = kind + "/" + place.getPlaceId();
+    IdList placeItems = itemsByPlace.get(key);
+    if (placeItems != null && replace) {
+      for (int i = 0; i < placeItems.size; i++) {
+        items.set(placeItems.ids[i], null);
+        removedItems.set(placeItems.ids[i]);
+      }
+      removedItemCount += placeItems.size;
+      placeItems = null;
+    }
+    if (placeItems == null) {
+      placeItems = new IdList();
+      itemsByPlace.put(key, placeItems);
+    }
+
+    if (removedItemCount > items.size() - removedItemCount) {
+      rebuild();
+    }
+    return placeItems;
+  }
+
+  /**
+   * Adds the item to the index.
+   *
+   * @return the id of the item
+   */
+  private static int add(Item item) {
+    int id = items.size();
+    items.add(item);
+    addWords(id, item.title);
+    addWords(id, item.description);
+    return id;
+  }
+
+  private static void addWords(int id, String text) {
+    for (String word : getWords(text)) {
+      IdList ids = postings.get(word);
+      if (ids == null) {
+        ids = new IdList();
+        postings.put(word, ids);
+      }
+      ids.add(id);
+    }
+  }
+
+  /**
+   * Indexes the items that have not been removed again, with new ids.
+   */
+  private static void rebuild() {
+    List<Item> liveItems = new ArrayList<Item>();
+    Map<Item, String> keys = new HashMap<Item, String>();
+    for (Map.Entry<String, IdList> entry : itemsByPlace.entrySet()) {
+      IdList placeItems = entry.getValue();
+      for (int i = 0; i < placeItems.size; i++) {
+        keys.put(items.get(placeItems.ids[i]), entry.getKey());
+      }
+    }
+    for (Item item : items) {
+      if (item != null) {
+        liveItems.add(item);
+      }
+    }
+
+    items.clear();
+    removedItems.clear();
+    removedItemCount = 0;
+    postings.clear();
+    for (IdList placeItems : itemsByPlace.values()) {
+      placeItems.size = 0;
+    }
+    for (Item item : liveItems) {
+      itemsByPlace.get(keys.get(item)).add(add(item));
+    }
+  }
+
+  /**
+   * Returns the items containing words starting with each word of the query, in the order they
+   * have been indexed.
+   *
+   * @param query the text typed by the user
+   * @param maxResults the maximum number of items returned
+   */
+  static synchronized List<Item> search(String query, int maxResults) {
+    List<String> prefixes = getWords(query);
+    if (prefixes.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    BitSet matches = null;
+    for (String prefix : prefixes) {
+      BitSet prefixMatches = new BitSet(items.size());
+      // the words starting with the prefix sort between the prefix and the prefix followed by
+      // the greatest character
+      SortedMap<String, IdList> words = postings.subMap(prefix, prefix + Character.MAX_VALUE);
+      for (IdList ids : words.values()) {
+        for (int i = 0; i < ids.size; i++) {
+          prefixMatches.set(ids.ids[i]);
+        }
+      }
+
+      if (matches == null) {
+        matches = prefixMatches;
+      } else {
+        matches.and(prefixMatches);
+      }
+      if (matches.isEmpty()) {
+        return Collections.emptyList();
+      }
+    }
+    matches.andNot(removedItems);
+
+    List<Item> results = new ArrayList<Item>();
+    for (int id = matches.nextSetBit(0); id >= 0 && results.size() < maxResults;
+        id = matches.nextSetBit(id + 1)) {
+      results.add(items.get(id));
+    }
+    return results;
+  }
+
+  /**
+   * Returns all the items whose title is the text, ignoring case, in the order they have been
+   * indexed. Only the items containing the least frequent word of the text are compared.
+   */
+  static synchronized List<Item> findByTitle(String title) {
+    IdList candidates = null;
+    for (String word : getWords(title)) {
+      IdList ids = postings.get(word);
+      if (ids == null) {
+        return Collections.emptyList();
+      }
+      if (candidates == null || ids.size < candidates.size) {
+        candidates = ids;
+      }
+    }
+    if (candidates == null) {
+      return Collections.emptyList();
+    }
+
+    List<Item> results = new ArrayList<Item>();
+    for (int i = 0; i < candidates.size; i++) {
+      Item item = items.get(candidates.ids[i]);
+      // removed items are null
+      if (item != null && title.equalsIgnoreCase(item.title)) {
+        results.add(item);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Returns the number of indexed items.
+   */
+  static synchronized int size() {
+    return items.size() - removedItemCount;
+  }
+
+  /**
+   * Removes all items.
+   */
+  static synchronized void clear() {
+    items.clear();
+    removedItems.clear();
+    removedItemCount = 0;
+    postings.clear();
+    itemsByPlace.clear();
+  }
+
+  /**
+   * Splits the text into lower case words of letters and digits.
+   */
+  private static List<String> getWords(String text) {
+    List<String> words = new ArrayList<String>();
+    if (text == null) {
+      return words;
+    }
+
+    String lowerCaseText = text.toLowerCase(Locale.getDefault());
+    int start = -1;
+    for (int i = 0; i <= lowerCaseText.length(); i++) {
+      boolean partOfWord = i < lowerCaseText.length()
+          && Character.isLetterOrDigit(lowerCaseText.charAt(i));
+      if (partOfWord && start < 0) {
+        start = i;
+      } else if (!partOfWord && start >= 0) {
+        words.add(lowerCaseText.substring(start, i));
+        start = -1;
+      }
+    }
+    return words;
+  }
+}
@@ -13,21 +13,29 @@
  */
 package com.google.sample.mobileassistant;
 
+import com.google.android.gms.auth.GoogleAuthException;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
 
 import android.accounts.AccountManager;
 import android.app.Activity;
 import android.app.Dialog;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.location.Location;
 import android.os.Bundle;
 
+import java.io.IOException;
+import java.util.logging.Logger;
+
 /**
  * Activity that allows the user to select the account they want to use to sign in. The class also
  * implements integration with Google Play Services and Google Accounts.
  */
 public class SignInActivity extends Activity {
+  private static final Logger log = Logger.getLogger(SignInActivity.class.getName());
+
   static final boolean SIGN_IN_REQUIRED = true;
   private static final String AUDIENCE =
 "server:client_id:!!! ENTER YOUR WEB CLIENT ID HERE !!!!";
@@ -37,8 +45,24 @@ public class SignInActivity extends Activity {
   private static final int REQUEST_ACCOUNT_PICKER = 1;
   private static final int REQUEST_GOOGLE_PLAY_SERVICES = 2;
 
+  // names of the steps of the startup graph
+  private static final String STEP_CLIENT = "client";
+  private static final String STEP_CONNECTION = "connection";
+  private static final String STEP_LOCATION = "location";
+  private static final String STEP_CREDENTIAL = "credential";
+  private static final String STEP_TOKEN = "token";
+  private static final String STEP_PLACES = "places";
+
   static GoogleAccountCredential credential;
 
+  private StartupGraph startupGraph;
+
+  // whether the startup graph is yet to load the first places, so MainActivity leaves loading them
+  // to the graph instead of loading them before the location is known
+  private static volatile boolean startupPlacesPending = false;
+
+  private volatile Location startupLocation;
+
   /**
    * Initializes the activity content and then navigates to the MainActivity if the user is already
    * signed in or if the app is configured to not require the sign in. Otherwise it initiates
@@ -50,20 +74,36 @@ public class SignInActivity extends Activity {
 
     super.onCreate(savedInstanceState);
 
+    StartupTimings.start();
+    StartupTimings.begin("signInCreate");
+    DataRepository.initialize(this);
+    startStartupGraph();
+
     setContentView(R.layout.activity_signin);
 
     if (!SIGN_IN_REQUIRED) {
       // The app won't use authentication, so just launch the main activity.
+      startupGraph.complete(STEP_CREDENTIAL);
+      StartupTimings.end("signInCreate");
       startMainActivity();
       return;
     }
 
-    if (!checkGooglePlayServicesAvailable()) {
+    StartupTimings.begin("playServicesCheck");
+    boolean playServicesAvailable = checkGooglePlayServicesAvailable();
+    StartupTimings.end("playServicesCheck");
+    if (!playServicesAvailable) {
       // Google Play Services are required, so don't proceed until they are installed.
       return;
     }
 
-    if (isSignedIn()) {
+    StartupTimings.begin("accountCheck");
+    boolean signedIn = isSignedIn();
+    StartupTimings.end("accountCheck");
+    StartupTimings.end("signInCreate");
+
+    if (signedIn) {
+      startupGraph.complete(STEP_CREDENTIAL);
       startMainActivity();
     } else {
       startActivityForResult(credential.newChooseAccountIntent(), REQUEST_ACCOUNT_PICKER);
@@ -71,6 +111,92 @@ public class SignInActivity extends Activity {
 
   }
 
+  /**
+   * Starts the work that the first list of places depends on, in parallel with the sign in:
+   * constructing the API client and reading the last known location start right away, fetching
+   * the auth token starts as soon as the account is known, and the places request is sent on the
+   * main thread once all of them have completed. Connecting to the API host starts as soon as the
+   * client is constructed, but the places request doesn't wait for it, so a slow or failing
+   * connection never delays the places. Because the places are held by the
+   * {@link DataRepository}, MainActivity displays them as soon as it observes the list.
+   */
+  private void startStartupGraph() {
+    final Context context = getApplicationContext();
+
+    startupGraph = new StartupGraph()
+        .addBackgroundStep(STEP_CLIENT, new Runnable() {
+          @Override
+          public void run() {
+            // loads and initializes the HTTP transport, the JSON factory and the client classes
+            DataRepository.newEndpoint();
+          }
+        })
+        .addBackgroundStep(STEP_CONNECTION, new Runnable() {
+          @Override
+          public void run() {
+            // fire and forget: if it completes first, the places request reuses the connection,
+            // with DNS and TLS already done, but the places request never waits for it
+            Preconnector.preconnect(DataRepository.newEndpoint().getRootUrl());
+          }
+        }, STEP_CLIENT)
+        .addBackgroundStep(STEP_LOCATION, new Runnable() {
+          @Override
+          public void run() {
+            startupLocation = GeoLocationHelper.getLastKnownLocation(context);
+          }
+        })
+        .addMilestone(STEP_CREDENTIAL)
+        .addBackgroundStep(STEP_TOKEN, new Runnable() {
+          @Override
+          public void run() {
+            fetchToken();
+          }
+        }, STEP_CREDENTIAL)
+        .addMainThreadStep(STEP_PLACES, new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (!DataRepository.places.isLoading() && !DataRepository.places.isUpToDate()) {
+                DataRepository.places.load(startupLocation);
+              }
+            } finally {
+              startupPlacesPending = false;
+            }
+          }
+        }, STEP_CLIENT, STEP_LOCATION, STEP_TOKEN);
+
+    startupPlacesPending = true;
+    startupGraph.start();
+  }
+
+  /**
+   * Returns whether the startup graph is going to load the first list of places, in which case
+   * MainActivity only observes the list.
+   */
+  static boolean isLoadingStartupPlaces() {
+    return startupPlacesPending;
+  }
+
+  /**
+   * Fetches the auth token of the selected account, so the token is cached by the time the first
+   * request is sent. Runs on a background thread.
+   */
+  private static void fetchToken() {
+    GoogleAccountCredential signedInCredential = credential;
+    if (!SIGN_IN_REQUIRED || signedInCredential == null
+        || signedInCredential.getSelectedAccountName() == null) {
+      return;
+    }
+
+    try {
+      signedInCredential.getToken();
+    } catch (IOException e) {
+      log.warning("Failed to fetch the auth token: " + e.getMessage());
+    } catch (GoogleAuthException e) {
+      log.warning("Failed to fetch the auth token: " + e.getMessage());
+    }
+  }
+
   /**
    * Handles the results from activities launched to select an account and to install Google Play
    * Services.
@@ -125,6 +251,9 @@ public class SignInActivity extends Activity {
     editor.commit();
     credential.setSelectedAccountName(accountName);
 
+    if (startupGraph != null) {
+      startupGraph.complete(STEP_CREDENTIAL);
+    }
     startMainActivity();
   }
 
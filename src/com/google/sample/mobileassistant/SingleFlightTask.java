@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Task for calling a Cloud Endpoint in the background, similar to AsyncTask, that makes sure there
+ * is at most one call in flight per group of requests (e.g., the list of nearby places):
+ * <ul>
+ * <li>a task executed while an identical request (same group and request key) is in flight
+ * attaches to that call and receives its result instead of calling the endpoint again;</li>
+ * <li>a task executed while a different request of the same group is in flight supersedes it: the
+ * older call is cancelled, which interrupts its thread, so a call still waiting for the
+ * {@link NetworkDispatcher} is never sent and a call being retried stops, and the tasks attached to
+ * it never receive its result.</li>
+ * </ul>
+ * Tasks must be executed on the main thread, where onPreExecute and onPostExecute are called too.
+ *
+ * @param <Params> type of the parameters sent to the task upon execution
+ * @param <Result> type of the result of the call
+ */
+abstract class SingleFlightTask<Params, Result> {
+  private static final ExecutorService executor = Executors.newCachedThreadPool();
+  private static final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+
+  // the call in flight for each group; accessed on the main thread only
+  private static final Map<String, Flight<?>> flights = new HashMap<String, Flight<?>>();
+
+  /**
+   * Call in flight together with the tasks waiting for its result.
+   */
+  private static class Flight<Result> {
+    final String key;
+    final List<SingleFlightTask<?, Result>> tasks = new ArrayList<SingleFlightTask<?, Result>>();
+    boolean superseded = false;
+    Future<?> future;
+
+    Flight(String key) {
+      this.key = key;
+    }
+  }
+
+  private final String group;
+
+  /**
+   * @constructor
+   *
+   * @param group the group of requests this task belongs to; at most one request of a group is in
+   *        flight at a time.
+   */
+  SingleFlightTask(String group) {
+    this.group = group;
+  }
+
+  /**
+   * Returns the key that identifies the request made with these parameters within the group.
+   * Requests with equal keys are considered identical.
+   */
+  abstract String getRequestKey(Params... params);
+
+  /**
+   * Calls the endpoint. Runs on a background thread.
+   */
+  protected abstract Result doInBackground(Params... params);
+
+  /**
+   * Runs on the main thread before the request is started or attached to an identical one.
+   */
+  protected void onPreExecute() {}
+
+  /**
+   * Runs on the main thread with the result of the call, unless the call has been superseded.
+   */
+  protected void onPostExecute(Result result) {}
+
+  /**
+   * Starts the request, or attaches to an identical request in flight.
+   *
+   * @param params the parameters of the request
+   */
+  @SuppressWarnings("unchecked")
+  final void execute(final Params... params) {
+    String key = String.valueOf(getRequestKey(params));
+
+    onPreExecute();
+
+    Flight<Result> inFlight = (Flight<Result>) flights.get(group);
+    if (inFlight != null) {
+      if (inFlight.key.equals(key)) {
+        inFlight.tasks.add(this);
+        return;
+      }
+      inFlight.superseded = true;
+      inFlight.future.cancel(true);
+    }
+
+    final Flight<Result> flight = new Flight<Result>(key);
+    flight.tasks.add(this);
+    flights.put(group, flight);
+
+    flight.future = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        Result result = null;
+        try {
+          result = doInBackground(params);
+        } catch (RuntimeException e) {
+          Tracer.record(Tracer.TASK_FAILED, group, null, 0, -1, e);
+        } finally {
+          final Result finalResult = result;
+          mainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              complete(flight, finalResult);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /**
+   * Delivers the result to the tasks attached to the call, unless it has been superseded.
+   */
+  private void complete(Flight<Result> flight, Result result) {
+    if (flights.get(group) == flight) {
+      flights.remove(group);
+    }
+
+    if (flight.superseded) {
+      return;
+    }
+
+    for (SingleFlightTask<?, Result> task : flight.tasks) {
+      task.onPostExecute(result);
+    }
+  }
+}
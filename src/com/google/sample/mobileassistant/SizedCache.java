@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.support.v4.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Least recently used cache whose size is the number of bytes held by its values. The
+ * {@link MemoryGovernor} sets its maximum size from the memory class of the device when the
+ * application starts; until then it holds at most {@link #DEFAULT_MAX_SIZE_IN_BYTES}.
+ *
+ * Can be called on any thread.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+abstract class SizedCache<K, V> {
+  static final int DEFAULT_MAX_SIZE_IN_BYTES = 256 * 1024;
+
+  private volatile LruCache<K, V> cache = newCache(DEFAULT_MAX_SIZE_IN_BYTES);
+
+  /**
+   * Returns the number of bytes held by the value, estimated if need be.
+   */
+  abstract int sizeOf(V value);
+
+  private LruCache<K, V> newCache(int maxSizeInBytes) {
+    return new LruCache<K, V>(maxSizeInBytes) {
+      @Override
+      protected int sizeOf(K key, V value) {
+        return SizedCache.this.sizeOf(value);
+      }
+    };
+  }
+
+  /**
+   * Sets the maximum size of the cache. Cached values are discarded, so this should be called
+   * when the application starts.
+   */
+  void setMaxSize(int maxSizeInBytes) {
+    cache = newCache(maxSizeInBytes);
+  }
+
+  /**
+   * Returns the bytes held by the cached values.
+   */
+  int getSize() {
+    return cache.size();
+  }
+
+  /**
+   * Returns the maximum bytes held by the cached values.
+   */
+  int getMaxSize() {
+    return cache.maxSize();
+  }
+
+  /**
+   * Returns the cached value for the key or null if there is none.
+   */
+  V get(K key) {
+    return cache.get(key);
+  }
+
+  /**
+   * Caches the value, evicting the least recently used values if the cache grows too large.
+   */
+  void put(K key, V value) {
+    cache.put(key, value);
+  }
+
+  /**
+   * Removes the cached value for the key, if any.
+   */
+  void remove(K key) {
+    cache.remove(key);
+  }
+
+  /**
+   * Removes the least recently used values until the cached values hold at most the given bytes.
+   */
+  void trimToSize(int sizeInBytes) {
+    LruCache<K, V> trimmed = cache;
+    // the snapshot is ordered from the least to the most recently used value
+    for (Map.Entry<K, V> entry : trimmed.snapshot().entrySet()) {
+      if (trimmed.size() <= sizeInBytes) {
+        break;
+      }
+      trimmed.remove(entry.getKey());
+    }
+  }
+
+  /**
+   * Removes all cached values.
+   */
+  void clear() {
+    cache.evictAll();
+  }
+}
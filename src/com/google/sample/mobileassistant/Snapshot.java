@@ -0,0 +1,589 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.sample.mobileassistant.shoppingassistant.model.Offer;
+import com.google.sample.mobileassistant.shoppingassistant.model.OfferCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfoCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.Recommendation;
+import com.google.sample.mobileassistant.shoppingassistant.model.RecommendationCollection;
+
+import android.content.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the last list of nearby places, and the offers and recommendations of the most recently
+ * visited places, in a compact binary file, so the next session can display them on its first
+ * frame while fresh lists are being retrieved.
+ *
+ * The file is memory-mapped when it is first read, and only its small index is decoded then; a
+ * list is decoded when it is requested. It is rewritten on a background thread whenever a list
+ * is retrieved, to a temporary file that then replaces it.
+ *
+ * The format is, in big-endian order: the magic number and version, the time the snapshot was
+ * written, the offset of the places, the number of visited places and, for each, its id and the
+ * offsets of its offers and recommendations, followed by the lists. Offsets are relative to the
+ * end of the index, -1 for a missing list. A list is the number of items followed by their
+ * fields; a string is its length in UTF-8 bytes (-1 for null) followed by the bytes, and a
+ * missing distance is NaN. Only the fields displayed by the activities are kept.
+ *
+ * A list that can't be decoded, e.g., because the file has been corrupted, is treated as missing,
+ * and the file is deleted so the next session doesn't try to decode it again.
+ *
+ * Must be called on the main thread.
+ */
+final class Snapshot {
+  private static final Logger log = Logger.getLogger(Snapshot.class.getName());
+
+  private static final String FILE_NAME = "snapshot.bin";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int MAGIC = 0x4d415331;
+  private static final int VERSION = 1;
+
+  // number of visited places whose offers and recommendations are kept
+  private static final int MAX_VISITED_PLACES = 5;
+
+  // older snapshots are not displayed
+  private static final long MAX_AGE_IN_MILLISECONDS = 1000L * 60 * 60 * 24 * 7;
+
+  private static File file;
+
+  // the mapped file and its index, read once per process
+  private static boolean read = false;
+  private static volatile ByteBuffer buffer;
+  private static int placesOffset = -1;
+  // visited place id -> offsets of its offers and recommendations, most recently visited first;
+  // replaced rather than changed, as the background write reads it
+  private static volatile Map<String, int[]> visitedPlaceOffsets =
+      new LinkedHashMap<String, int[]>();
+
+  // lists retrieved in this process, with the visited places from the least to the most recently
+  // visited
+  private static PlaceInfoCollection places;
+  private static final LinkedHashMap<String, VisitedPlace> visitedPlaces =
+      new LinkedHashMap<String, VisitedPlace>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VisitedPlace> eldest) {
+          return size() > MAX_VISITED_PLACES;
+        }
+      };
+
+  private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+  // incremented for every scheduled write, so a write superseded by a later one is skipped
+  private static final AtomicInteger writes = new AtomicInteger();
+
+  /**
+   * Offers and recommendations of a visited place.
+   */
+  private static class VisitedPlace {
+    OfferCollection offers;
+    RecommendationCollection recommendations;
+
+    VisitedPlace() {}
+
+    VisitedPlace(VisitedPlace other) {
+      offers = other.offers;
+      recommendations = other.recommendations;
+    }
+  }
+
+  private Snapshot() {}
+
+  /**
+   * Initializes the snapshot with the context whose files directory holds it. Doesn't read the
+   * file.
+   */
+  static void initialize(Context context) {
+    file = new File(context.getFilesDir(), FILE_NAME);
+  }
+
+  /**
+   * Returns the last list of nearby places or null if there is none.
+   */
+  static PlaceInfoCollection getPlaces() {
+    if (places != null) {
+      return places;
+    }
+    mapIfNeeded();
+    ByteBuffer records = getRecords(placesOffset);
+    if (records == null) {
+      return null;
+    }
+    PlaceInfoCollection value = readPlaces(records);
+    if (value == null) {
+      discard();
+    }
+    return value;
+  }
+
+  /**
+   * Returns the last offers of the place or null if there are none.
+   */
+  static OfferCollection getOffers(String placeId) {
+    VisitedPlace visitedPlace = visitedPlaces.get(placeId);
+    if (visitedPlace != null && visitedPlace.offers != null) {
+      return visitedPlace.offers;
+    }
+    ByteBuffer records = getRecords(getVisitedPlaceOffset(placeId, 0));
+    if (records == null) {
+      return null;
+    }
+    OfferCollection value = readOffers(records);
+    if (value == null) {
+      discard();
+    }
+    return value;
+  }
+
+  /**
+   * Returns the last recommendations of the place or null if there are none.
+   */
+  static RecommendationCollection getRecommendations(String placeId) {
+    VisitedPlace visitedPlace = visitedPlaces.get(placeId);
+    if (visitedPlace != null && visitedPlace.recommendations != null) {
+      return visitedPlace.recommendations;
+    }
+    ByteBuffer records = getRecords(getVisitedPlaceOffset(placeId, 1));
+    if (records == null) {
+      return null;
+    }
+    RecommendationCollection value = readRecommendations(records);
+    if (value == null) {
+      discard();
+    }
+    return value;
+  }
+
+  /**
+   * Keeps the retrieved list of nearby places.
+   */
+  static void putPlaces(PlaceInfoCollection value) {
+    places = value;
+    scheduleWrite();
+  }
+
+  /**
+   * Keeps the offers retrieved for a place the user visits.
+   */
+  static void putOffers(String placeId, OfferCollection value) {
+    getVisitedPlace(placeId).offers = value;
+    scheduleWrite();
+  }
+
+  /**
+   * Keeps the recommendations retrieved for a place the user visits.
+   */
+  static void putRecommendations(String placeId, RecommendationCollection value) {
+    getVisitedPlace(placeId).recommendations = value;
+    scheduleWrite();
+  }
+
+  /**
+   * Forgets the kept lists and deletes the file, e.g., to measure loading the screens from
+   * scratch. Writes scheduled earlier are skipped.
+   */
+  static void clear() {
+    writes.incrementAndGet();
+    places = null;
+    visitedPlaces.clear();
+    // the file is deleted, so there is nothing to map anymore
+    read = true;
+    buffer = null;
+    placesOffset = -1;
+    visitedPlaceOffsets = new LinkedHashMap<String, int[]>();
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        // after a write that had already started
+        if (file != null && file.exists() && !file.delete()) {
+          log.warning("Failed to delete " + file);
+        }
+      }
+    });
+  }
+
+  private static VisitedPlace getVisitedPlace(String placeId) {
+    VisitedPlace visitedPlace = visitedPlaces.get(placeId);
+    if (visitedPlace == null) {
+      visitedPlace = new VisitedPlace();
+      visitedPlaces.put(placeId, visitedPlace);
+    }
+    return visitedPlace;
+  }
+
+  private static int getVisitedPlaceOffset(String placeId, int list) {
+    mapIfNeeded();
+    int[] offsets = visitedPlaceOffsets.get(placeId);
+    return offsets != null ? offsets[list] : -1;
+  }
+
+  /**
+   * Maps the file and reads its index, the first time it is called.
+   */
+  private static void mapIfNeeded() {
+    if (!read) {
+      read = true;
+      map();
+    }
+  }
+
+  /**
+   * Returns a view of the records of the mapped file positioned at the offset, or null if the
+   * offset is -1 or out of the records, or there is no snapshot.
+   */
+  private static ByteBuffer getRecords(int offset) {
+    ByteBuffer mapped = buffer;
+    if (mapped == null || offset < 0 || offset > mapped.limit()) {
+      return null;
+    }
+    ByteBuffer records = mapped.duplicate();
+    records.position(offset);
+    return records.slice();
+  }
+
+  /**
+   * Stops reading the mapped file, whose lists can't be decoded, and deletes it. The lists
+   * retrieved in this process are kept and written again with the next retrieved list.
+   */
+  private static void discard() {
+    log.warning("Discarding corrupt snapshot");
+    buffer = null;
+    placesOffset = -1;
+    if (file != null && !file.delete()) {
+      log.warning("Failed to delete " + file);
+    }
+  }
+
+  private static void map() {
+    if (file == null || !file.exists()) {
+      return;
+    }
+
+    long start = System.nanoTime();
+    try {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = randomAccessFile.getChannel();
+        ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION
+            || System.currentTimeMillis() - mapped.getLong() > MAX_AGE_IN_MILLISECONDS) {
+          return;
+        }
+
+        int mappedPlacesOffset = mapped.getInt();
+        int visitedPlaceCount = mapped.getInt();
+        Map<String, int[]> offsets = new LinkedHashMap<String, int[]>();
+        for (int i = 0; i < visitedPlaceCount; i++) {
+          String placeId = readString(mapped);
+          offsets.put(placeId, new int[] {mapped.getInt(), mapped.getInt()});
+        }
+        placesOffset = mappedPlacesOffset;
+        visitedPlaceOffsets = offsets;
+        buffer = mapped.slice();
+      } finally {
+        // the mapping stays valid after the file has been closed
+        randomAccessFile.close();
+      }
+      log.fine("Mapped snapshot in " + (System.nanoTime() - start) / 1000 + "us");
+    } catch (Exception e) {
+      // e.g., a truncated file
+      log.warning("Failed to read snapshot: " + e);
+    }
+  }
+
+  /**
+   * Writes the lists on the background thread. The earlier snapshot is mapped first, so the lists
+   * it holds for places not visited in this process are kept.
+   */
+  private static void scheduleWrite() {
+    if (file == null) {
+      return;
+    }
+    mapIfNeeded();
+
+    final PlaceInfoCollection placesToWrite = places;
+    // most recently visited first
+    final LinkedHashMap<String, VisitedPlace> visitedPlacesToWrite =
+        new LinkedHashMap<String, VisitedPlace>();
+    List<String> placeIds = new ArrayList<String>(visitedPlaces.keySet());
+    Collections.reverse(placeIds);
+    for (String placeId : placeIds) {
+      visitedPlacesToWrite.put(placeId, new VisitedPlace(visitedPlaces.get(placeId)));
+    }
+
+    final int write = writes.incrementAndGet();
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (write != writes.get()) {
+          // a later write includes these lists
+          return;
+        }
+        try {
+          write(placesToWrite, visitedPlacesToWrite);
+        } catch (IOException e) {
+          log.warning("Failed to write snapshot: " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the snapshot, on the background thread. Only reads the mapped earlier snapshot, which
+   * isn't changed after it has been mapped, but may be dropped by {@link #clear}.
+   */
+  private static void write(PlaceInfoCollection placesToWrite,
+      LinkedHashMap<String, VisitedPlace> visitedPlacesToWrite) throws IOException {
+    // complete the lists with the ones of the earlier snapshot that can be decoded
+    if (placesToWrite == null) {
+      placesToWrite = readPlaces(getRecords(placesOffset));
+    }
+    Map<String, int[]> earlierIndex = visitedPlaceOffsets;
+    for (Map.Entry<String, int[]> entry : earlierIndex.entrySet()) {
+      if (visitedPlacesToWrite.size() >= MAX_VISITED_PLACES) {
+        break;
+      }
+      if (!visitedPlacesToWrite.containsKey(entry.getKey())) {
+        visitedPlacesToWrite.put(entry.getKey(), new VisitedPlace());
+      }
+    }
+
+    ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    DataOutputStream records = new DataOutputStream(recordBytes);
+    ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+    DataOutputStream index = new DataOutputStream(indexBytes);
+
+    index.writeInt(MAGIC);
+    index.writeInt(VERSION);
+    index.writeLong(System.currentTimeMillis());
+    if (placesToWrite != null) {
+      index.writeInt(records.size());
+      writePlaces(records, placesToWrite);
+    } else {
+      index.writeInt(-1);
+    }
+
+    index.writeInt(visitedPlacesToWrite.size());
+    for (Map.Entry<String, VisitedPlace> entry : visitedPlacesToWrite.entrySet()) {
+      String placeId = entry.getKey();
+      VisitedPlace visitedPlace = entry.getValue();
+      int[] earlierOffsets = earlierIndex.get(placeId);
+
+      OfferCollection offers = visitedPlace.offers;
+      if (offers == null && earlierOffsets != null) {
+        offers = readOffers(getRecords(earlierOffsets[0]));
+      }
+      RecommendationCollection recommendations = visitedPlace.recommendations;
+      if (recommendations == null && earlierOffsets != null) {
+        recommendations = readRecommendations(getRecords(earlierOffsets[1]));
+      }
+
+      writeString(index, placeId);
+      index.writeInt(offers != null ? records.size() : -1);
+      if (offers != null) {
+        writeOffers(records, offers);
+      }
+      index.writeInt(recommendations != null ? records.size() : -1);
+      if (recommendations != null) {
+        writeRecommendations(records, recommendations);
+      }
+    }
+
+    File temporaryFile = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temporaryFile);
+    try {
+      indexBytes.writeTo(out);
+      recordBytes.writeTo(out);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!temporaryFile.renameTo(file)) {
+      throw new IOException("Failed to replace " + file);
+    }
+  }
+
+  private static void writePlaces(DataOutputStream out, PlaceInfoCollection value)
+      throws IOException {
+    List<PlaceInfo> items = getItems(value.getItems());
+    out.writeInt(items.size());
+    for (PlaceInfo place : items) {
+      writeString(out, place.getPlaceId());
+      writeString(out, place.getName());
+      writeString(out, place.getAddress());
+      Double distance = place.getDistanceInKilometers();
+      out.writeDouble(distance != null ? distance : Double.NaN);
+    }
+  }
+
+  /**
+   * Returns the places of the records, or null if there are no records or they can't be decoded.
+   */
+  private static PlaceInfoCollection readPlaces(ByteBuffer in) {
+    if (in == null) {
+      return null;
+    }
+    try {
+      int count = readCount(in);
+      List<PlaceInfo> items = new ArrayList<PlaceInfo>(count);
+      for (int i = 0; i < count; i++) {
+        PlaceInfo place = new PlaceInfo();
+        place.setPlaceId(readString(in));
+        place.setName(readString(in));
+        place.setAddress(readString(in));
+        double distance = in.getDouble();
+        place.setDistanceInKilometers(Double.isNaN(distance) ? null : distance);
+        items.add(place);
+      }
+      return new PlaceInfoCollection().setItems(items);
+    } catch (RuntimeException e) {
+      log.warning("Failed to decode snapshot places: " + e);
+      return null;
+    }
+  }
+
+  private static void writeOffers(DataOutputStream out, OfferCollection value)
+      throws IOException {
+    List<Offer> items = getItems(value.getItems());
+    out.writeInt(items.size());
+    for (Offer offer : items) {
+      writeString(out, offer.getOfferId());
+      writeString(out, offer.getTitle());
+      writeString(out, offer.getDescription());
+      writeString(out, offer.getImageUrl());
+    }
+  }
+
+  /**
+   * Returns the offers of the records, or null if there are no records or they can't be decoded.
+   */
+  private static OfferCollection readOffers(ByteBuffer in) {
+    if (in == null) {
+      return null;
+    }
+    try {
+      int count = readCount(in);
+      List<Offer> items = new ArrayList<Offer>(count);
+      for (int i = 0; i < count; i++) {
+        Offer offer = new Offer();
+        offer.setOfferId(readString(in));
+        offer.setTitle(readString(in));
+        offer.setDescription(readString(in));
+        offer.setImageUrl(readString(in));
+        items.add(offer);
+      }
+      return new OfferCollection().setItems(items);
+    } catch (RuntimeException e) {
+      log.warning("Failed to decode snapshot offers: " + e);
+      return null;
+    }
+  }
+
+  private static void writeRecommendations(DataOutputStream out, RecommendationCollection value)
+      throws IOException {
+    List<Recommendation> items = getItems(value.getItems());
+    out.writeInt(items.size());
+    for (Recommendation recommendation : items) {
+      writeString(out, recommendation.getTitle());
+      writeString(out, recommendation.getDescription());
+      writeString(out, recommendation.getImageUrl());
+    }
+  }
+
+  /**
+   * Returns the recommendations of the records, or null if there are no records or they can't be
+   * decoded.
+   */
+  private static RecommendationCollection readRecommendations(ByteBuffer in) {
+    if (in == null) {
+      return null;
+    }
+    try {
+      int count = readCount(in);
+      List<Recommendation> items = new ArrayList<Recommendation>(count);
+      for (int i = 0; i < count; i++) {
+        Recommendation recommendation = new Recommendation();
+        recommendation.setTitle(readString(in));
+        recommendation.setDescription(readString(in));
+        recommendation.setImageUrl(readString(in));
+        items.add(recommendation);
+      }
+      return new RecommendationCollection().setItems(items);
+    } catch (RuntimeException e) {
+      log.warning("Failed to decode snapshot recommendations: " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Reads the number of items of a list, checking that the remaining records can hold them, so a
+   * corrupt count doesn't allocate a huge list.
+   */
+  private static int readCount(ByteBuffer in) {
+    int count = in.getInt();
+    // every item holds at least one string length
+    if (count < 0 || count > in.remaining() / 4) {
+      throw new BufferUnderflowException();
+    }
+    return count;
+  }
+
+  private static <T> List<T> getItems(List<T> items) {
+    return items != null ? items : Collections.<T>emptyList();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > in.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.util.DateTime;
+import com.google.sample.mobileassistant.shoppingassistant.model.Offer;
+import com.google.sample.mobileassistant.shoppingassistant.model.Recommendation;
+
+import java.util.Comparator;
+
+/**
+ * Orders in which the offers and recommendations of a place can be ranked on the device, without
+ * retrieving them again. An order that doesn't apply to offers or to recommendations leaves them
+ * in the order of the server.
+ */
+enum SortOrder {
+  /** The order of the server. */
+  SERVER(null, null),
+
+  /** Alphabetically by title. */
+  TITLE(new Comparator<Offer>() {
+    @Override
+    public int compare(Offer offer1, Offer offer2) {
+      return compareTitles(offer1.getTitle(), offer2.getTitle());
+    }
+  }, new Comparator<Recommendation>() {
+    @Override
+    public int compare(Recommendation recommendation1, Recommendation recommendation2) {
+      return compareTitles(recommendation1.getTitle(), recommendation2.getTitle());
+    }
+  }),
+
+  /** Offers with the largest discount first. */
+  DISCOUNT(new Comparator<Offer>() {
+    @Override
+    public int compare(Offer offer1, Offer offer2) {
+      return getDiscount(offer2) - getDiscount(offer1);
+    }
+  }, null),
+
+  /** Recommendations that expire soonest first, then the ones without an expiration. */
+  EXPIRATION(null, new Comparator<Recommendation>() {
+    @Override
+    public int compare(Recommendation recommendation1, Recommendation recommendation2) {
+      DateTime expiration1 = recommendation1.getExpiration();
+      DateTime expiration2 = recommendation2.getExpiration();
+      if (expiration1 == null || expiration2 == null) {
+        return (expiration1 == null ? 1 : 0) - (expiration2 == null ? 1 : 0);
+      }
+      long value1 = expiration1.getValue();
+      long value2 = expiration2.getValue();
+      return value1 < value2 ? -1 : (value1 == value2 ? 0 : 1);
+    }
+  });
+
+  private final Comparator<Offer> offerComparator;
+  private final Comparator<Recommendation> recommendationComparator;
+
+  private SortOrder(Comparator<Offer> offerComparator,
+      Comparator<Recommendation> recommendationComparator) {
+    this.offerComparator = offerComparator;
+    this.recommendationComparator = recommendationComparator;
+  }
+
+  /**
+   * Returns the order of the offers or null to keep the order of the server.
+   */
+  Comparator<Offer> getOfferComparator() {
+    return offerComparator;
+  }
+
+  /**
+   * Returns the order of the recommendations or null to keep the order of the server.
+   */
+  Comparator<Recommendation> getRecommendationComparator() {
+    return recommendationComparator;
+  }
+
+  private static int compareTitles(String title1, String title2) {
+    if (title1 == null || title2 == null) {
+      return (title1 == null ? 1 : 0) - (title2 == null ? 1 : 0);
+    }
+    return title1.compareToIgnoreCase(title2);
+  }
+
+  /**
+   * Returns the discount of the offer in percent, or 0 if it has none. Offers carry no discount
+   * field, so this is the largest percentage in the title or, if it has none, in the description,
+   * e.g., "25% off all shoes".
+   */
+  static int getDiscount(Offer offer) {
+    int discount = getLargestPercentage(offer.getTitle());
+    return discount > 0 ? discount : getLargestPercentage(offer.getDescription());
+  }
+
+  private static int getLargestPercentage(String text) {
+    if (text == null) {
+      return 0;
+    }
+
+    int largest = 0;
+    for (int percent = text.indexOf('%'); percent >= 0; percent = text.indexOf('%', percent + 1)) {
+      int start = percent;
+      while (start > 0 && Character.isDigit(text.charAt(start - 1)) && percent - start < 3) {
+        start--;
+      }
+      if (start < percent) {
+        largest = Math.max(largest, Integer.parseInt(text.substring(start, percent)));
+      }
+    }
+    return largest;
+  }
+}
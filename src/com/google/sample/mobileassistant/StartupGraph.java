@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Runs the steps of the application startup as a dependency graph: each step runs as soon as all
+ * the steps it depends on have completed, so independent steps (e.g., warming up the location and
+ * constructing the API client) run in parallel. Steps run either on a background thread or on the
+ * main thread. Steps without a task are milestones completed by calling {@link #complete}.
+ *
+ * The duration of every step is recorded in {@link StartupTimings}, from the moment the step starts
+ * running, so the time a step waits for its dependencies isn't counted; milestones are timed from
+ * the start of the graph. A step that fails is logged and still counts as completed, so the steps
+ * depending on it are not blocked.
+ */
+final class StartupGraph {
+  private static final Logger log = Logger.getLogger(StartupGraph.class.getName());
+
+  private static final ExecutorService executor = Executors.newCachedThreadPool();
+
+  private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+
+  /**
+   * A step of the startup.
+   */
+  private static class Step {
+    final String name;
+    final Runnable task;
+    final boolean onMainThread;
+    final List<String> dependencies;
+    boolean started = false;
+    boolean completed = false;
+
+    Step(String name, Runnable task, boolean onMainThread, String[] dependencies) {
+      this.name = name;
+      this.task = task;
+      this.onMainThread = onMainThread;
+      this.dependencies = Arrays.asList(dependencies);
+    }
+  }
+
+  private final Map<String, Step> steps = new HashMap<String, Step>();
+  private boolean running = false;
+
+  /**
+   * Adds a step that runs on a background thread.
+   *
+   * @param name the name of the step
+   * @param task the work to do
+   * @param dependencies the names of the steps that must complete before this step runs
+   */
+  StartupGraph addBackgroundStep(String name, Runnable task, String... dependencies) {
+    return add(new Step(name, task, false, dependencies));
+  }
+
+  /**
+   * Adds a step that runs on the main thread.
+   *
+   * @param name the name of the step
+   * @param task the work to do
+   * @param dependencies the names of the steps that must complete before this step runs
+   */
+  StartupGraph addMainThreadStep(String name, Runnable task, String... dependencies) {
+    return add(new Step(name, task, true, dependencies));
+  }
+
+  /**
+   * Adds a milestone, i.e., a step without a task that is completed by calling
+   * {@link #complete}.
+   */
+  StartupGraph addMilestone(String name) {
+    return add(new Step(name, null, false, new String[0]));
+  }
+
+  private synchronized StartupGraph add(Step step) {
+    steps.put(step.name, step);
+    return this;
+  }
+
+  /**
+   * Starts running all the steps whose dependencies are satisfied.
+   */
+  synchronized void start() {
+    running = true;
+    for (Step step : steps.values()) {
+      if (step.task == null) {
+        StartupTimings.begin(step.name);
+      }
+    }
+    startReadySteps();
+  }
+
+  /**
+   * Completes a milestone or a step.
+   */
+  synchronized void complete(String name) {
+    Step step = steps.get(name);
+    if (step == null || step.completed) {
+      return;
+    }
+
+    step.started = true;
+    step.completed = true;
+    StartupTimings.end(name);
+
+    if (running) {
+      startReadySteps();
+    }
+  }
+
+  private void startReadySteps() {
+    for (Step step : new ArrayList<Step>(steps.values())) {
+      if (step.started || step.task == null || !areCompleted(step.dependencies)) {
+        continue;
+      }
+
+      step.started = true;
+      Runnable runnable = newStepRunnable(step);
+      if (step.onMainThread) {
+        mainThreadHandler.post(runnable);
+      } else {
+        executor.execute(runnable);
+      }
+    }
+  }
+
+  private boolean areCompleted(List<String> names) {
+    for (String name : names) {
+      Step dependency = steps.get(name);
+      if (dependency == null || !dependency.completed) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Runnable newStepRunnable(final Step step) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        StartupTimings.begin(step.name);
+        try {
+          step.task.run();
+        } catch (RuntimeException e) {
+          log.warning("Startup step " + step.name + " failed: " + e.toString());
+        } finally {
+          complete(step.name);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Records when the phases of the application startup begin and end, relative to the start of the
+ * startup, so that the time to the first rendered list of places can be tracked over releases.
+ * The timings are logged, and added to the {@link Telemetry}, once the first places are
+ * displayed.
+ */
+final class StartupTimings {
+  static final String FIRST_PLACES = "firstPlaces";
+
+  private static final Logger log = Logger.getLogger(StartupTimings.class.getName());
+
+  private static long startupStart = SystemClock.elapsedRealtime();
+
+  // phase name -> {begin, end} in milliseconds since startupStart; end is -1 while in progress
+  private static final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+
+  private static boolean reported = false;
+
+  private StartupTimings() {}
+
+  /**
+   * Starts measuring a new startup, e.g., when SignInActivity is created.
+   */
+  static synchronized void start() {
+    startupStart = SystemClock.elapsedRealtime();
+    phases.clear();
+    reported = false;
+  }
+
+  /**
+   * Records the beginning of a phase.
+   */
+  static synchronized void begin(String phase) {
+    phases.put(phase, new long[] {now(), -1});
+  }
+
+  /**
+   * Records the end of a phase.
+   */
+  static synchronized void end(String phase) {
+    long[] timing = phases.get(phase);
+    if (timing == null) {
+      timing = new long[] {now(), -1};
+      phases.put(phase, timing);
+    }
+    timing[1] = now();
+  }
+
+  /**
+   * Records a point in time, i.e., a phase that begins and ends at the same time.
+   */
+  static synchronized void mark(String milestone) {
+    long now = now();
+    phases.put(milestone, new long[] {now, now});
+  }
+
+  /**
+   * Records that the first list of places has been displayed and logs the timings of this
+   * startup. Does nothing after the first call for a startup.
+   */
+  static synchronized void reportFirstPlaces() {
+    if (reported) {
+      return;
+    }
+    reported = true;
+    mark(FIRST_PLACES);
+    log.info("Startup timings: " + toSummary());
+    Telemetry.recordStartup(getPhaseEnds());
+  }
+
+  /**
+   * Returns the time since the start of the startup at which each phase ended, or -1 for phases
+   * that haven't ended yet.
+   */
+  static synchronized Map<String, Long> getPhaseEnds() {
+    Map<String, Long> ends = new LinkedHashMap<String, Long>();
+    for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+      ends.put(phase.getKey(), phase.getValue()[1]);
+    }
+    return ends;
+  }
+
+  /**
+   * Returns the timings formatted as "phase=begin+duration" entries.
+   */
+  static synchronized String toSummary() {
+    StringBuilder summary = new StringBuilder();
+    for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+      long[] timing = phase.getValue();
+      if (summary.length() > 0) {
+        summary.append(", ");
+      }
+      summary.append(phase.getKey()).append('=').append(timing[0]);
+      if (timing[1] >= 0 && timing[1] != timing[0]) {
+        summary.append('+').append(timing[1] - timing[0]);
+      }
+    }
+    return summary.toString();
+  }
+
+  private static long now() {
+    return SystemClock.elapsedRealtime() - startupStart;
+  }
+}
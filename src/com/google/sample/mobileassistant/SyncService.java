@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.json.GenericJson;
+import com.google.sample.mobileassistant.shoppingassistant.model.OfferCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfoCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.RecommendationCollection;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * IntentService that refreshes, in the background, the places near the last known location and
+ * the offers and recommendations of the places the user visits most often. The retrieved lists
+ * are put into {@link PlaceDataCache} and {@link Snapshot}, so the activities display them as soon
+ * as they open instead of waiting for the network, and into the {@link SearchIndex}; the
+ * responses are remembered by {@link ConditionalRequests}, so the activities' own requests are
+ * usually answered with "304 Not Modified".
+ *
+ * Syncs are checked for by an inexact alarm that doesn't wake the device up, so they run during
+ * wakeups that happen anyway, batched with the alarms of other applications, and when the device
+ * is plugged in. A sync runs at most every {@link #MIN_SYNC_INTERVAL_IN_MILLISECONDS}, on an
+ * unmetered network or while charging unless the last sync is older than
+ * {@link #MAX_SYNC_INTERVAL_IN_MILLISECONDS}, and stops once {@link #DAILY_BUDGET_BYTES} have
+ * been downloaded by syncs on the same day.
+ */
+public class SyncService extends IntentService {
+  private static final Logger log = Logger.getLogger(SyncService.class.getName());
+
+  private static final String ACTION_SYNC = "com.google.sample.mobileassistant.SYNC";
+  private static final String ACTION_RECORD_VISIT =
+      "com.google.sample.mobileassistant.RECORD_VISIT";
+  private static final String EXTRA_PLACE_ID = "PlaceId";
+  private static final String EXTRA_WAKEFUL = "Wakeful";
+
+  private static final long CHECK_INTERVAL_IN_MILLISECONDS = AlarmManager.INTERVAL_HOUR;
+  private static final long MIN_SYNC_INTERVAL_IN_MILLISECONDS = 3 * AlarmManager.INTERVAL_HOUR;
+  private static final long MAX_SYNC_INTERVAL_IN_MILLISECONDS = AlarmManager.INTERVAL_HALF_DAY;
+  private static final long DAILY_BUDGET_BYTES = 1024 * 1024;
+
+  // number of most visited places synced and number of visited places counted
+  private static final int SYNCED_PLACES_COUNT = 3;
+  private static final int MAX_COUNTED_PLACES = 20;
+
+  private static final String PREFERENCES_NAME = "Sync";
+  private static final String LAST_SYNC = "lastSync";
+  private static final String BUDGET_DAY = "budgetDay";
+  private static final String BUDGET_BYTES = "budgetBytes";
+  private static final String VISITS_PREFIX = "visits.";
+
+  // keeps the device awake from the broadcast that starts a sync until the sync completes
+  private static PowerManager.WakeLock wakeLock;
+
+  private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+
+  private SharedPreferences preferences;
+
+  // bytes downloaded by syncs today, including the current one
+  private long spentBytes;
+
+  /**
+   * Starts a sync when the inexact alarm goes off or the device is plugged in.
+   */
+  public static class Receiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      synchronized (SyncService.class) {
+        if (wakeLock == null) {
+          PowerManager powerManager =
+              (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+          wakeLock = powerManager.newWakeLock(
+              PowerManager.PARTIAL_WAKE_LOCK, SyncService.class.getName());
+          wakeLock.setReferenceCounted(true);
+        }
+        wakeLock.acquire();
+      }
+      context.startService(new Intent(context, SyncService.class)
+          .setAction(ACTION_SYNC)
+          .putExtra(EXTRA_WAKEFUL, true));
+    }
+  }
+
+  public SyncService() {
+    super("SyncService");
+  }
+
+  /**
+   * Schedules the inexact alarm that checks whether a sync should run, unless it is scheduled
+   * already. Alarms don't survive reboots, so this is called whenever the application starts.
+   *
+   * @param context any context of the application
+   */
+  static void schedule(Context context) {
+    Intent intent = new Intent(context, Receiver.class).setAction(ACTION_SYNC);
+    if (PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+      return;
+    }
+
+    AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+        SystemClock.elapsedRealtime() + CHECK_INTERVAL_IN_MILLISECONDS,
+        CHECK_INTERVAL_IN_MILLISECONDS, PendingIntent.getBroadcast(context, 0, intent, 0));
+  }
+
+  /**
+   * Counts a visit to the place, on the service's thread, so the places the user visits most
+   * often are synced.
+   *
+   * @param context any context of the application
+   * @param placeId the id of the visited place
+   */
+  static void recordVisit(Context context, String placeId) {
+    context.startService(new Intent(context, SyncService.class)
+        .setAction(ACTION_RECORD_VISIT)
+        .putExtra(EXTRA_PLACE_ID, placeId));
+  }
+
+  @Override
+  protected void onHandleIntent(Intent intent) {
+    preferences = getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    NetworkDispatcher.setThreadPriority(NetworkDispatcher.Priority.PREFETCH);
+    try {
+      if (ACTION_RECORD_VISIT.equals(intent.getAction())) {
+        countVisit(intent.getStringExtra(EXTRA_PLACE_ID));
+      } else if (ACTION_SYNC.equals(intent.getAction()) && shouldSync()) {
+        sync();
+      }
+    } finally {
+      if (intent.getBooleanExtra(EXTRA_WAKEFUL, false)) {
+        synchronized (SyncService.class) {
+          wakeLock.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if the network, the battery, the time since the last sync and the data budget
+   * allow a sync now.
+   */
+  private boolean shouldSync() {
+    ConnectivityManager connectivityManager =
+        (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+    if (network == null || !network.isConnected()) {
+      return false;
+    }
+
+    long sinceLastSync = System.currentTimeMillis() - preferences.getLong(LAST_SYNC, 0);
+    if (sinceLastSync < MIN_SYNC_INTERVAL_IN_MILLISECONDS) {
+      return false;
+    }
+
+    boolean metered = new ConnectivityManagerCompat().isActiveNetworkMetered(connectivityManager);
+    if (metered && !PlaceDataPrefetcher.isCharging(this)
+        && sinceLastSync < MAX_SYNC_INTERVAL_IN_MILLISECONDS) {
+      log.fine("Sync deferred until an unmetered network or charging");
+      return false;
+    }
+
+    if (!PlaceDataPrefetcher.isBatteryAllowingPrefetch(this)) {
+      return false;
+    }
+
+    long today = System.currentTimeMillis() / AlarmManager.INTERVAL_DAY;
+    spentBytes = preferences.getLong(BUDGET_DAY, -1) == today
+        ? preferences.getLong(BUDGET_BYTES, 0) : 0;
+    preferences.edit().putLong(BUDGET_DAY, today).putLong(BUDGET_BYTES, spentBytes).commit();
+    return hasBudget();
+  }
+
+  /**
+   * Retrieves the nearby places, then the offers and recommendations of the most visited places,
+   * until the data budget is spent.
+   */
+  private void sync() {
+    long start = SystemClock.elapsedRealtime();
+    List<PlaceInfo> nearbyPlaces = Collections.emptyList();
+    try {
+      final PlaceInfoCollection places = execute(DataRepository.newPlacesRequest(
+          GeoLocationHelper.getLastKnownLocation(this), null));
+      if (places != null && places.getItems() != null) {
+        nearbyPlaces = places.getItems();
+        mainThreadHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            Snapshot.putPlaces(places);
+          }
+        });
+      }
+
+      for (String placeId : getMostVisitedPlaceIds()) {
+        syncPlace(findPlace(nearbyPlaces, placeId));
+      }
+    } catch (IOException e) {
+      log.fine("Sync failed: " + e.getMessage());
+    } finally {
+      preferences.edit()
+          .putLong(LAST_SYNC, System.currentTimeMillis())
+          .putLong(BUDGET_BYTES, spentBytes)
+          .commit();
+    }
+    log.fine("Synced in " + (SystemClock.elapsedRealtime() - start) + "ms, " + spentBytes
+        + " bytes spent today");
+  }
+
+  /**
+   * Retrieves the offers and recommendations of the place.
+   */
+  private void syncPlace(final PlaceInfo place) throws IOException {
+    final String placeId = place.getPlaceId();
+
+    final OfferCollection offers = execute(
+        DataRepository.newOffersRequest(placeId, null), DataRepository.offerDeltas, placeId);
+    if (offers != null) {
+      PlaceDataCache.putOffers(placeId, offers);
+      mainThreadHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          Snapshot.putOffers(placeId, offers);
+          if (place.getName() != null) {
+            SearchIndex.putOffers(place, offers.getItems(), true);
+          }
+        }
+      });
+    }
+
+    final RecommendationCollection recommendations = execute(
+        DataRepository.newRecommendationsRequest(placeId), DataRepository.recommendationDeltas,
+        placeId);
+    if (recommendations != null) {
+      PlaceDataCache.putRecommendations(placeId, recommendations);
+      mainThreadHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          Snapshot.putRecommendations(placeId, recommendations);
+          if (place.getName() != null) {
+            SearchIndex.putRecommendations(place, recommendations.getItems());
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Executes the request, conditionally if its response has been remembered, and counts the
+   * downloaded bytes.
+   *
+   * @return the response or null if the data budget is spent
+   */
+  private <T> T execute(AbstractGoogleClientRequest<T> request) throws IOException {
+    if (!hasBudget()) {
+      return null;
+    }
+    T response = ConditionalRequests.execute(request);
+    spentBytes += PlaceDataPrefetcher.getResponseBytes(request);
+    return response;
+  }
+
+  /**
+   * Executes the request for the list of the place, only for the changes since the local copy if
+   * there is one, and counts the downloaded bytes.
+   *
+   * @return the complete list, or null if the data budget is spent
+   */
+  private <C extends GenericJson> C execute(AbstractGoogleClientRequest<C> request,
+      DeltaSync<C, ?> deltas, String placeId) throws IOException {
+    if (!hasBudget()) {
+      return null;
+    }
+    C response = deltas.fetch(placeId, request);
+    spentBytes += PlaceDataPrefetcher.getResponseBytes(request);
+    return response;
+  }
+
+  private boolean hasBudget() {
+    return spentBytes < DAILY_BUDGET_BYTES;
+  }
+
+  /**
+   * Returns the nearby place with the id or, if the place is not nearby, a place with only the id,
+   * which is enough to retrieve its offers and recommendations.
+   */
+  private static PlaceInfo findPlace(List<PlaceInfo> places, String placeId) {
+    for (PlaceInfo place : places) {
+      if (placeId.equals(place.getPlaceId())) {
+        return place;
+      }
+    }
+    return new PlaceInfo().setPlaceId(placeId);
+  }
+
+  private void countVisit(String placeId) {
+    if (placeId == null) {
+      return;
+    }
+
+    String key = VISITS_PREFIX + placeId;
+    SharedPreferences.Editor editor = preferences.edit();
+    editor.putInt(key, preferences.getInt(key, 0) + 1);
+
+    // forget the least visited other places
+    List<Map.Entry<String, Integer>> visits = getVisits();
+    int kept = 1;
+    for (Map.Entry<String, Integer> visit : visits) {
+      if (!visit.getKey().equals(key) && kept++ >= MAX_COUNTED_PLACES) {
+        editor.remove(visit.getKey());
+      }
+    }
+    editor.commit();
+  }
+
+  private List<String> getMostVisitedPlaceIds() {
+    List<String> placeIds = new ArrayList<String>();
+    for (Map.Entry<String, Integer> visit : getVisits()) {
+      if (placeIds.size() == SYNCED_PLACES_COUNT) {
+        break;
+      }
+      placeIds.add(visit.getKey().substring(VISITS_PREFIX.length()));
+    }
+    return placeIds;
+  }
+
+  /**
+   * Returns the visit counts, the most visited places first.
+   */
+  private List<Map.Entry<String, Integer>> getVisits() {
+    List<Map.Entry<String, Integer>> visits = new ArrayList<Map.Entry<String, Integer>>();
+    for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+      if (entry.getKey().startsWith(VISITS_PREFIX) && entry.getValue() instanceof Integer) {
+        @SuppressWarnings("unchecked")
+        Map.Entry<String, Integer> visit = (Map.Entry<String, Integer>) entry;
+        visits.add(visit);
+      }
+    }
+    Collections.sort(visits, new Comparator<Map.Entry<String, Integer>>() {
+      @Override
+      public int compare(Map.Entry<String, Integer> visit1, Map.Entry<String, Integer> visit2) {
+        return visit2.getValue().compareTo(visit1.getValue());
+      }
+    });
+    return visits;
+  }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClient;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.util.GenericData;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Aggregates performance counters on the device (the latency, failures and bytes of every Cloud
+ * Endpoint and of image downloads, the hit rates of the caches, the bytes saved by revalidations
+ * and the startup phases) and uploads them in gzip-compressed batches to the telemetry resource
+ * of the shoppingassistant API, next to the other Cloud Endpoints.
+ *
+ * Uploads never wake up the device or the radio on their own: a batch is only uploaded right
+ * after a Cloud Endpoint request of the application completed, to the same host, so the radio is
+ * up and the connection is usually reused. Batches are uploaded at most every
+ * {@link #UPLOAD_INTERVAL_IN_MILLISECONDS}, at most {@link #MAX_UPLOADS_PER_DAY} times and
+ * {@link #MAX_BYTES_PER_DAY} bytes a day, and are limited to {@link #MAX_BATCH_BYTES}
+ * uncompressed bytes; the counters that don't fit are carried over to the next batch. Counters not
+ * uploaded yet are saved when the application is hidden, so they survive the process. Batches
+ * for a local development or stand-in server (a root url that is not https) are uploaded every
+ * {@link #LOCAL_UPLOAD_INTERVAL_IN_MILLISECONDS} instead, so uploads can be tested end-to-end.
+ *
+ * Can be called on any thread.
+ */
+final class Telemetry {
+  static final String RESOURCE_NAME = "telemetry";
+
+  // counters
+  static final String IMAGE_CACHE_HITS = "imageCache.hits";
+  static final String IMAGE_CACHE_MISSES = "imageCache.misses";
+  static final String PLACE_DATA_CACHE_HITS = "placeDataCache.hits";
+  static final String PLACE_DATA_CACHE_MISSES = "placeDataCache.misses";
+  static final String REVALIDATIONS = "revalidations";
+  static final String NOT_MODIFIED = "revalidations.notModified";
+  static final String BYTES_SAVED = "revalidations.bytesSaved";
+
+  private static final Logger log = Logger.getLogger(Telemetry.class.getName());
+
+  private static final long UPLOAD_INTERVAL_IN_MILLISECONDS = 6 * AlarmManager.INTERVAL_HOUR;
+  private static final long LOCAL_UPLOAD_INTERVAL_IN_MILLISECONDS = 60 * 1000;
+  private static final int MIN_REQUESTS_PER_BATCH = 20;
+  private static final int MAX_UPLOADS_PER_DAY = 4;
+  private static final int MAX_BYTES_PER_DAY = 32 * 1024;
+  private static final int MAX_BATCH_BYTES = 8 * 1024;
+
+  // upper bounds of the latency buckets; the last bucket holds the slower requests
+  private static final long[] LATENCY_BOUNDS_IN_MILLISECONDS = {100, 250, 500, 1000, 2500};
+
+  private static final String IMAGES = "images";
+  private static final String DEFERRED_COUNTERS = "telemetry.deferredCounters";
+
+  private static final String PREFERENCES_NAME = "Telemetry";
+  private static final String LAST_UPLOAD = "lastUpload";
+  private static final String DAY = "day";
+  private static final String DAY_UPLOADS = "dayUploads";
+  private static final String DAY_BYTES = "dayBytes";
+  private static final String COUNTER_PREFIX = "counter.";
+
+  /**
+   * Aggregated requests of an endpoint.
+   */
+  private static class RequestCounters {
+    long count;
+    long failures;
+    long totalMilliseconds;
+    long bytes;
+    final long[] latencies = new long[LATENCY_BOUNDS_IN_MILLISECONDS.length + 1];
+  }
+
+  // guarded by the class
+  private static SharedPreferences preferences;
+  private static final Map<Object, RequestCounters> requests =
+      new HashMap<Object, RequestCounters>();
+  private static final Map<String, long[]> counters = new HashMap<String, long[]>();
+  // counters saved by an earlier process or left by a failed upload
+  private static final Map<String, Long> savedCounters = new TreeMap<String, Long>();
+  private static long requestCount = 0;
+  private static boolean uploading = false;
+
+  // time before which no upload is attempted; never until initialized
+  private static volatile long nextUploadTime = Long.MAX_VALUE;
+
+  private static final ExecutorService uploader = Executors.newSingleThreadExecutor();
+
+  private Telemetry() {}
+
+  /**
+   * Restores the counters saved by the previous process and the time of the last upload.
+   *
+   * @param context any context of the application
+   */
+  static synchronized void initialize(Context context) {
+    preferences = context.getApplicationContext()
+        .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    for (Map.Entry<String, ?> preference : preferences.getAll().entrySet()) {
+      if (preference.getKey().startsWith(COUNTER_PREFIX)
+          && preference.getValue() instanceof Long) {
+        savedCounters.put(preference.getKey().substring(COUNTER_PREFIX.length()),
+            (Long) preference.getValue());
+      }
+    }
+    nextUploadTime = preferences.getLong(LAST_UPLOAD, 0) + UPLOAD_INTERVAL_IN_MILLISECONDS;
+  }
+
+  /**
+   * Records a completed or failed request.
+   *
+   * @param endpoint the class of the Cloud Endpoint request, or null for an image download
+   * @param durationInMilliseconds the duration of the request
+   * @param bytes the bytes of the response or -1 if unknown
+   * @param failed true if the request failed
+   */
+  static synchronized void recordRequest(Class<?> endpoint, long durationInMilliseconds,
+      long bytes, boolean failed) {
+    Object key = endpoint != null ? endpoint : IMAGES;
+    RequestCounters request = requests.get(key);
+    if (request == null) {
+      request = new RequestCounters();
+      requests.put(key, request);
+    }
+    request.count++;
+    requestCount++;
+    if (failed) {
+      request.failures++;
+      return;
+    }
+    request.totalMilliseconds += durationInMilliseconds;
+    request.bytes += Math.max(0, bytes);
+    int bucket = 0;
+    while (bucket < LATENCY_BOUNDS_IN_MILLISECONDS.length
+        && durationInMilliseconds > LATENCY_BOUNDS_IN_MILLISECONDS[bucket]) {
+      bucket++;
+    }
+    request.latencies[bucket]++;
+  }
+
+  /**
+   * Adds the value to the counter.
+   *
+   * @param counter the counter, e.g., one of the constants of this class
+   */
+  static synchronized void add(String counter, long value) {
+    long[] total = counters.get(counter);
+    if (total == null) {
+      total = new long[1];
+      counters.put(counter, total);
+    }
+    total[0] += value;
+  }
+
+  /**
+   * Records when the phases of a startup ended, as returned by
+   * {@link StartupTimings#getPhaseEnds()}.
+   */
+  static synchronized void recordStartup(Map<String, Long> phaseEnds) {
+    for (Map.Entry<String, Long> phase : phaseEnds.entrySet()) {
+      if (phase.getValue() >= 0) {
+        add("startup." + phase.getKey() + ".count", 1);
+        add("startup." + phase.getKey() + ".totalMs", phase.getValue());
+      }
+    }
+  }
+
+  /**
+   * Saves the counters not uploaded yet, e.g., when the application is hidden and its process may
+   * be killed.
+   */
+  static synchronized void save() {
+    if (preferences == null) {
+      return;
+    }
+    // the counters stay in memory, as saved counters
+    Map<String, Long> batch = collect();
+    restore(batch);
+    SharedPreferences.Editor editor = preferences.edit();
+    for (String key : preferences.getAll().keySet()) {
+      if (key.startsWith(COUNTER_PREFIX)) {
+        editor.remove(key);
+      }
+    }
+    for (Map.Entry<String, Long> counter : batch.entrySet()) {
+      editor.putLong(COUNTER_PREFIX + counter.getKey(), counter.getValue());
+    }
+    editor.commit();
+  }
+
+  /**
+   * Uploads a batch if one is due, after a Cloud Endpoint request to the server of the client
+   * completed. Returns immediately.
+   *
+   * @param client the client that sent the request
+   */
+  static void onRequestCompleted(final AbstractGoogleClient client) {
+    if (System.currentTimeMillis() < nextUploadTime) {
+      return;
+    }
+    synchronized (Telemetry.class) {
+      if (uploading || preferences == null || requestCount < MIN_REQUESTS_PER_BATCH) {
+        return;
+      }
+      uploading = true;
+    }
+    uploader.execute(new Runnable() {
+      @Override
+      public void run() {
+        NetworkDispatcher.Priority priority =
+            NetworkDispatcher.setThreadPriority(NetworkDispatcher.Priority.TELEMETRY);
+        try {
+          upload(client);
+        } finally {
+          NetworkDispatcher.setThreadPriority(priority);
+          synchronized (Telemetry.class) {
+            uploading = false;
+          }
+        }
+      }
+    });
+  }
+
+  private static void upload(AbstractGoogleClient client) {
+    long now = System.currentTimeMillis();
+    long today = now / AlarmManager.INTERVAL_DAY;
+    Map<String, Long> batch;
+    int deferredCount;
+    int dayUploads;
+    long dayBytes;
+    synchronized (Telemetry.class) {
+      boolean sameDay = preferences.getLong(DAY, -1) == today;
+      dayUploads = sameDay ? preferences.getInt(DAY_UPLOADS, 0) : 0;
+      dayBytes = sameDay ? preferences.getLong(DAY_BYTES, 0) : 0;
+      if (dayUploads >= MAX_UPLOADS_PER_DAY) {
+        nextUploadTime = (today + 1) * AlarmManager.INTERVAL_DAY;
+        return;
+      }
+      batch = collect();
+      Map<String, Long> deferredCounters = split(batch);
+      deferredCount = deferredCounters.size();
+      restore(deferredCounters);
+    }
+
+    boolean uploaded = false;
+    int sentBytes = 0;
+    try {
+      byte[] content = compress(toJson(batch, deferredCount));
+      if (dayBytes + content.length > MAX_BYTES_PER_DAY) {
+        log.fine("Telemetry batch of " + content.length + " bytes exceeds the daily limit");
+        synchronized (Telemetry.class) {
+          nextUploadTime = (today + 1) * AlarmManager.INTERVAL_DAY;
+          restore(batch);
+        }
+        return;
+      }
+      send(client, content);
+      uploaded = true;
+      sentBytes = content.length;
+    } catch (IOException e) {
+      log.fine("Uploading telemetry failed: " + e.getMessage());
+    }
+
+    synchronized (Telemetry.class) {
+      if (!uploaded) {
+        restore(batch);
+      }
+      // a failed upload counts too, so an unreachable server doesn't cost more radio time
+      preferences.edit()
+          .putLong(LAST_UPLOAD, now)
+          .putLong(DAY, today)
+          .putInt(DAY_UPLOADS, dayUploads + 1)
+          .putLong(DAY_BYTES, dayBytes + sentBytes)
+          .commit();
+      nextUploadTime = now + (client.getRootUrl().startsWith("https:")
+          ? UPLOAD_INTERVAL_IN_MILLISECONDS : LOCAL_UPLOAD_INTERVAL_IN_MILLISECONDS);
+      if (uploaded) {
+        save();
+      }
+    }
+  }
+
+  /**
+   * Takes all counters, leaving them empty.
+   */
+  private static Map<String, Long> collect() {
+    Map<String, Long> batch = new TreeMap<String, Long>(savedCounters);
+    savedCounters.clear();
+    for (Map.Entry<String, long[]> counter : counters.entrySet()) {
+      addTo(batch, counter.getKey(), counter.getValue()[0]);
+    }
+    for (Map.Entry<Object, RequestCounters> request : requests.entrySet()) {
+      String name = getName(request.getKey());
+      RequestCounters counts = request.getValue();
+      addTo(batch, name + ".count", counts.count);
+      addTo(batch, name + ".failures", counts.failures);
+      addTo(batch, name + ".totalMs", counts.totalMilliseconds);
+      addTo(batch, name + ".bytes", counts.bytes);
+      for (int i = 0; i < counts.latencies.length; i++) {
+        String bucket = i < LATENCY_BOUNDS_IN_MILLISECONDS.length
+            ? "le" + LATENCY_BOUNDS_IN_MILLISECONDS[i] : "gt"
+            + LATENCY_BOUNDS_IN_MILLISECONDS[LATENCY_BOUNDS_IN_MILLISECONDS.length - 1];
+        addTo(batch, name + ".latency." + bucket, counts.latencies[i]);
+      }
+    }
+    counters.clear();
+    requests.clear();
+    requestCount = 0;
+    return batch;
+  }
+
+  /**
+   * Puts the counters of a batch that couldn't be uploaded back, to be uploaded later.
+   */
+  private static void restore(Map<String, Long> batch) {
+    for (Map.Entry<String, Long> counter : batch.entrySet()) {
+      addTo(savedCounters, counter.getKey(), counter.getValue());
+    }
+  }
+
+  private static void addTo(Map<String, Long> batch, String counter, long value) {
+    if (value != 0) {
+      Long total = batch.get(counter);
+      batch.put(counter, total != null ? total + value : value);
+    }
+  }
+
+  /**
+   * Returns the name of the endpoint of a request, e.g., "OfferEndpoint.List" for the class of
+   * the request listing offers.
+   */
+  static String getName(Object endpoint) {
+    if (!(endpoint instanceof Class)) {
+      return endpoint.toString();
+    }
+    String name = ((Class<?>) endpoint).getName();
+    name = name.substring(name.lastIndexOf('.') + 1);
+    // drop the enclosing client class
+    int firstSeparator = name.indexOf('$');
+    if (firstSeparator >= 0 && name.indexOf('$', firstSeparator + 1) >= 0) {
+      name = name.substring(firstSeparator + 1);
+    }
+    return name.replace('$', '.');
+  }
+
+  /**
+   * Removes the counters that would make the batch exceed {@link #MAX_BATCH_BYTES} from the batch,
+   * in name order, so they can be carried over to the next batch.
+   *
+   * @return the removed counters
+   */
+  private static Map<String, Long> split(Map<String, Long> batch) {
+    Map<String, Long> deferredCounters = new TreeMap<String, Long>();
+    // leave room for the count of deferred counters
+    int size = DEFERRED_COUNTERS.length() + 24;
+    Iterator<Map.Entry<String, Long>> iterator = batch.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Long> counter = iterator.next();
+      // "name":value,
+      int counterSize = counter.getKey().length() + String.valueOf(counter.getValue()).length() + 4;
+      if (size + counterSize > MAX_BATCH_BYTES) {
+        deferredCounters.put(counter.getKey(), counter.getValue());
+        iterator.remove();
+      } else {
+        size += counterSize;
+      }
+    }
+    return deferredCounters;
+  }
+
+  /**
+   * Serializes the counters in name order, with the number of counters carried over to the next
+   * batch.
+   */
+  private static byte[] toJson(Map<String, Long> batch, int deferredCount) throws IOException {
+    Map<String, Long> batchCounters = batch;
+    if (deferredCount > 0) {
+      batchCounters = new TreeMap<String, Long>(batch);
+      batchCounters.put(DEFERRED_COUNTERS, (long) deferredCount);
+    }
+    GenericData data = new GenericData();
+    data.put("sdkVersion", Build.VERSION.SDK_INT);
+    data.put("counters", batchCounters);
+    return CloudEndpointBuilderHelper.getJsonFactory().toByteArray(data);
+  }
+
+  private static byte[] compress(byte[] json) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(json);
+    gzip.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * Posts the compressed batch to the telemetry resource through the client, so it goes to the
+   * same server, with the same credentials, as the Cloud Endpoint requests.
+   */
+  private static void send(AbstractGoogleClient client, byte[] content) throws IOException {
+    GenericUrl url = new GenericUrl(client.getBaseUrl() + RESOURCE_NAME);
+    final HttpRequest request = client.getRequestFactory().buildPostRequest(url,
+        new ByteArrayContent("application/json; charset=UTF-8", content));
+    request.getHeaders().setContentEncoding("gzip");
+    NetworkDispatcher.execute(url.getHost(), new NetworkDispatcher.Call<Void>() {
+      @Override
+      public Void call() throws IOException {
+        request.execute().disconnect();
+        return null;
+      }
+    });
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Keeps the K best items of a list, in order, as the list grows. The items are held in a balanced
+ * tree bounded to K entries, so an item that arrives later (e.g., with the next page of the list)
+ * costs O(log K) instead of sorting the whole list again. Items that compare equal keep the order
+ * of the list. The other items follow the K best ones unranked, in the order of the list, so no
+ * item is hidden.
+ *
+ * Must be called on the main thread.
+ *
+ * @param <T> type of the ranked items
+ */
+class TopKRanking<T> {
+  private final int k;
+  private Comparator<? super T> comparator;
+
+  private final TreeSet<Ranked<T>> best;
+
+  // the list the best items have been taken from, and how many of its items have been added
+  private List<T> source = null;
+  private int added = 0;
+
+  // the best items in order followed by the other items, recomputed when they change
+  private List<T> ranked = null;
+
+  /**
+   * An item together with its position in the list, which breaks ties.
+   */
+  private static class Ranked<T> {
+    final T item;
+    final int position;
+
+    Ranked(T item, int position) {
+      this.item = item;
+      this.position = position;
+    }
+  }
+
+  /**
+   * @constructor
+   *
+   * @param k the maximum number of items kept
+   * @param comparator the order of the items, best first, or null to keep the order of the list
+   */
+  TopKRanking(int k, Comparator<? super T> comparator) {
+    this.k = k;
+    this.comparator = comparator;
+    this.best = new TreeSet<Ranked<T>>(new Comparator<Ranked<T>>() {
+      @Override
+      public int compare(Ranked<T> ranked1, Ranked<T> ranked2) {
+        int comparison = TopKRanking.this.comparator != null
+            ? TopKRanking.this.comparator.compare(ranked1.item, ranked2.item) : 0;
+        return comparison != 0 ? comparison : ranked1.position - ranked2.position;
+      }
+    });
+  }
+
+  /**
+   * Changes the order of the items. The items are ranked again the next time they are requested.
+   *
+   * @param comparator the order of the items, best first, or null to keep the order of the list
+   */
+  void setComparator(Comparator<? super T> comparator) {
+    if (comparator != this.comparator) {
+      this.comparator = comparator;
+      source = null;
+    }
+  }
+
+  /**
+   * Returns the best items of the list, best first, followed by the other items in the order of
+   * the list. If the list only grew since the last call, e.g., with a next page of items, only the
+   * new items are ranked.
+   */
+  List<T> rank(List<T> items) {
+    if (comparator == null) {
+      return items;
+    }
+
+    if (!isExtensionOfSource(items)) {
+      best.clear();
+      added = 0;
+      ranked = null;
+    }
+    source = items;
+
+    for (; added < items.size(); added++) {
+      add(new Ranked<T>(items.get(added), added));
+    }
+
+    if (ranked == null || ranked.size() != items.size()) {
+      List<T> rankedItems = new ArrayList<T>(items.size());
+      boolean[] isBest = new boolean[items.size()];
+      for (Ranked<T> entry : best) {
+        rankedItems.add(entry.item);
+        isBest[entry.position] = true;
+      }
+      for (int i = 0; i < items.size(); i++) {
+        if (!isBest[i]) {
+          rankedItems.add(items.get(i));
+        }
+      }
+      ranked = Collections.unmodifiableList(rankedItems);
+    }
+    return ranked;
+  }
+
+  private void add(Ranked<T> entry) {
+    if (best.size() >= k && best.comparator().compare(entry, best.last()) > 0) {
+      // not among the best items
+      return;
+    }
+
+    best.add(entry);
+    if (best.size() > k) {
+      best.remove(best.last());
+    }
+    ranked = null;
+  }
+
+  /**
+   * Returns true if the list starts with the items that have been added, i.e., it only grew.
+   */
+  private boolean isExtensionOfSource(List<T> items) {
+    if (source == null || items.size() < added) {
+      return false;
+    }
+    if (items == source) {
+      return true;
+    }
+    for (int i = 0; i < added; i++) {
+      if (items.get(i) != source.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
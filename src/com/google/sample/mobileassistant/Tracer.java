@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant;
+
+import android.content.Context;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.logging.Logger;
+
+/**
+ * Records events of the hot paths (network requests, list retrievals, image downloads and their
+ * failures) into a fixed-size ring buffer of typed fields, instead of formatting log messages,
+ * so recording an event costs a few array stores and no allocation. The oldest events are
+ * overwritten once the buffer is full.
+ *
+ * The buffer is formatted only when it is dumped, as CSV to the files of the application, from
+ * where it can be read with "adb shell run-as com.google.sample.mobileassistant cat
+ * files/trace.csv": on demand from the options menu, or when the application crashes.
+ *
+ * Can be called on any thread.
+ */
+final class Tracer {
+  private static final Logger log = Logger.getLogger(Tracer.class.getName());
+
+  private static final String DUMP_FILE_NAME = "trace.csv";
+  private static final int CAPACITY = 1024;
+
+  // events
+  static final String REQUEST = "request";
+  static final String REQUEST_FAILED = "requestFailed";
+  static final String REQUEST_WAITED = "requestWaited";
+  static final String NOT_MODIFIED = "notModified";
+  static final String MODIFIED = "modified";
+  static final String DELTA_APPLIED = "deltaApplied";
+  static final String FETCH = "fetch";
+  static final String FETCH_FAILED = "fetchFailed";
+  static final String TASK_FAILED = "taskFailed";
+  static final String SEARCH = "search";
+  static final String IMAGE_FAILED = "imageFailed";
+  static final String LOCATION_FAILED = "locationFailed";
+  static final String DNS_LOOKUP = "dnsLookup";
+  static final String PRECONNECT = "preconnect";
+  static final String PRECONNECT_FAILED = "preconnectFailed";
+  static final String HANDSHAKE = "handshake";
+  static final String HANDSHAKE_RESUMED = "handshakeResumed";
+
+  // the fields of the events, indexed by position in the ring; guarded by the class
+  private static final long[] times = new long[CAPACITY];
+  private static final String[] events = new String[CAPACITY];
+  private static final Object[] endpoints = new Object[CAPACITY];
+  private static final Object[] placeIds = new Object[CAPACITY];
+  private static final long[] durations = new long[CAPACITY];
+  private static final long[] byteCounts = new long[CAPACITY];
+  private static final Class<?>[] errors = new Class<?>[CAPACITY];
+
+  // number of events recorded since the process started
+  private static long recorded = 0;
+
+  private Tracer() {}
+
+  /**
+   * Dumps the events when an exception is not caught by the application, before the default
+   * handler terminates the process.
+   *
+   * @param context any context of the application
+   */
+  static void initialize(Context context) {
+    final Context applicationContext = context.getApplicationContext();
+    final Thread.UncaughtExceptionHandler defaultHandler =
+        Thread.getDefaultUncaughtExceptionHandler();
+    Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override
+      public void uncaughtException(Thread thread, Throwable throwable) {
+        dump(applicationContext);
+        if (defaultHandler != null) {
+          defaultHandler.uncaughtException(thread, throwable);
+        }
+      }
+    });
+  }
+
+  /**
+   * Records an event.
+   *
+   * @param event the event, one of the constants of this class
+   * @param endpoint what the event is about, e.g., the class of a Cloud Endpoint request, a host
+   *        or an url, formatted only when dumped
+   * @param placeId the id of the place the event is about or null
+   * @param durationInMilliseconds the duration of the event or 0
+   * @param bytes the bytes transferred or -1 if unknown
+   * @param error the exception that made the operation fail or null
+   */
+  static void record(String event, Object endpoint, Object placeId, long durationInMilliseconds,
+      long bytes, Throwable error) {
+    long time = System.currentTimeMillis();
+    synchronized (Tracer.class) {
+      int index = (int) (recorded++ % CAPACITY);
+      times[index] = time;
+      events[index] = event;
+      endpoints[index] = endpoint;
+      placeIds[index] = placeId;
+      durations[index] = durationInMilliseconds;
+      byteCounts[index] = bytes;
+      errors[index] = error != null ? error.getClass() : null;
+    }
+  }
+
+  /**
+   * Dumps the events from the options menu of the activity and tells the user where to find them.
+   */
+  static void dumpFromMenu(Context context) {
+    File file = dump(context);
+    if (file != null) {
+      Toast.makeText(context, context.getString(R.string.traceDumped, file.getAbsolutePath()),
+          Toast.LENGTH_LONG).show();
+    }
+  }
+
+  /**
+   * Writes the events as CSV to the files of the application, from the oldest to the newest.
+   *
+   * @return the file the events have been written to or null if writing failed
+   */
+  static synchronized File dump(Context context) {
+    File file = new File(context.getFilesDir(), DUMP_FILE_NAME);
+    try {
+      Writer writer = new FileWriter(file);
+      try {
+        writer.write("time,event,endpoint,placeId,durationMs,bytes,error\n");
+        for (long i = Math.max(0, recorded - CAPACITY); i < recorded; i++) {
+          int index = (int) (i % CAPACITY);
+          writer.write(times[index] + "," + events[index] + "," + format(endpoints[index]) + ","
+              + format(placeIds[index]) + "," + durations[index] + "," + byteCounts[index] + ","
+              + format(errors[index]) + "\n");
+        }
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      log.warning("Failed to dump the trace: " + e.getMessage());
+      return null;
+    }
+    return file;
+  }
+
+  /**
+   * Formats a field, e.g., the class of a request as its name without the package.
+   */
+  private static String format(Object value) {
+    if (value == null) {
+      return "";
+    }
+    String text = value.toString();
+    if (value instanceof Class) {
+      text = ((Class<?>) value).getName();
+      text = text.substring(text.lastIndexOf('.') + 1);
+    }
+    // fields are not quoted, so they can't contain the separator
+    return text.replace(',', ';');
+  }
+}
@@ -0,0 +1,29 @@
+#!/bin/sh
+# Compiles the desktop tools against the libraries of the application and the generated Cloud
+# Endpoints client library, then runs the tool.
+#
+# Usage: tools/run.sh <tool class name> [arguments]
+#   e.g. tools/run.sh JsonParsingBenchmark
+
+set -e
+
+TOOLS_DIR=$(cd "$(dirname "$0")" && pwd)
+PROJECT_DIR=$(dirname "$TOOLS_DIR")
+ENDPOINT_SOURCE_DIR="$PROJECT_DIR/endpoint-libs/libshoppingassistant-v1/shoppingassistant/shoppingassistant-v1-generated-source"
+OUT_DIR="$TOOLS_DIR/bin"
+
+if [ ! -d "$ENDPOINT_SOURCE_DIR" ]; then
+  echo "Generate the Cloud Endpoint client library first (see README.md)" >&2
+  exit 1
+fi
+
+CLASSPATH=$(ls "$PROJECT_DIR"/libs/*.jar | grep -v "android" | tr '\n' ':')
+
+rm -rf "$OUT_DIR"
+mkdir -p "$OUT_DIR"
+find "$TOOLS_DIR/src" "$ENDPOINT_SOURCE_DIR" -name "*.java" > "$OUT_DIR/sources.txt"
+javac -d "$OUT_DIR" -cp "$CLASSPATH" @"$OUT_DIR/sources.txt"
+
+TOOL=$1
+shift
+java -cp "$OUT_DIR:$CLASSPATH" "com.google.sample.mobileassistant.tools.$TOOL" "$@"
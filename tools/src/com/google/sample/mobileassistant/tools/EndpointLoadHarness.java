@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant.tools;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.googleapis.services.GoogleClientRequestInitializer;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.sample.mobileassistant.shoppingassistant.Shoppingassistant;
+import com.google.sample.mobileassistant.shoppingassistant.model.CheckIn;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfo;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfoCollection;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the Cloud Endpoint calls the application makes, through the generated client library, at a
+ * configurable concurrency against a server (by default an in-process
+ * {@link StandInEndpointServer}) and reports the throughput, the latency percentiles of each
+ * operation and the bytes on the wire.
+ *
+ * Each worker either repeats the flow of a user (list the nearby places, list the offers and
+ * recommendations of the closest place and check in) or replays a file of operations, one per
+ * line: "places latitude longitude", "offers placeId", "recommendations placeId" or
+ * "checkIn placeId".
+ *
+ * With --delta true, offers and recommendations are requested like the application does once it
+ * holds a local copy: with the version of the previous response for the same place, so only the
+ * changes since then are returned (see the --churn option of the stand-in server).
+ *
+ * Usage: EndpointLoadHarness [--url rootUrl] [--concurrency n] [--duration seconds]
+ *     [--json jackson|jackson2|gson] [--replay file] [--delta true|false]
+ *     [stand-in server options]
+ */
+public class EndpointLoadHarness {
+  // same requests as the application sends
+  private static final int PLACES_PAGE_SIZE = 10;
+  private static final long PLACES_DISTANCE_IN_KM = 50;
+  private static final int OFFERS_PAGE_SIZE = 10;
+  private static final String DEFAULT_LATITUDE = "47.67399";
+  private static final String DEFAULT_LONGITUDE = "-122.12151";
+
+  private final Shoppingassistant endpoint;
+  private final List<String[]> replay;
+  private final long deadline;
+  private final boolean delta;
+
+  // "operation/place id" -> version of the last response, when requesting changes only
+  private final Map<String, String> versions = new ConcurrentHashMap<String, String>();
+
+  // operation name -> latencies in milliseconds
+  private final Map<String, List<Long>> latencies = new TreeMap<String, List<Long>>();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong requestBytes = new AtomicLong();
+  private final AtomicLong responseBytes = new AtomicLong();
+
+  EndpointLoadHarness(String rootUrl, JsonFactory jsonFactory, List<String[]> replay,
+      long deadline, boolean delta) {
+    this.replay = replay;
+    this.deadline = deadline;
+    this.delta = delta;
+
+    HttpRequestInitializer countingInitializer = new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) {
+        request.setInterceptor(new HttpExecuteInterceptor() {
+          @Override
+          public void intercept(HttpRequest request) throws IOException {
+            HttpContent content = request.getContent();
+            if (content != null && content.getLength() > 0) {
+              requestBytes.addAndGet(content.getLength());
+            }
+          }
+        });
+        request.setResponseInterceptor(new HttpResponseInterceptor() {
+          @Override
+          public void interceptResponse(HttpResponse response) {
+            Long length = response.getHeaders().getContentLength();
+            if (length != null) {
+              responseBytes.addAndGet(length);
+            }
+          }
+        });
+      }
+    };
+
+    endpoint = new Shoppingassistant.Builder(
+        new NetHttpTransport(), jsonFactory, countingInitializer)
+        .setRootUrl(rootUrl)
+        .setGoogleClientRequestInitializer(new GoogleClientRequestInitializer() {
+          @Override
+          public void initialize(AbstractGoogleClientRequest<?> request) {
+            // like the application does for servers that are not https
+            request.setDisableGZipContent(true);
+          }
+        })
+        .build();
+  }
+
+  public static void main(String[] args) throws Exception {
+    String rootUrl = null;
+    int concurrency = 4;
+    int durationInSeconds = 10;
+    String json = "jackson2";
+    List<String[]> replay = null;
+    boolean delta = false;
+
+    StandInEndpointServer.Options serverOptions = new StandInEndpointServer.Options();
+    serverOptions.port = 0;
+    for (int i = 0; i < args.length;) {
+      int next = serverOptions.parse(args, i);
+      if (next != i) {
+        i = next;
+        continue;
+      }
+      if (i + 1 >= args.length) {
+        usage("Missing value of " + args[i]);
+      }
+      String name = args[i];
+      String value = args[i + 1];
+      if (name.equals("--url")) {
+        rootUrl = value;
+      } else if (name.equals("--concurrency")) {
+        concurrency = Integer.parseInt(value);
+      } else if (name.equals("--duration")) {
+        durationInSeconds = Integer.parseInt(value);
+      } else if (name.equals("--json")) {
+        json = value;
+      } else if (name.equals("--replay")) {
+        replay = readReplay(value);
+      } else if (name.equals("--delta")) {
+        delta = Boolean.parseBoolean(value);
+      } else {
+        usage("Unknown option: " + name);
+      }
+      i += 2;
+    }
+
+    StandInEndpointServer server = null;
+    if (rootUrl == null) {
+      server = new StandInEndpointServer(serverOptions);
+      server.start();
+      rootUrl = server.getRootUrl();
+    }
+
+    long start = System.nanoTime();
+    EndpointLoadHarness harness = new EndpointLoadHarness(rootUrl, newJsonFactory(json), replay,
+        start + durationInSeconds * 1000000000L, delta);
+    harness.run(concurrency);
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    harness.report(seconds);
+    if (server != null) {
+      System.out.println(String.format("server: %d requests, %d injected errors, %d not modified,"
+          + " %d deltas, %d bytes received, %d bytes sent", server.getRequests(),
+          server.getErrors(), server.getNotModified(), server.getDeltas(),
+          server.getBytesReceived(), server.getBytesSent()));
+      server.stop();
+    }
+    System.exit(0);
+  }
+
+  private static void usage(String message) {
+    System.err.println(message);
+    System.err.println("Usage: EndpointLoadHarness [--url rootUrl] [--concurrency n]"
+        + " [--duration seconds] [--json jackson|jackson2|gson] [--replay file]"
+        + " [--delta true|false] [stand-in server options]");
+    System.exit(1);
+  }
+
+  private static JsonFactory newJsonFactory(String name) {
+    if (name.equals("jackson")) {
+      return new com.google.api.client.json.jackson.JacksonFactory();
+    } else if (name.equals("gson")) {
+      return new GsonFactory();
+    }
+    return new com.google.api.client.json.jackson2.JacksonFactory();
+  }
+
+  private static List<String[]> readReplay(String fileName) throws IOException {
+    List<String[]> operations = new ArrayList<String[]>();
+    BufferedReader in = new BufferedReader(new FileReader(fileName));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0 && !line.startsWith("#")) {
+          operations.add(line.split("\\s+"));
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return operations;
+  }
+
+  /**
+   * Runs the workers until the deadline.
+   */
+  void run(int concurrency) throws InterruptedException {
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < concurrency; i++) {
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (System.nanoTime() < deadline) {
+            if (replay != null) {
+              for (String[] operation : replay) {
+                execute(operation);
+              }
+            } else {
+              runUserFlow();
+            }
+          }
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  private void runUserFlow() {
+    PlaceInfoCollection places = (PlaceInfoCollection) execute(
+        new String[] {"places", DEFAULT_LATITUDE, DEFAULT_LONGITUDE});
+    if (places == null || places.getItems() == null || places.getItems().isEmpty()) {
+      return;
+    }
+
+    PlaceInfo closestPlace = places.getItems().get(0);
+    execute(new String[] {"offers", closestPlace.getPlaceId()});
+    execute(new String[] {"recommendations", closestPlace.getPlaceId()});
+    execute(new String[] {"checkIn", closestPlace.getPlaceId()});
+  }
+
+  /**
+   * Executes an operation and records its latency.
+   *
+   * @return the response or null if the operation failed
+   */
+  private Object execute(String[] operation) {
+    String name = operation[0];
+    long start = System.nanoTime();
+    try {
+      AbstractGoogleClientRequest<?> request = newRequest(operation);
+      String versionKey = name + "/" + operation[operation.length - 1];
+      boolean versioned = delta && (name.equals("offers") || name.equals("recommendations"));
+      if (versioned && versions.containsKey(versionKey)) {
+        request.set("sinceVersion", versions.get(versionKey));
+      }
+
+      Object response = request.execute();
+      record(name, (System.nanoTime() - start) / 1000000);
+      if (versioned && response instanceof GenericJson
+          && ((GenericJson) response).get("version") != null) {
+        versions.put(versionKey, ((GenericJson) response).get("version").toString());
+      }
+      return response;
+    } catch (IOException e) {
+      failures.incrementAndGet();
+      record(name + " (failed)", (System.nanoTime() - start) / 1000000);
+      return null;
+    }
+  }
+
+  private AbstractGoogleClientRequest<?> newRequest(String[] operation) throws IOException {
+    String name = operation[0];
+    if (name.equals("places")) {
+      return endpoint.placeEndpoint().list(
+          PLACES_PAGE_SIZE, PLACES_DISTANCE_IN_KM, operation[1], operation[2]);
+    } else if (name.equals("offers")) {
+      return endpoint.offerEndpoint().list(operation[1]).set("limit", OFFERS_PAGE_SIZE);
+    } else if (name.equals("recommendations")) {
+      return endpoint.recommendationEndpoint().list(operation[1]);
+    } else if (name.equals("checkIn")) {
+      CheckIn checkIn = new CheckIn();
+      checkIn.setPlaceId(operation[1]);
+      return endpoint.checkInEndpoint().insert(checkIn);
+    }
+    throw new IllegalArgumentException("Unknown operation: " + name);
+  }
+
+  private synchronized void record(String operation, long milliseconds) {
+    List<Long> operationLatencies = latencies.get(operation);
+    if (operationLatencies == null) {
+      operationLatencies = new ArrayList<Long>();
+      latencies.put(operation, operationLatencies);
+    }
+    operationLatencies.add(milliseconds);
+  }
+
+  private synchronized void report(double seconds) {
+    long operations = 0;
+    System.out.println(String.format("%-26s %8s %8s %6s %6s %6s %6s", "operation", "count",
+        "ops/s", "p50", "p90", "p99", "max"));
+    for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+      List<Long> sorted = new ArrayList<Long>(entry.getValue());
+      Collections.sort(sorted);
+      operations += sorted.size();
+      System.out.println(String.format("%-26s %8d %8.1f %6d %6d %6d %6d", entry.getKey(),
+          sorted.size(), sorted.size() / seconds, percentile(sorted, 50), percentile(sorted, 90),
+          percentile(sorted, 99), sorted.get(sorted.size() - 1)));
+    }
+    System.out.println(String.format("total: %d operations in %.1fs, %.1f ops/s, %d failed",
+        operations, seconds, operations / seconds, failures.get()));
+    System.out.println(String.format("wire: %d request bytes, %d response bytes (%.1f KB/s)",
+        requestBytes.get(), responseBytes.get(),
+        (requestBytes.get() + responseBytes.get()) / 1024.0 / seconds));
+  }
+
+  /**
+   * Returns the nearest-rank percentile of sorted latencies.
+   */
+  private static long percentile(List<Long> sorted, int percentage) {
+    int rank = (int) Math.ceil(percentage / 100.0 * sorted.size());
+    return sorted.get(Math.max(rank - 1, 0));
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant.tools;
+
+/**
+ * Generates synthetic but realistic JSON payloads of the Mobile Assistant Cloud Endpoints.
+ */
+final class Fixtures {
+  private Fixtures() {}
+
+  /**
+   * Returns a page of places.
+   *
+   * @param itemCount the number of places in the page
+   * @param firstIndex the index of the first place, e.g., to generate following pages
+   * @param nextPageToken the token of the next page or null if this is the last page
+   */
+  static String places(int itemCount, int firstIndex, String nextPageToken) {
+    StringBuilder json = new StringBuilder("{\"items\":[");
+    for (int i = firstIndex; i < firstIndex + itemCount; i++) {
+      if (i > firstIndex) {
+        json.append(',');
+      }
+      json.append("{\"placeId\":\"").append(1000 + i)
+          .append("\",\"name\":\"Store ").append(i)
+          .append("\",\"address\":\"").append(100 + i).append(" Main Street, Redmond, WA 98052")
+          .append("\",\"location\":{\"latitude\":").append(47.67399 + i * 0.001)
+          .append(",\"longitude\":").append(-122.12151 - i * 0.001)
+          .append("},\"distanceInKilometers\":").append(0.25 * i).append('}');
+    }
+    json.append(']');
+    if (nextPageToken != null) {
+      json.append(",\"nextPageToken\":\"").append(nextPageToken).append('"');
+    }
+    return json.append('}').toString();
+  }
+
+  /**
+   * Returns a page of offers.
+   *
+   * @param itemCount the number of offers in the page
+   * @param firstIndex the index of the first offer, e.g., to generate following pages
+   * @param nextPageToken the token of the next page or null if this is the last page
+   * @param imageBaseUrl the url the image names are appended to, ending with a slash
+   */
+  static String offers(int itemCount, int firstIndex, String nextPageToken, String imageBaseUrl) {
+    StringBuilder json = new StringBuilder("{\"items\":[");
+    for (int i = firstIndex; i < firstIndex + itemCount; i++) {
+      if (i > firstIndex) {
+        json.append(',');
+      }
+      appendOffer(json, i, 0, imageBaseUrl);
+    }
+    json.append(']');
+    if (nextPageToken != null) {
+      json.append(",\"nextPageToken\":\"").append(nextPageToken).append('"');
+    }
+    return json.append('}').toString();
+  }
+
+  /**
+   * Returns a list of recommendations.
+   *
+   * @param itemCount the number of recommendations in the list
+   * @param imageBaseUrl the url the image names are appended to, ending with a slash
+   */
+  static String recommendations(int itemCount, String imageBaseUrl) {
+    StringBuilder json = new StringBuilder("{\"items\":[");
+    for (int i = 0; i < itemCount; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      appendRecommendation(json, i, 0, imageBaseUrl);
+    }
+    return json.append("]}").toString();
+  }
+
+  /**
+   * Appends an offer.
+   *
+   * @param json the JSON the offer is appended to
+   * @param index the index of the offer, which determines its id
+   * @param revision the number of times the offer has been updated, which changes its title
+   * @param imageBaseUrl the url the image name is appended to, ending with a slash
+   */
+  static void appendOffer(StringBuilder json, int index, int revision, String imageBaseUrl) {
+    json.append("{\"offerId\":\"").append(2000 + index)
+        .append("\",\"title\":\"").append(10 + (index + revision) % 40)
+        .append("% off all jackets")
+        .append("\",\"description\":\"Valid in store until the end of the month. Cannot be")
+        .append(" combined with other offers.\",\"imageUrl\":\"").append(imageBaseUrl)
+        .append("offer").append(index).append(".png\"}");
+  }
+
+  /**
+   * Appends a recommendation.
+   *
+   * @param json the JSON the recommendation is appended to
+   * @param index the index of the recommendation, which determines its title
+   * @param revision the number of times the recommendation has been updated, which changes its
+   *        description
+   * @param imageBaseUrl the url the image name is appended to, ending with a slash
+   */
+  static void appendRecommendation(
+      StringBuilder json, int index, int revision, String imageBaseUrl) {
+    json.append("{\"title\":\"Product ").append(index)
+        .append("\",\"description\":\"Customers who bought this also bought product ")
+        .append(index + 1 + revision).append(".\",\"imageUrl\":\"").append(imageBaseUrl)
+        .append("product").append(index)
+        .append(".png\",\"expiration\":\"2013-12-31T23:59:59.000Z\"}");
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant.tools;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.sample.mobileassistant.shoppingassistant.model.OfferCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.PlaceInfoCollection;
+import com.google.sample.mobileassistant.shoppingassistant.model.RecommendationCollection;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Measures how fast each JSON library bundled with the application parses realistic places,
+ * offers and recommendations payloads of growing size, and how much memory it allocates doing so.
+ * Each case is warmed up first, then run for several timed iterations; the throughput is reported
+ * in operations (parsed payloads) per second and the allocation in bytes per operation.
+ *
+ * The JSON library used by the application is chosen in CloudEndpointBuilderHelper.
+ *
+ * Usage: JsonParsingBenchmark [measurement iterations] [milliseconds per iteration]
+ */
+public class JsonParsingBenchmark {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int[] ITEM_COUNTS = {10, 100, 1000};
+  private static final int WARM_UP_ITERATIONS = 3;
+  private static final String IMAGE_BASE_URL = "http://example.com/images/";
+
+  private static int measurementIterations = 5;
+  private static long iterationMillis = 1000;
+
+  // prevents the JIT compiler from eliminating the parsing
+  private static long sink = 0;
+
+  /**
+   * Payload of an endpoint response and the class it is parsed into.
+   */
+  private static class Payload {
+    final String name;
+    final Class<? extends GenericJson> collectionClass;
+    final byte[] json;
+
+    Payload(String name, Class<? extends GenericJson> collectionClass, String json) {
+      this.name = name;
+      this.collectionClass = collectionClass;
+      this.json = json.getBytes(UTF_8);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length > 0) {
+      measurementIterations = Integer.parseInt(args[0]);
+    }
+    if (args.length > 1) {
+      iterationMillis = Long.parseLong(args[1]);
+    }
+
+    String[] libraries = {"jackson", "jackson2", "gson"};
+    JsonFactory[] factories = {new com.google.api.client.json.jackson.JacksonFactory(),
+        new com.google.api.client.json.jackson2.JacksonFactory(), new GsonFactory()};
+
+    System.out.println(String.format("%-16s %6s %9s %-9s %12s %14s", "payload", "items", "bytes",
+        "library", "ops/s", "alloc B/op"));
+
+    for (int itemCount : ITEM_COUNTS) {
+      Payload[] payloads = {
+          new Payload("places", PlaceInfoCollection.class,
+              Fixtures.places(itemCount, 0, "CgwSBmNvdW50ZXI")),
+          new Payload("offers", OfferCollection.class,
+              Fixtures.offers(itemCount, 0, null, IMAGE_BASE_URL)),
+          new Payload("recommendations", RecommendationCollection.class,
+              Fixtures.recommendations(itemCount, IMAGE_BASE_URL))};
+
+      for (Payload payload : payloads) {
+        for (int i = 0; i < factories.length; i++) {
+          double[] result = run(factories[i], payload);
+          System.out.println(String.format("%-16s %6d %9d %-9s %12.1f %14.0f", payload.name,
+              itemCount, payload.json.length, libraries[i], result[0], result[1]));
+        }
+      }
+    }
+
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+
+  /**
+   * Runs the parsing of the payload with the factory.
+   *
+   * @return the throughput in operations per second and the allocated bytes per operation, or -1
+   *         if the JVM doesn't report allocations.
+   */
+  private static double[] run(JsonFactory factory, Payload payload) throws IOException {
+    for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+      runIteration(factory, payload);
+    }
+
+    long operations = 0;
+    long nanos = 0;
+    long allocatedBytes = 0;
+    for (int i = 0; i < measurementIterations; i++) {
+      long allocatedBefore = getAllocatedBytes();
+      long start = System.nanoTime();
+      operations += runIteration(factory, payload);
+      nanos += System.nanoTime() - start;
+      allocatedBytes += getAllocatedBytes() - allocatedBefore;
+    }
+
+    double throughput = operations * 1e9 / nanos;
+    double allocation = getAllocatedBytes() < 0 ? -1 : (double) allocatedBytes / operations;
+    return new double[] {throughput, allocation};
+  }
+
+  /**
+   * Parses the payload repeatedly for the duration of an iteration.
+   *
+   * @return the number of times the payload has been parsed
+   */
+  private static long runIteration(JsonFactory factory, Payload payload) throws IOException {
+    long deadline = System.nanoTime() + iterationMillis * 1000000;
+    long operations = 0;
+    while (System.nanoTime() < deadline) {
+      GenericJson collection = factory.fromInputStream(
+          new ByteArrayInputStream(payload.json), UTF_8, payload.collectionClass);
+      sink += ((List<?>) collection.get("items")).size();
+      operations++;
+    }
+    return operations;
+  }
+
+  private static long getAllocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
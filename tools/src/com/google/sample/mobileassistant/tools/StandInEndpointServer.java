@@ -0,0 +1,530 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant.tools;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Stands in for the Mobile Assistant Cloud Endpoints (the shoppingassistant API) without App
+ * Engine. The place, offer and recommendation lists are served from recorded fixtures (the
+ * places.json, offers.json and recommendations.json files of a directory) or generated; check-ins
+ * and device infos are echoed back. Latency, jitter, error rate and bandwidth are configurable, so
+ * the client networking code can be exercised under realistic and adverse conditions.
+ *
+ * The images of generated offers and recommendations are served too, resized to the imageSize
+ * query parameter the application adds on slow links. The JDK has no WebP encoder, so images
+ * requested in WebP are served as PNG.
+ *
+ * Lists and images are served with an ETag derived from their content; a request carrying a
+ * matching If-None-Match header is answered with "304 Not Modified" and no body. JSON responses
+ * are gzip-compressed for requests accepting gzip.
+ *
+ * Generated offers and recommendations are versioned (see {@link VersionedCatalog}): every request
+ * for their first page applies the configured number of changes first, and a request carrying the
+ * sinceVersion query parameter is answered with the changes since that version only.
+ *
+ * Batch requests (multipart/mixed requests to the "batch" path, each part holding a request)
+ * are answered part by part, in the order of the parts.
+ *
+ * Telemetry batches posted by the application, usually gzip-compressed, are decoded and printed.
+ *
+ * Requests are routed by the resource name in their path, so the server doesn't depend on the
+ * exact paths of the generated client library. The default port matches the local development
+ * server url of CloudEndpointBuilderHelper, so the application running in the emulator can connect
+ * to it too.
+ *
+ * Usage: StandInEndpointServer [--port 8888] [--latency ms] [--jitter ms] [--error-rate 0..1]
+ *     [--bandwidth KB/s] [--items n] [--pages n] [--churn n] [--image-size pixels]
+ *     [--fixtures directory]
+ */
+public class StandInEndpointServer {
+  static final String SERVICE_PATH = "/_ah/api/";
+  static final String IMAGE_PATH = "/images/";
+  static final String BATCH_PATH = "/batch";
+
+  private static final String BATCH_RESPONSE_BOUNDARY = "batch_response";
+
+  private static final int BANDWIDTH_CHUNK_SIZE = 1024;
+
+  private final Options options;
+  private final Random random = new Random();
+  private HttpServer server;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong deltas = new AtomicLong();
+  private final AtomicLong telemetryBatches = new AtomicLong();
+  private final AtomicLong batchedRequests = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+
+  // size in pixels -> encoded image
+  private final Map<Integer, byte[]> images = new ConcurrentHashMap<Integer, byte[]>();
+
+  // the generated offers and recommendations, the same for all places
+  private final VersionedCatalog offers;
+  private final VersionedCatalog recommendations;
+
+  /**
+   * Behavior of the server.
+   */
+  static class Options {
+    int port = 8888;
+    int latencyInMilliseconds = 0;
+    int jitterInMilliseconds = 0;
+    double errorRate = 0;
+    int bandwidthInKilobytesPerSecond = 0;
+    int itemCount = 10;
+    int pageCount = 1;
+    int churn = 0;
+    int imageSizeInPixels = 256;
+    File fixturesDirectory = null;
+
+    /**
+     * Parses the option at the index of the arguments, if it is a server option.
+     *
+     * @return the index of the next argument, or the same index if the option is not a server
+     *         option
+     */
+    int parse(String[] args, int index) {
+      String name = args[index];
+      if (index + 1 >= args.length) {
+        return index;
+      }
+      String value = args[index + 1];
+
+      if (name.equals("--port")) {
+        port = Integer.parseInt(value);
+      } else if (name.equals("--latency")) {
+        latencyInMilliseconds = Integer.parseInt(value);
+      } else if (name.equals("--jitter")) {
+        jitterInMilliseconds = Integer.parseInt(value);
+      } else if (name.equals("--error-rate")) {
+        errorRate = Double.parseDouble(value);
+      } else if (name.equals("--bandwidth")) {
+        bandwidthInKilobytesPerSecond = Integer.parseInt(value);
+      } else if (name.equals("--items")) {
+        itemCount = Integer.parseInt(value);
+      } else if (name.equals("--pages")) {
+        pageCount = Integer.parseInt(value);
+      } else if (name.equals("--churn")) {
+        churn = Integer.parseInt(value);
+      } else if (name.equals("--image-size")) {
+        imageSizeInPixels = Integer.parseInt(value);
+      } else if (name.equals("--fixtures")) {
+        fixturesDirectory = new File(value);
+      } else {
+        return index;
+      }
+      return index + 2;
+    }
+  }
+
+  /**
+   * @constructor
+   *
+   * @param options the behavior of the server
+   */
+  StandInEndpointServer(Options options) {
+    this.options = options;
+    offers = new VersionedCatalog(true, options.itemCount * options.pageCount);
+    recommendations = new VersionedCatalog(false, options.itemCount);
+  }
+
+  public static void main(String[] args) throws IOException {
+    Options options = new Options();
+    for (int i = 0; i < args.length;) {
+      int next = options.parse(args, i);
+      if (next == i) {
+        System.err.println("Unknown option: " + args[i]);
+        System.exit(1);
+      }
+      i = next;
+    }
+
+    StandInEndpointServer server = new StandInEndpointServer(options);
+    server.start();
+    System.out.println("Serving the shoppingassistant API at " + server.getRootUrl());
+  }
+
+  /**
+   * Starts serving requests on background threads.
+   */
+  void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(options.port), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          serve(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  /**
+   * Stops serving requests.
+   */
+  void stop() {
+    server.stop(0);
+  }
+
+  /**
+   * Returns the url to be set as the root url of the Cloud Endpoint builders.
+   */
+  String getRootUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + SERVICE_PATH;
+  }
+
+  long getRequests() {
+    return requests.get();
+  }
+
+  long getErrors() {
+    return errors.get();
+  }
+
+  long getNotModified() {
+    return notModified.get();
+  }
+
+  long getDeltas() {
+    return deltas.get();
+  }
+
+  long getBatchedRequests() {
+    return batchedRequests.get();
+  }
+
+  long getTelemetryBatches() {
+    return telemetryBatches.get();
+  }
+
+  long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    byte[] requestBody = readFully(exchange.getRequestBody());
+    bytesReceived.addAndGet(requestBody.length);
+
+    sleep(getLatency());
+
+    int status = 200;
+    String contentType = "application/json; charset=UTF-8";
+    byte[] responseBody;
+    if (random.nextDouble() < options.errorRate) {
+      errors.incrementAndGet();
+      status = 503;
+      responseBody =
+          "{\"error\":{\"code\":503,\"message\":\"Injected error\"}}".getBytes("UTF-8");
+    } else if (exchange.getRequestURI().getPath().startsWith(IMAGE_PATH)) {
+      contentType = "image/png";
+      responseBody = getImage(getParameter(exchange.getRequestURI().getRawQuery(), "imageSize"));
+    } else if (exchange.getRequestURI().getPath().endsWith(BATCH_PATH)) {
+      contentType = "multipart/mixed; boundary=" + BATCH_RESPONSE_BOUNDARY;
+      responseBody = getBatchResponse(exchange, requestBody);
+    } else if (exchange.getRequestURI().getPath().toLowerCase().contains("telemetry")) {
+      responseBody = receiveTelemetry(exchange, requestBody);
+    } else {
+      responseBody = getResponse(exchange.getRequestURI().getPath(),
+          exchange.getRequestURI().getRawQuery(), exchange.getRequestHeaders().getFirst("Host"),
+          requestBody);
+    }
+
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    if (status == 200 && exchange.getRequestMethod().equals("GET")) {
+      String eTag = "\"" + Integer.toHexString(Arrays.hashCode(responseBody)) + "\"";
+      exchange.getResponseHeaders().set("ETag", eTag);
+      if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        notModified.incrementAndGet();
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+    }
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")
+        && contentType.startsWith("application/json")) {
+      responseBody = compress(responseBody);
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+    exchange.sendResponseHeaders(status, responseBody.length);
+    write(exchange.getResponseBody(), responseBody);
+    bytesSent.addAndGet(responseBody.length);
+  }
+
+  private byte[] getResponse(String path, String query, String host, byte[] requestBody)
+      throws IOException {
+    path = path.toLowerCase();
+    int page = getPage(query);
+    String nextPageToken = page + 1 < options.pageCount ? Integer.toString(page + 1) : null;
+    // images are served by this server, at the host name the client used to reach it
+    String imageBaseUrl = "http://" + host + IMAGE_PATH;
+
+    if (path.contains("checkin") || path.contains("deviceinfo")) {
+      // inserted entities are returned as they have been sent
+      return requestBody.length > 0 ? requestBody : "{}".getBytes("UTF-8");
+    } else if (path.contains("recommendation")) {
+      byte[] fixture = readFixture("recommendations.json");
+      return fixture != null ? fixture
+          : getVersionedList(recommendations, 0, 0, query, imageBaseUrl);
+    } else if (path.contains("offer")) {
+      byte[] fixture = readFixture("offers.json");
+      return fixture != null ? fixture
+          : getVersionedList(offers, page, options.itemCount, query, imageBaseUrl);
+    } else {
+      byte[] fixture = readFixture("places.json");
+      return fixture != null ? fixture : Fixtures.places(
+          options.itemCount, page * options.itemCount, nextPageToken).getBytes("UTF-8");
+    }
+  }
+
+  /**
+   * Answers the requests in the parts of a batch request, each with a part holding its response.
+   */
+  private byte[] getBatchResponse(HttpExchange exchange, byte[] requestBody) throws IOException {
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    String boundary = contentType != null && contentType.contains("boundary=")
+        ? contentType.substring(contentType.indexOf("boundary=") + "boundary=".length()) : "";
+    String host = exchange.getRequestHeaders().getFirst("Host");
+
+    StringBuilder response = new StringBuilder();
+    int id = 0;
+    for (String part : new String(requestBody, "UTF-8").split("--" + boundary)) {
+      // the part headers, then the request line, the request headers and the request body
+      String[] sections = part.split("\r?\n\r?\n", 3);
+      if (sections.length < 2) {
+        continue;
+      }
+      String[] requestLine = sections[1].split("\\s+");
+      if (requestLine.length < 2) {
+        continue;
+      }
+      batchedRequests.incrementAndGet();
+      URI uri = URI.create(requestLine[1]);
+      byte[] body = sections.length > 2 ? sections[2].trim().getBytes("UTF-8") : new byte[0];
+      String partBody =
+          new String(getResponse(uri.getPath(), uri.getRawQuery(), host, body), "UTF-8");
+
+      response.append("--").append(BATCH_RESPONSE_BOUNDARY).append("\r\n")
+          .append("Content-Type: application/http\r\n")
+          .append("Content-ID: response-").append(++id).append("\r\n\r\n")
+          .append("HTTP/1.1 200 OK\r\n")
+          .append("Content-Type: application/json; charset=UTF-8\r\n")
+          .append("Content-Length: ").append(partBody.getBytes("UTF-8").length)
+          .append("\r\n\r\n").append(partBody).append("\r\n");
+    }
+    response.append("--").append(BATCH_RESPONSE_BOUNDARY).append("--\r\n");
+    return response.toString().getBytes("UTF-8");
+  }
+
+  private static byte[] compress(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(data);
+    gzip.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes the telemetry batch and prints it.
+   */
+  private byte[] receiveTelemetry(HttpExchange exchange, byte[] requestBody) throws IOException {
+    byte[] batch = requestBody;
+    if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      batch = readFully(new GZIPInputStream(new ByteArrayInputStream(requestBody)));
+    }
+    telemetryBatches.incrementAndGet();
+    System.out.println("Telemetry batch of " + requestBody.length + " bytes (" + batch.length
+        + " uncompressed): " + new String(batch, "UTF-8"));
+    return "{}".getBytes("UTF-8");
+  }
+
+  /**
+   * Returns a page of the list, or the changes since the version in the sinceVersion query
+   * parameter. A request for the first page changes the list first.
+   */
+  private byte[] getVersionedList(VersionedCatalog catalog, int page, int pageSize, String query,
+      String imageBaseUrl) throws IOException {
+    if (page == 0) {
+      catalog.change(options.churn);
+    }
+
+    String sinceVersion = getParameter(query, "sinceVersion");
+    if (sinceVersion != null) {
+      String changes = catalog.getChanges(sinceVersion, imageBaseUrl);
+      if (changes != null) {
+        deltas.incrementAndGet();
+        return changes.getBytes("UTF-8");
+      }
+    }
+    return catalog.getPage(page, pageSize, imageBaseUrl).getBytes("UTF-8");
+  }
+
+  /**
+   * Returns the page requested by the pageToken query parameter; tokens are page numbers.
+   */
+  private static int getPage(String query) {
+    String pageToken = getParameter(query, "pageToken");
+    if (pageToken == null) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(pageToken);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the value of the query parameter or null if it is missing.
+   */
+  private static String getParameter(String query, String name) {
+    if (query == null) {
+      return null;
+    }
+    for (String parameter : query.split("&")) {
+      if (parameter.startsWith(name + "=")) {
+        return parameter.substring(name.length() + 1);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a generated PNG image of the requested size, at most the configured image size.
+   */
+  private byte[] getImage(String requestedSize) throws IOException {
+    int size = options.imageSizeInPixels;
+    if (requestedSize != null) {
+      try {
+        size = Math.max(1, Math.min(size, Integer.parseInt(requestedSize)));
+      } catch (NumberFormatException e) {
+        // serve the full size
+      }
+    }
+
+    byte[] image = images.get(size);
+    if (image == null) {
+      BufferedImage bufferedImage = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+      for (int y = 0; y < size; y++) {
+        for (int x = 0; x < size; x++) {
+          bufferedImage.setRGB(x, y, (x * 255 / size) << 16 | (y * 255 / size) << 8 | 128);
+        }
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(bufferedImage, "png", out);
+      image = out.toByteArray();
+      images.put(size, image);
+    }
+    return image;
+  }
+
+  private byte[] readFixture(String name) throws IOException {
+    if (options.fixturesDirectory == null) {
+      return null;
+    }
+    File file = new File(options.fixturesDirectory, name);
+    if (!file.exists()) {
+      return null;
+    }
+    return readFully(new FileInputStream(file));
+  }
+
+  private int getLatency() {
+    int jitter = options.jitterInMilliseconds;
+    if (jitter <= 0) {
+      return options.latencyInMilliseconds;
+    }
+    return Math.max(0, options.latencyInMilliseconds + random.nextInt(2 * jitter + 1) - jitter);
+  }
+
+  /**
+   * Writes the response, limited to the configured bandwidth.
+   */
+  private void write(OutputStream out, byte[] body) throws IOException {
+    if (options.bandwidthInKilobytesPerSecond <= 0) {
+      out.write(body);
+      return;
+    }
+
+    long start = System.nanoTime();
+    for (int offset = 0; offset < body.length; offset += BANDWIDTH_CHUNK_SIZE) {
+      out.write(body, offset, Math.min(BANDWIDTH_CHUNK_SIZE, body.length - offset));
+      out.flush();
+      // time at which the bytes written so far are due at the configured bandwidth
+      long dueMillis = (long) (offset + BANDWIDTH_CHUNK_SIZE) * 1000
+          / (options.bandwidthInKilobytesPerSecond * 1024L);
+      sleep((int) (dueMillis - (System.nanoTime() - start) / 1000000));
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void sleep(int milliseconds) {
+    if (milliseconds <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(milliseconds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
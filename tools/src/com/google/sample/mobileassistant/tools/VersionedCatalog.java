@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.sample.mobileassistant.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generated list of offers or recommendations that changes over time, for the
+ * {@link StandInEndpointServer} to serve either completely, page by page, or as the changes since
+ * a version of the list.
+ *
+ * Every call to {@link #change(int)} creates a new version of the list by updating, inserting
+ * and deleting items in turn. The server sends the version in the "version" field of its
+ * responses; a request carrying it back in the "sinceVersion" query parameter is answered with
+ * the items inserted or updated since that version, the ids of the items deleted since then in
+ * the "deletedIds" field and the "delta" field set.
+ */
+final class VersionedCatalog {
+  private final boolean offers;
+
+  private int version = 1;
+  private int changeCount = 0;
+  private int nextIndex;
+
+  // index of a live item -> its revision and the version it was last inserted or updated in, in
+  // list order
+  private final LinkedHashMap<Integer, int[]> items = new LinkedHashMap<Integer, int[]>();
+
+  // index of a deleted item -> the version it was deleted in
+  private final Map<Integer, Integer> deletedItems = new HashMap<Integer, Integer>();
+
+  /**
+   * @constructor
+   *
+   * @param offers true for a list of offers, false for a list of recommendations
+   * @param itemCount the initial number of items
+   */
+  VersionedCatalog(boolean offers, int itemCount) {
+    this.offers = offers;
+    for (nextIndex = 0; nextIndex < itemCount; nextIndex++) {
+      items.put(nextIndex, new int[] {0, version});
+    }
+  }
+
+  /**
+   * Creates a new version of the list with the number of changes, which cycle through updating,
+   * inserting and deleting an item. Does nothing if the number is 0.
+   */
+  synchronized void change(int count) {
+    if (count <= 0) {
+      return;
+    }
+
+    version++;
+    for (int i = 0; i < count; i++) {
+      List<Integer> liveIndexes = new ArrayList<Integer>(items.keySet());
+      switch (changeCount++ % 3) {
+        case 0:
+          if (!liveIndexes.isEmpty()) {
+            int[] item = items.get(liveIndexes.get(changeCount % liveIndexes.size()));
+            item[0]++;
+            item[1] = version;
+          }
+          break;
+        case 1:
+          items.put(nextIndex++, new int[] {0, version});
+          break;
+        default:
+          // the oldest item, but never the last one
+          if (liveIndexes.size() > 1) {
+            items.remove(liveIndexes.get(0));
+            deletedItems.put(liveIndexes.get(0), version);
+          }
+          break;
+      }
+    }
+  }
+
+  /**
+   * Returns the current version of the list.
+   */
+  synchronized int getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns a page of the current version of the list.
+   *
+   * @param page the index of the page
+   * @param pageSize the number of items in a page, or 0 to return the whole list
+   * @param imageBaseUrl the url the image names are appended to, ending with a slash
+   */
+  synchronized String getPage(int page, int pageSize, String imageBaseUrl) {
+    List<Integer> indexes = new ArrayList<Integer>(items.keySet());
+    int first = pageSize > 0 ? Math.min(page * pageSize, indexes.size()) : 0;
+    int end = pageSize > 0 ? Math.min(first + pageSize, indexes.size()) : indexes.size();
+
+    StringBuilder json = new StringBuilder("{\"items\":[");
+    for (int i = first; i < end; i++) {
+      if (i > first) {
+        json.append(',');
+      }
+      appendItem(json, indexes.get(i), imageBaseUrl);
+    }
+    json.append(']');
+    if (end < indexes.size()) {
+      json.append(",\"nextPageToken\":\"").append(page + 1).append('"');
+    }
+    return json.append(",\"version\":\"").append(version).append("\"}").toString();
+  }
+
+  /**
+   * Returns the changes since the version, or null if the version is unknown, in which case the
+   * list should be returned completely.
+   *
+   * @param sinceVersion the version of the list the client holds
+   * @param imageBaseUrl the url the image names are appended to, ending with a slash
+   */
+  synchronized String getChanges(String sinceVersion, String imageBaseUrl) {
+    int since;
+    try {
+      since = Integer.parseInt(sinceVersion);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (since < 1 || since > version) {
+      return null;
+    }
+
+    StringBuilder json = new StringBuilder("{\"items\":[");
+    boolean first = true;
+    for (Map.Entry<Integer, int[]> item : items.entrySet()) {
+      if (item.getValue()[1] > since) {
+        if (!first) {
+          json.append(',');
+        }
+        first = false;
+        appendItem(json, item.getKey(), imageBaseUrl);
+      }
+    }
+    json.append("],\"deletedIds\":[");
+    first = true;
+    for (Map.Entry<Integer, Integer> deletedItem : deletedItems.entrySet()) {
+      if (deletedItem.getValue() > since) {
+        if (!first) {
+          json.append(',');
+        }
+        first = false;
+        json.append('"').append(getId(deletedItem.getKey())).append('"');
+      }
+    }
+    return json.append("],\"delta\":true,\"version\":\"").append(version).append("\"}")
+        .toString();
+  }
+
+  private void appendItem(StringBuilder json, int index, String imageBaseUrl) {
+    if (offers) {
+      Fixtures.appendOffer(json, index, items.get(index)[0], imageBaseUrl);
+    } else {
+      Fixtures.appendRecommendation(json, index, items.get(index)[0], imageBaseUrl);
+    }
+  }
+
+  /**
+   * Returns the id the client identifies the item with: the offer id of an offer or the title of
+   * a recommendation.
+   */
+  private String getId(int index) {
+    return offers ? Integer.toString(2000 + index) : "Product " + index;
+  }
+}